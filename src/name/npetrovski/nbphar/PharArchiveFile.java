@@ -1,25 +1,80 @@
 package name.npetrovski.nbphar;
 
-import java.io.ByteArrayInputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import name.npetrovski.jphar.Phar;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.function.Predicate;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 import name.npetrovski.jphar.PharCompression;
-import name.npetrovski.jphar.PharEntry;
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+import org.openide.util.RequestProcessor;
 
 public class PharArchiveFile {
 
-    private static String STUB_NAME = "__STUB__";
+    static final String STUB_NAME = "__STUB__";
+
+    private static final RequestProcessor EXTRACTOR = new RequestProcessor("PharArchiveFile extraction", //NOI18N
+            Runtime.getRuntime().availableProcessors(), true, false);
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Folder of the stub, alias, signature and metadata in zip and tar based archives
+     */
+    private static final String CONTAINER_PREFIX = ".phar/"; //NOI18N
+
+    private static final String CONTAINER_STUB = CONTAINER_PREFIX + "stub.php"; //NOI18N
+
+    private static final int TAR_BLOCK = 512;
+
+    /**
+     * Longest GNU long name or pax header which is read
+     */
+    private static final int MAX_TAR_EXTENSION = 64 * 1024;
 
     private SourceHandler _source;
 
+    private final File file;
+
     public PharArchiveFile(File file) throws IOException {
-        _source = new PharSourceHandler(file, file.getName());
+        this.file = file;
+        // archives compressed as a whole are read from their decompressed image
+        File data = PharImage.of(file);
+        switch (PharFormat.detectContainer(data)) {
+            case ZIP:
+                _source = new ZipSourceHandler(data, file.getName());
+                break;
+            case TAR:
+                _source = new TarSourceHandler(data, file.getName());
+                break;
+            default:
+                _source = new PharSourceHandler(data, file.getName());
+        }
     }
 
     public PharArchiveFile(String path) throws IOException {
@@ -51,6 +106,13 @@ public class PharArchiveFile {
         return _source._name;
     }
 
+    /**
+     * @return the archive file, not its decompressed image
+     */
+    File getFile() {
+        return file;
+    }
+
     public Enumeration<ArchiveEntry> entries() throws IOException {
         enumerateEntries();
         return Collections.enumeration(_source._entries.values());
@@ -64,6 +126,319 @@ public class PharArchiveFile {
         return _source.getInputStream(entry);
     }
 
+    /**
+     * @return container format of the archive, {@link PharFormat#PHAR} for native phars
+     */
+    PharFormat getFormat() {
+        return _source.getFormat();
+    }
+
+    /**
+     * Releases the file handles kept by zip and tar based archives; they are opened again when needed.
+     */
+    public void close() throws IOException {
+        _source.close();
+    }
+
+    /**
+     * Checks all entries against the sizes and CRC32 checksums recorded in the manifest. Entries are verified in
+     * parallel straight from the archive file. Tar based archives carry no checksums of entry data, only their
+     * headers are checked.
+     *
+     * @return one description per corrupted entry, empty if the archive is fine
+     */
+    public List<String> verify() throws IOException {
+        return _source.verify();
+    }
+
+    /**
+     * Extracts entries into a folder. Folders are created first, then the files are written concurrently straight from
+     * the archive: stored bodies by channel transfer, compressed ones through a streaming decoder.
+     *
+     * @param dir target folder
+     * @param filter accepts entry paths (forward slashes, no leading slash); null for all entries
+     * @return number of extracted files
+     * @throws IOException if an entry cannot be written or would end up outside of <code>dir</code>
+     */
+    public int extractTo(Path dir, Predicate<String> filter) throws IOException {
+        final Path root = dir.toAbsolutePath().normalize();
+        if (!(_source instanceof PharSourceHandler)) {
+            return extractEntries(root, filter);
+        }
+        PharIndex index = PharIndex.get(_source._file);
+
+        Set<Path> folders = new TreeSet<Path>();
+        final List<PharIndex.Entry> entries = new ArrayList<PharIndex.Entry>();
+        final List<Path> targets = new ArrayList<Path>();
+        for (PharIndex.Entry entry : index.getEntries()) {
+            Path target = target(root, entry.getName(), filter);
+            if (target == null) {
+                continue;
+            }
+            if (isFolder(entry.getName())) {
+                folders.add(target);
+            } else {
+                folders.add(target.getParent());
+                entries.add(entry);
+                targets.add(target);
+            }
+        }
+        for (Path folder : folders) {
+            Files.createDirectories(folder);
+        }
+
+        final FileChannel in = FileChannel.open(_source._file.toPath(), StandardOpenOption.READ);
+        List<Future<Void>> tasks = new ArrayList<Future<Void>>(entries.size());
+        try {
+            for (int i = 0; i < entries.size(); i++) {
+                final PharIndex.Entry entry = entries.get(i);
+                final Path target = targets.get(i);
+                tasks.add(EXTRACTOR.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        extract(in, entry, target);
+                        return null;
+                    }
+                }));
+            }
+            await(tasks);
+        } finally {
+            for (Future<Void> task : tasks) {
+                task.cancel(true);
+            }
+            in.close();
+        }
+        return entries.size();
+    }
+
+    /**
+     * Extracts entries of zip and tar based archives, concurrently through their streams.
+     */
+    private int extractEntries(Path root, Predicate<String> filter) throws IOException {
+        enumerateEntries();
+        Set<Path> folders = new TreeSet<Path>();
+        final List<ArchiveEntry> entries = new ArrayList<ArchiveEntry>();
+        final List<Path> targets = new ArrayList<Path>();
+        for (ArchiveEntry entry : _source._entries.values()) {
+            Path target = STUB_NAME.equals(entry._name) ? null : target(root, entry._name, filter);
+            if (target == null) {
+                continue;
+            }
+            if (isFolder(entry._name)) {
+                folders.add(target);
+            } else {
+                folders.add(target.getParent());
+                entries.add(entry);
+                targets.add(target);
+            }
+        }
+        for (Path folder : folders) {
+            Files.createDirectories(folder);
+        }
+
+        List<Future<Void>> tasks = new ArrayList<Future<Void>>(entries.size());
+        try {
+            for (int i = 0; i < entries.size(); i++) {
+                final ArchiveEntry entry = entries.get(i);
+                final Path target = targets.get(i);
+                tasks.add(EXTRACTOR.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        InputStream is = getInputStream(entry);
+                        try {
+                            Files.copy(is, target, StandardCopyOption.REPLACE_EXISTING);
+                        } finally {
+                            is.close();
+                        }
+                        Files.setLastModifiedTime(target, FileTime.fromMillis(entry.getTime()));
+                        return null;
+                    }
+                }));
+            }
+            await(tasks);
+        } finally {
+            for (Future<Void> task : tasks) {
+                task.cancel(true);
+            }
+        }
+        return entries.size();
+    }
+
+    /**
+     * @return where the entry is extracted to, or null if it is filtered out
+     * @throws IOException if the entry would end up outside of <code>root</code>
+     */
+    private static Path target(Path root, String name, Predicate<String> filter) throws IOException {
+        String path = name.replace('\\', '/');
+        while (path.startsWith("/")) { //NOI18N
+            path = path.substring(1);
+        }
+        if (path.isEmpty() || PharJournal.isInternal(path) || (filter != null && !filter.test(path))) {
+            return null;
+        }
+        Path target = root.resolve(path).normalize();
+        if (!target.startsWith(root) || target.equals(root)) {
+            throw new IOException("Entry " + name + " points outside of " + root); //NOI18N
+        }
+        return target;
+    }
+
+    private static boolean isFolder(String name) {
+        return name.endsWith("/") || name.endsWith("\\"); //NOI18N
+    }
+
+    private static void await(List<Future<Void>> tasks) throws IOException {
+        for (Future<Void> task : tasks) {
+            try {
+                task.get();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IOException(ex);
+            } catch (ExecutionException ex) {
+                if (ex.getCause() instanceof IOException) {
+                    throw (IOException) ex.getCause();
+                }
+                throw new IOException(ex.getCause());
+            }
+        }
+    }
+
+    private static void extract(FileChannel in, PharIndex.Entry entry, Path target) throws IOException {
+        FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            PharCompression compression = entry.getCompression();
+            if (compression == PharCompression.NONE) {
+                long pos = entry.getOffset();
+                long end = pos + entry.getCompressedSize();
+                while (pos < end) {
+                    long n = in.transferTo(pos, end - pos, out);
+                    if (n <= 0) {
+                        throw new IOException("Truncated entry " + entry.getName()); //NOI18N
+                    }
+                    pos += n;
+                }
+            } else {
+                InputStream is = decoder(new RegionInputStream(in, entry.getOffset(), entry.getCompressedSize(),
+                        compression == PharCompression.GZIP), compression);
+                try {
+                    OutputStream os = Channels.newOutputStream(out);
+                    byte[] buf = new byte[BUFFER_SIZE];
+                    int n;
+                    while ((n = is.read(buf)) != -1) {
+                        os.write(buf, 0, n);
+                    }
+                } finally {
+                    is.close();
+                }
+            }
+        } finally {
+            out.close();
+        }
+        Files.setLastModifiedTime(target, FileTime.fromMillis(entry.getTime()));
+    }
+
+    /**
+     * Wraps a compressed body into its decoder; closing the decoder releases its native resources.
+     */
+    static InputStream decoder(InputStream body, PharCompression compression) throws IOException {
+        if (compression == PharCompression.GZIP) {
+            final Inflater inflater = new Inflater(true);
+            return new InflaterInputStream(body, inflater, BUFFER_SIZE) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        inflater.end();
+                    }
+                }
+            };
+        }
+        if (compression == PharCompression.BZIP2) {
+            return new BZip2CompressorInputStream(body);
+        }
+        return body;
+    }
+
+    /**
+     * Reads a range of a channel by positional reads, so one channel can serve several threads.
+     */
+    static final class RegionInputStream extends InputStream {
+
+        private final FileChannel channel;
+        private long position;
+        private final long end;
+        /**
+         * Raw inflate needs one byte past the deflated data
+         */
+        private boolean pad;
+        /**
+         * Whether the channel is opened for this stream alone and closed with it
+         */
+        private boolean owner;
+
+        RegionInputStream(FileChannel channel, long offset, long length, boolean pad) {
+            this.channel = channel;
+            this.position = offset;
+            this.end = offset + length;
+            this.pad = pad;
+        }
+
+        /**
+         * Opens a range of a file; closing the stream closes the file.
+         */
+        static RegionInputStream open(File file, long offset, long length) throws IOException {
+            return open(file, offset, length, false);
+        }
+
+        static RegionInputStream open(File file, long offset, long length, boolean pad) throws IOException {
+            RegionInputStream is = new RegionInputStream(FileChannel.open(file.toPath(), StandardOpenOption.READ),
+                    offset, length, pad);
+            is.owner = true;
+            return is;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (owner) {
+                channel.close();
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return (read(b, 0, 1) == 1) ? (b[0] & 0xFF) : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (position >= end) {
+                if (pad) {
+                    pad = false;
+                    b[off] = 0;
+                    return 1;
+                }
+                return -1;
+            }
+            int n = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, end - position)), position);
+            if (n < 0) {
+                throw new IOException("Unexpected end of archive"); //NOI18N
+            }
+            position += n;
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, end - position);
+        }
+    }
+
     abstract class ArchiveEntry {
 
         final String _name;
@@ -95,20 +470,18 @@ public class PharArchiveFile {
         }
     }
 
-    class SinglePharEntry extends ArchiveEntry {
+    /**
+     * Entry of a native archive, described by its manifest record.
+     */
+    class IndexedPharEntry extends ArchiveEntry {
 
-        private final PharEntry _entry;
+        private final PharIndex.Entry _entry;
 
-        public SinglePharEntry(PharEntry entry) {
+        IndexedPharEntry(PharIndex.Entry entry) {
             super(entry.getName());
             _entry = entry;
         }
 
-        public SinglePharEntry(String name) {
-            super(name);
-            _entry = null;
-        }
-
         @Override
         public long getSize() {
             return _entry.getSize();
@@ -116,12 +489,12 @@ public class PharArchiveFile {
 
         @Override
         public String getName() {
-            return _entry.getName();
+            return _name;
         }
 
         @Override
         public long getTime() {
-            return _entry.getLastModifiedDate().getTime();
+            return _entry.getTime();
         }
 
     }
@@ -149,6 +522,13 @@ public class PharArchiveFile {
 
         abstract InputStream getInputStream(ArchiveEntry entry) throws IOException;
 
+        abstract PharFormat getFormat();
+
+        abstract List<String> verify() throws IOException;
+
+        void close() throws IOException {
+        }
+
     }
 
     private final class PharSourceHandler extends SourceHandler {
@@ -158,6 +538,16 @@ public class PharArchiveFile {
             _isArchive = true;
         }
 
+        @Override
+        PharFormat getFormat() {
+            return PharFormat.PHAR;
+        }
+
+        @Override
+        List<String> verify() throws IOException {
+            return PharVerifier.verify(_file);
+        }
+
         @Override
         void enumerateEntries() throws IOException {
             if (_hasEnumerated) {
@@ -170,12 +560,13 @@ public class PharArchiveFile {
 
             _entries = new HashMap<String, ArchiveEntry>();
 
-            Phar pa = new Phar(_file);
-
-            _entries.put(STUB_NAME, new SinglePharEntry(new PharEntry(STUB_NAME, PharCompression.NONE)));
-            for (Object row : pa.getEntries()) {
-                PharEntry entry = (PharEntry) row;
-                _entries.put(entry.getName(), new SinglePharEntry(entry));
+            PharIndex index = PharIndex.get(_file);
+            _entries.put(STUB_NAME, new StubEntry(index.getStubLength(), index.getLastModified()));
+            for (PharIndex.Entry entry : index.getEntries()) {
+                if (PharJournal.isInternal(entry.getName())) {
+                    continue;
+                }
+                _entries.put(entry.getName(), new IndexedPharEntry(entry));
             }
         }
 
@@ -185,20 +576,399 @@ public class PharArchiveFile {
                 return null;
             }
 
-            Phar pa = new Phar(_file);
+            if (entry instanceof StubEntry) {
+                return RegionInputStream.open(_file, 0, entry.getSize());
+            }
 
-            if (STUB_NAME.equals(entry._name)) {
-                return new ByteArrayInputStream(pa.stub.getStubCode());
+            if (!(entry instanceof IndexedPharEntry)) {
+                return null;
             }
 
-            PharEntry target = pa.getEntry(entry._name);
-            if (target != null) {
-                return new ByteArrayInputStream(target.getContents());
+            // the body is streamed from its range of the archive, so neither the entry nor the archive has to fit
+            // into an array
+            PharIndex.Entry record = ((IndexedPharEntry) entry)._entry;
+            PharCompression compression = record.getCompression();
+            InputStream data = decoder(RegionInputStream.open(_file, record.getOffset(), record.getCompressedSize(),
+                    compression == PharCompression.GZIP), compression);
+            if (PharVerifier.VERIFY_READS) {
+                data = PharVerifier.checking(data, _file, record);
             }
+            return data;
+        }
 
-            return null;
+    }
+
+    /**
+     * Stub of a native archive: the range from the start of the file up to the manifest.
+     */
+    class StubEntry extends ArchiveEntry {
+
+        private final long _size;
+
+        private final long _time;
+
+        StubEntry(long size, long time) {
+            super(STUB_NAME);
+            _size = size;
+            _time = time;
+        }
+
+        @Override
+        public long getSize() {
+            return _size;
+        }
+
+        @Override
+        public String getName() {
+            return _name;
+        }
+
+        @Override
+        public long getTime() {
+            return _time;
+        }
+    }
+
+    class ZipPharEntry extends ArchiveEntry {
+
+        private final ZipEntry _entry;
+
+        ZipPharEntry(String name, ZipEntry entry) {
+            super(name);
+            _entry = entry;
+        }
+
+        @Override
+        public long getSize() {
+            return _entry.getSize();
+        }
+
+        @Override
+        public String getName() {
+            return _name;
+        }
+
+        @Override
+        public long getTime() {
+            return _entry.getTime();
+        }
+    }
+
+    /**
+     * Entry of a tar based archive; its data are stored at <code>_offset</code> as they are.
+     */
+    class TarPharEntry extends ArchiveEntry {
+
+        private final long _offset;
+
+        private final long _size;
+
+        private final long _time;
+
+        TarPharEntry(String name, long offset, long size, long time) {
+            super(name);
+            _offset = offset;
+            _size = size;
+            _time = time;
+        }
+
+        @Override
+        public long getSize() {
+            return _size;
+        }
+
+        @Override
+        public String getName() {
+            return _name;
+        }
+
+        @Override
+        public long getTime() {
+            return _time;
+        }
+    }
+
+    /**
+     * Zip based phar, indexed by its central directory. Entries are inflated natively by {@link ZipFile}, which stays
+     * open until {@link #close()}.
+     */
+    private final class ZipSourceHandler extends SourceHandler {
+
+        private ZipFile _zip;
+
+        ZipSourceHandler(File file, String name) throws IOException {
+            super(file, name);
+            _isArchive = true;
+        }
+
+        private synchronized ZipFile zip() throws IOException {
+            if (_zip == null) {
+                _zip = new ZipFile(_file);
+            }
+            return _zip;
+        }
+
+        @Override
+        synchronized void enumerateEntries() throws IOException {
+            if (_hasEnumerated) {
+                return;
+            }
+            Map<String, ArchiveEntry> entries = new HashMap<String, ArchiveEntry>();
+            Enumeration<? extends ZipEntry> en = zip().entries();
+            while (en.hasMoreElements()) {
+                ZipEntry entry = en.nextElement();
+                String name = entry.getName();
+                if (CONTAINER_STUB.equals(name)) {
+                    entries.put(STUB_NAME, new ZipPharEntry(STUB_NAME, entry));
+                } else if (!name.startsWith(CONTAINER_PREFIX)) {
+                    entries.put(name, new ZipPharEntry(name, entry));
+                }
+            }
+            _entries = entries;
+            _hasEnumerated = true;
+        }
+
+        @Override
+        InputStream getInputStream(ArchiveEntry entry) throws IOException {
+            if (!(entry instanceof ZipPharEntry)) {
+                return null;
+            }
+            ZipEntry ze = ((ZipPharEntry) entry)._entry;
+            InputStream is = zip().getInputStream(ze);
+            if (PharVerifier.VERIFY_READS && is != null && ze.getCrc() != -1) {
+                is = PharVerifier.checking(is, _file, ze);
+            }
+            return is;
+        }
+
+        @Override
+        PharFormat getFormat() {
+            return PharFormat.ZIP;
+        }
+
+        @Override
+        List<String> verify() throws IOException {
+            return PharVerifier.verify(_file, zip());
         }
 
+        @Override
+        synchronized void close() throws IOException {
+            if (_zip != null) {
+                try {
+                    _zip.close();
+                } finally {
+                    _zip = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * Tar based phar. The headers are scanned once to build a table of entry offsets; entry data are then read by
+     * positional reads of one shared channel, which stays open until {@link #close()}.
+     */
+    private final class TarSourceHandler extends SourceHandler {
+
+        private FileChannel _channel;
+
+        TarSourceHandler(File file, String name) throws IOException {
+            super(file, name);
+            _isArchive = true;
+        }
+
+        private synchronized FileChannel channel() throws IOException {
+            if (_channel == null) {
+                _channel = FileChannel.open(_file.toPath(), StandardOpenOption.READ);
+            }
+            return _channel;
+        }
+
+        @Override
+        synchronized void enumerateEntries() throws IOException {
+            if (_hasEnumerated) {
+                return;
+            }
+            Map<String, ArchiveEntry> entries = new HashMap<String, ArchiveEntry>();
+            FileChannel in = channel();
+            long length = in.size();
+            byte[] header = new byte[TAR_BLOCK];
+            String longName = null;
+            long pos = 0;
+            while (pos + TAR_BLOCK <= length) {
+                readFully(in, pos, header);
+                if (isZeroBlock(header)) {
+                    break;
+                }
+                if (!isTarChecksumValid(header)) {
+                    throw new IOException("Corrupted tar header at " + pos + " in " + _file); //NOI18N
+                }
+                long size = tarNumber(header, 124, 12);
+                long time = tarNumber(header, 136, 12) * 1000L;
+                byte type = header[156];
+                long data = pos + TAR_BLOCK;
+                pos = data + (size + TAR_BLOCK - 1) / TAR_BLOCK * TAR_BLOCK;
+
+                if (type == 'L' || type == 'x') {
+                    // GNU long name or pax extended header of the next entry
+                    byte[] ext = new byte[(int) Math.min(size, MAX_TAR_EXTENSION)];
+                    readFully(in, data, ext);
+                    String name = (type == 'L') ? tarString(ext, 0, ext.length) : paxPath(ext);
+                    if (name != null) {
+                        longName = name;
+                    }
+                    continue;
+                }
+                String name = (longName != null) ? longName : tarName(header);
+                longName = null;
+                boolean folder = type == '5';
+                if (!folder && type != '0' && type != 0 && type != '7') {
+                    // links, devices and global pax headers
+                    continue;
+                }
+                if (folder && !name.endsWith("/")) { //NOI18N
+                    name += "/"; //NOI18N
+                }
+                if (CONTAINER_STUB.equals(name)) {
+                    entries.put(STUB_NAME, new TarPharEntry(STUB_NAME, data, size, time));
+                } else if (!name.startsWith(CONTAINER_PREFIX)) {
+                    entries.put(name, new TarPharEntry(name, data, folder ? 0 : size, time));
+                }
+            }
+            _entries = entries;
+            _hasEnumerated = true;
+        }
+
+        @Override
+        InputStream getInputStream(ArchiveEntry entry) throws IOException {
+            if (!(entry instanceof TarPharEntry)) {
+                return null;
+            }
+            TarPharEntry te = (TarPharEntry) entry;
+            return new RegionInputStream(channel(), te._offset, te._size, false);
+        }
+
+        @Override
+        PharFormat getFormat() {
+            return PharFormat.TAR;
+        }
+
+        @Override
+        List<String> verify() throws IOException {
+            // tar keeps no checksums of the data, the headers are checked while enumerating
+            enumerateEntries();
+            return Collections.emptyList();
+        }
+
+        @Override
+        synchronized void close() throws IOException {
+            if (_channel != null) {
+                try {
+                    _channel.close();
+                } finally {
+                    _channel = null;
+                }
+            }
+        }
+    }
+
+    private static void readFully(FileChannel in, long pos, byte[] buf) throws IOException {
+        ByteBuffer bb = ByteBuffer.wrap(buf);
+        while (bb.hasRemaining()) {
+            if (in.read(bb, pos + bb.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+    }
+
+    private static boolean isZeroBlock(byte[] block) {
+        for (byte b : block) {
+            if (b != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The checksum is the sum of the header bytes with the checksum field taken as spaces; old tars summed signed bytes.
+     */
+    private static boolean isTarChecksumValid(byte[] header) {
+        long unsigned = 0;
+        long signed = 0;
+        for (int i = 0; i < header.length; i++) {
+            byte b = (i >= 148 && i < 156) ? (byte) ' ' : header[i];
+            unsigned += b & 0xFF;
+            signed += b;
+        }
+        long stored = tarNumber(header, 148, 8);
+        return stored == unsigned || stored == signed;
+    }
+
+    /**
+     * Parses an octal number field, or a base-256 one if its high bit is set.
+     */
+    private static long tarNumber(byte[] header, int off, int len) {
+        long value = 0;
+        if ((header[off] & 0x80) != 0) {
+            value = header[off] & 0x7F;
+            for (int i = off + 1; i < off + len; i++) {
+                value = (value << 8) | (header[i] & 0xFF);
+            }
+            return value;
+        }
+        for (int i = off; i < off + len; i++) {
+            byte b = header[i];
+            if (b >= '0' && b <= '7') {
+                value = (value << 3) | (b - '0');
+            } else if (b == 0 || (b == ' ' && value > 0)) {
+                break;
+            }
+        }
+        return value;
+    }
+
+    private static String tarString(byte[] buf, int off, int len) {
+        int end = off;
+        while (end < off + len && buf[end] != 0) {
+            end++;
+        }
+        return new String(buf, off, end - off, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the name, prefixed by the prefix field of POSIX ustar headers; old GNU headers keep times there
+     */
+    private static String tarName(byte[] header) {
+        String name = tarString(header, 0, 100);
+        if (header[257] == 'u' && header[258] == 's' && header[259] == 't' && header[260] == 'a' && header[261] == 'r'
+                && header[262] == 0) {
+            String prefix = tarString(header, 345, 155);
+            if (!prefix.isEmpty()) {
+                return prefix + "/" + name; //NOI18N
+            }
+        }
+        return name;
+    }
+
+    /**
+     * @return the <code>path</code> record of a pax extended header, null if there is none
+     */
+    private static String paxPath(byte[] data) {
+        String records = new String(data, StandardCharsets.UTF_8);
+        int pos = 0;
+        while (pos < records.length()) {
+            int space = records.indexOf(' ', pos);
+            int newLine = records.indexOf('\n', pos);
+            if (space < 0 || newLine < 0) {
+                break;
+            }
+            String record = records.substring(space + 1, newLine);
+            if (record.startsWith("path=")) { //NOI18N
+                return record.substring(5);
+            }
+            pos = newLine + 1;
+        }
+        return null;
     }
 
 }
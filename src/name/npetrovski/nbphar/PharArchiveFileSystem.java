@@ -5,16 +5,19 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileFilter;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.ObjectInputStream;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.lang.ref.Reference;
-import java.lang.ref.SoftReference;
 import java.lang.ref.WeakReference;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.Collections;
 import java.util.Date;
 import java.util.Enumeration;
@@ -23,6 +26,8 @@ import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.zip.ZipException;
@@ -35,6 +40,8 @@ import org.openide.filesystems.FileRenameEvent;
 import org.openide.filesystems.FileUtil;
 import org.openide.util.NbBundle;
 import org.openide.util.RequestProcessor;
+import org.openide.util.Task;
+import org.openide.util.TaskListener;
 import org.openide.util.BaseUtilities;
 
 public class PharArchiveFileSystem extends AbstractFileSystem {
@@ -56,6 +63,12 @@ public class PharArchiveFileSystem extends AbstractFileSystem {
      */
     private static final long MEM_STREAM_SIZE = 100000;
 
+    /**
+     * Entry reads in progress, keyed by version of the archive and entry name; readers which come while one runs share
+     * its result rather than decompressing the entry again.
+     */
+    private static final ConcurrentMap<String, EntryRead> READS = new ConcurrentHashMap<String, EntryRead>();
+
     private transient Object closeSync = new Object();
     private int checkTime = 10000;
 
@@ -67,10 +80,24 @@ public class PharArchiveFileSystem extends AbstractFileSystem {
     private transient long openRequestTime = 0;
 
     /**
-     * Cached image of PharArchiveFile capable of answering queries on type and children. There is a strong reference
-     * held while there is a living FileObject and a SoftReference for caching after all FOs are freed.
+     * Cached images of PharArchiveFile capable of answering queries on type and children are kept by the shared index
+     * manager. The image is pinned while there is a living FileObject and subject to LRU eviction after all FOs are
+     * freed.
+     */
+    private static final PharIndexManager INDEXES = PharIndexManager.getDefault();
+
+    private static final PharTrace TRACE = PharTrace.getDefault();
+
+    /**
+     * System property telling whether archives which the user may write are mounted writable. Off by default: a save rewrites and re-signs the
+     * archive, which must not happen to third-party phars behind the user's back.
      */
-    private transient Cache strongCache;
+    private static final String WRITABLE_PROPERTY = "name.npetrovski.nbphar.writable"; //NOI18N
+
+    /**
+     * Archive whose index is pinned by this filesystem or null.
+     */
+    private transient File pinnedRoot;
 
     private transient long lastModification = 0;
     /**
@@ -78,10 +105,6 @@ public class PharArchiveFileSystem extends AbstractFileSystem {
      */
     private transient int closeDelay = 300;
 
-    /**
-     * The soft part of the cache reference. For simplicity never null
-     */
-    private transient Reference<Cache> softCache = new SoftReference<Cache>(null);
     private transient FileObject foRoot;
     private transient FileChangeListener fcl;
 
@@ -91,21 +114,67 @@ public class PharArchiveFileSystem extends AbstractFileSystem {
     private transient RequestProcessor.Task watcherTask = null;
     private transient RequestProcessor.Task closeTask = null;
 
+    /**
+     * Signature check whose verdict is announced as a change of the signature attribute of the root
+     */
+    private transient volatile RequestProcessor.Task signatureCheck;
+
+    /**
+     * Set on the thread which announces a verdict, so that the signature attribute reads as unknown before the change
+     */
+    private static final ThreadLocal<Boolean> ANNOUNCING = new ThreadLocal<Boolean>();
+
     /**
      * Archive file.1
      */
     private File root = new File("."); // NOI18N
 
+    /**
+     * Escaped "file:...!/" prefix of URLs of entries of this archive; computed lazily.
+     */
+    private transient volatile String urlPrefix;
+
     /**
      * number of FileObjects in using. If no one is used then the cached data is freed
      */
     private transient long aliveCount = 0;
 
+    /**
+     * Entry reads which copy out of the open archive or have yet to open their copy; the archive is neither closed by
+     * the close delay nor written while there are some. Guarded by <code>closeSync</code>.
+     */
+    private transient int activeReads = 0;
+
+    /**
+     * Counters published through {@link PharArchiveMXBean}; created lazily.
+     */
+    private transient volatile PharArchiveStats stats;
+
+    /**
+     * Writer of changes; created on first write.
+     */
+    private transient PharJournal journal;
+
     /**
      * Opened zip file of this file-system is stored here or null.
      */
     private transient PharArchiveFile pharArchiveFile;
 
+    /**
+     * Zip or tar for archives in those containers, which are read only; unknown for native phars
+     */
+    private transient volatile PharFormat container = PharFormat.UNKNOWN;
+
+    /**
+     * Whether the archive is compressed as a whole and read from its image, which is read only too
+     */
+    private transient volatile boolean compressed;
+
+    /**
+     * Whether the archive is signed with OpenSSL; its signature cannot be renewed on writes
+     */
+    private transient volatile boolean openSslSigned;
+
     /**
      * Default constructor.
      * <p>
@@ -174,6 +243,14 @@ public class PharArchiveFileSystem extends AbstractFileSystem {
             throw new IOException(NbBundle.getMessage(PharArchiveFileSystem.class, "EXC_NotValidFile", aRoot.getAbsolutePath()));
         }
 
+        if (aRoot.canWrite()) {
+            try {
+                PharJournal.recover(aRoot);
+            } catch (IOException ex) {
+                LOGGER.log(Level.INFO, ex.getMessage(), ex);
+            }
+        }
+
         String s;
         s = aRoot.getAbsolutePath();
         s = s.intern();
@@ -183,7 +260,7 @@ public class PharArchiveFileSystem extends AbstractFileSystem {
         if (openArchive) {
             try {
                 tempArchive = new PharArchiveFile(s);
-                LOGGER.log(Level.FINE, "opened: " + System.currentTimeMillis() + "   " + s);
+                LOGGER.log(Level.FINE, "opened: {0} {1}", new Object[]{s, System.currentTimeMillis()}); //NOI18N
             } catch (ZipException e) {
                 throw new IOException(NbBundle.getMessage(PharArchiveFileSystem.class, "EXC_NotValidJarFile2", e.getLocalizedMessage(), s));
             }
@@ -196,10 +273,14 @@ public class PharArchiveFileSystem extends AbstractFileSystem {
             setArchive(tempArchive);
             openRequestTime = System.currentTimeMillis();
             root = new File(s);
+            container = PharFormat.detectContainer(root);
+            compressed = PharImage.isCompressed(root);
+            openSslSigned = isWritingEnabled() && container == PharFormat.UNKNOWN && !compressed && isOpenSslSigned(root);
+            urlPrefix = null;
 
             if (refreshRoot) {
-                strongCache = null;
-                softCache.clear();
+                unpinIndex();
+                INDEXES.remove(root);
                 aliveCount = 0;
                 newRoot = refreshRoot();
                 lastModification = 0;
@@ -269,6 +350,18 @@ public class PharArchiveFileSystem extends AbstractFileSystem {
         return root;
     }
 
+    /**
+     * @return the escaped <code>file:</code> part of URLs of entries of this archive, including the "!/" separator
+     */
+    String getURLPrefix() {
+        String prefix = urlPrefix;
+        if (prefix == null) {
+            prefix = "file:" + root.toURI().getRawPath() + "!/"; //NOI18N
+            urlPrefix = prefix;
+        }
+        return prefix;
+    }
+
     /*
      * Provides name of the system that can be presented to the user.
      * @return user presentable name of the filesystem
@@ -280,6 +373,14 @@ public class PharArchiveFileSystem extends AbstractFileSystem {
 
     protected InputStream inputStream(String name) throws java.io.FileNotFoundException {
         InputStream is = null;
+        PharTrace.Span span = TRACE.entryRead(root, name);
+        long start = System.nanoTime();
+        boolean spilled = false;
+        boolean[] spillHit = new boolean[1];
+        long size = 0;
+        EntryRead read = null;
+        String key = null;
+        boolean leader = false;
 
         try {
             synchronized (closeSync) {
@@ -289,14 +390,38 @@ public class PharArchiveFileSystem extends AbstractFileSystem {
                     PharArchiveFile.ArchiveEntry je = j.getArchiveEntry(name);
 
                     if (je != null) {
-                        if (je.getSize() < MEM_STREAM_SIZE) {
-                            is = getMemInputStream(j, je);
-                        } else {
-                            is = getTemporaryInputStream(j, je, (strongCache != null));
+                        size = je.getSize();
+                        spilled = size >= MEM_STREAM_SIZE;
+                        key = root.getAbsolutePath() + '@' + root.length() + '@' + root.lastModified() //NOI18N
+                                + '!' + name;
+                        EntryRead fresh = new EntryRead(j, je, spilled, (pinnedRoot != null));
+                        read = READS.putIfAbsent(key, fresh);
+                        if (read == null) {
+                            read = fresh;
+                            leader = true;
                         }
+                        activeReads++;
                     }
                 }
             }
+            if (leader) {
+                // the entry is copied outside of the lock, so that other readers can join
+                try {
+                    read.run();
+                } finally {
+                    READS.remove(key, read);
+                }
+            }
+            if (read != null) {
+                is = read.open();
+                spillHit[0] = !leader || read.hit;
+                if (!leader) {
+                    getStats().coalesced();
+                }
+                if (spilled) {
+                    span.cacheHit(spillHit[0]);
+                }
+            }
         } catch (java.io.FileNotFoundException e) {
             throw e;
         } catch (IOException e) {
@@ -308,7 +433,21 @@ public class PharArchiveFileSystem extends AbstractFileSystem {
             fnfe.initCause(e);
             throw fnfe;
         } finally {
+            if (read != null) {
+                synchronized (closeSync) {
+                    if (--activeReads == 0) {
+                        closeSync.notifyAll();
+                    }
+                }
+            }
             closeCurrentRoot(false);
+            if (is != null) {
+                getStats().read(System.nanoTime() - start, spilled, spillHit[0]);
+            }
+            if (is != null && span.isRecording()) {
+                traceEntry(span, name, size);
+            }
+            span.end();
         }
 
         if (is == null) {
@@ -325,7 +464,9 @@ public class PharArchiveFileSystem extends AbstractFileSystem {
      */
     @Override
     protected <T extends FileObject> Reference<T> createReference(T fo) {
-        aliveCount++;
+        if (aliveCount++ == 0) {
+            pinIndex();
+        }
 
         if ((checkTime > 0) && (watcherTask == null)) {
             watcherTask = req.post(watcherTask(), checkTime);
@@ -334,18 +475,34 @@ public class PharArchiveFileSystem extends AbstractFileSystem {
         return new Ref<T>(fo);
     }
 
-    private InputStream getMemInputStream(PharArchiveFile jf, PharArchiveFile.ArchiveEntry je)
+    /**
+     * Adds size and compression of the entry to a recorded read.
+     */
+    private void traceEntry(PharTrace.Span span, String name, long size) {
+        span.bytes(size);
+        try {
+            PharIndex.Entry entry = PharIndex.get(PharImage.of(root)).getEntry(name);
+            if (entry != null) {
+                span.compression(entry.getCompression());
+            }
+        } catch (IOException ex) {
+            LOGGER.log(Level.FINE, null, ex);
+        }
+    }
+
+    private static byte[] getMemContent(PharArchiveFile jf, PharArchiveFile.ArchiveEntry je)
             throws IOException {
+        // entries stream from the archive, so available() tells nothing about their size
+        ByteArrayOutputStream os = new ByteArrayOutputStream((int) je.getSize());
         InputStream is = jf.getInputStream(je);
-        ByteArrayOutputStream os = new ByteArrayOutputStream(is.available());
 
         try {
             FileUtil.copy(is, os);
         } finally {
-            os.close();
+            is.close();
         }
 
-        return new ByteArrayInputStream(os.toByteArray());
+        return os.toByteArray();
     }
 
     private void freeReference() {
@@ -358,14 +515,24 @@ public class PharArchiveFileSystem extends AbstractFileSystem {
                 watcherTask = null;
             }
 
-            strongCache = null; // no more active FO, keep only soft ref
+            unpinIndex(); // no more active FO, let the manager evict the index
             closeCurrentRoot(false);
         }
     }
 
     @Override
     public boolean isReadOnly() {
-        return true;
+        return !isWritingEnabled() || container != PharFormat.UNKNOWN || compressed || openSslSigned || !root.canWrite();
+    }
+
+    private static boolean isOpenSslSigned(File archive) {
+        try {
+            return PharJournal.isOpenSslSigned(archive);
+        } catch (IOException ex) {
+            // the journal would not write an archive which it cannot read either
+            LOGGER.log(Level.FINE, null, ex);
+            return true;
+        }
     }
 
     /**
@@ -391,9 +558,9 @@ public class PharArchiveFileSystem extends AbstractFileSystem {
     private void readObject(ObjectInputStream ois) throws IOException, ClassNotFoundException {
         ois.defaultReadObject();
         closeSync = new Object();
-        strongCache = null;
-        softCache = new SoftReference<Cache>(null);
+        pinnedRoot = null;
         aliveCount = 0;
+        activeReads = 0;
 
         try {
             setArchiveFile(root);
@@ -434,27 +601,37 @@ public class PharArchiveFileSystem extends AbstractFileSystem {
             }
 
             if (isRealClose) {
-                realClose().run();
+                realClose(true).run();
             } else {
-                closeTask = req.post(realClose(), closeDelay);
+                closeTask = req.post(realClose(false), closeDelay);
             }
         }
     }
 
-    private Runnable realClose() {
+    private Runnable realClose(final boolean force) {
         return new Runnable() {
             public void run() {
                 synchronized (closeSync) {
+                    if (!force && activeReads > 0) {
+                        // an entry is being copied out of the archive
+                        closeTask = req.post(this, closeDelay);
+                        return;
+                    }
                     final PharArchiveFile file = getArchive(false);
                     if (file != null) {
+                        PharTrace.Span span = TRACE.archiveClose(root);
                         try {
-                            LOGGER.log(Level.FINE, "closed: " + System.currentTimeMillis() + "   " + root.getAbsolutePath());//NOI18N
+                            LOGGER.log(Level.FINE, "closed: {0} {1}", new Object[]{root.getAbsolutePath(), System.currentTimeMillis()}); //NOI18N
                         } catch (Exception exc) {
                             // ignore exception during closing, just log it
                             LOGGER.log(Level.OFF, null, exc);
                         } finally {
                             setArchive(null);
+                            pharArchiveFile = null;
+                            closeArchive(file);
                             closeTask = null;
+                            getStats().closed();
+                            span.end();
                         }
                     }
                 }
@@ -493,9 +670,11 @@ public class PharArchiveFileSystem extends AbstractFileSystem {
     private PharArchiveFile getArchive(boolean create) {
         assert Thread.holdsLock(closeSync);
         if (pharArchiveFile == null && create) {
+            PharTrace.Span span = TRACE.archiveOpen(root);
             try {
                 if (root.canRead()) {
                     pharArchiveFile = new PharArchiveFile(root);
+                    getStats().opened();
                     LOGGER.log(Level.FINE, "opened: {0} {1}", new Object[]{root.getAbsolutePath(), System.currentTimeMillis()}); //NOI18N
                     return pharArchiveFile;
                 }
@@ -503,20 +682,20 @@ public class PharArchiveFileSystem extends AbstractFileSystem {
                 LOGGER.log(Level.INFO, ex.getMessage(), ex);
             } catch (IOException ex) {
                 LOGGER.log(Level.INFO, ex.getMessage(), ex);
+            } finally {
+                span.end();
             }
             LOGGER.log(Level.WARNING, "cannot open {0}", root.getAbsolutePath());
         }
         return pharArchiveFile;
     }
 
-    private InputStream getTemporaryInputStream(PharArchiveFile jf, PharArchiveFile.ArchiveEntry je, boolean forceRecreate)
-            throws IOException {
-        String filePath = jf.getName();
+    private static File getTemporaryFile(PharArchiveFile jf, PharArchiveFile.ArchiveEntry je, boolean forceRecreate,
+            boolean[] hit) throws IOException {
+        // the absolute path, so that spill files of equally named archives do not collide
+        String filePath = jf.getFile().getAbsolutePath();
         String entryPath = je.getName();
-        StringBuilder aarCacheFolder = new StringBuilder("pharfscache"); //NOI18N
-        aarCacheFolder.append(System.getProperty("user.name")).append("/"); //NOI18N
-
-        File pharfscache = new File(System.getProperty("java.io.tmpdir"), aarCacheFolder.toString()); //NOI18N
+        File pharfscache = temporaryFolder();
 
         if (!pharfscache.exists()) {
             pharfscache.mkdirs();
@@ -526,49 +705,192 @@ public class PharArchiveFileSystem extends AbstractFileSystem {
 
         boolean createContent = !f.exists();
 
-        if (createContent) {
-            f.createNewFile();
-        } else {
+        if (!createContent) {
             forceRecreate |= (Math.abs((System.currentTimeMillis() - f.lastModified())) > 10000);
         }
 
+        hit[0] = !createContent && !forceRecreate;
         if (createContent || forceRecreate) {
+            // written aside and moved over the old content, which earlier readers may still be reading
+            File part = Files.createTempFile(pharfscache.toPath(), f.getName(), ".part").toFile(); //NOI18N
             InputStream is = jf.getInputStream(je);
 
             try {
-                OutputStream os = new FileOutputStream(f);
+                OutputStream os = new FileOutputStream(part);
 
                 try {
                     FileUtil.copy(is, os);
                 } finally {
                     os.close();
                 }
+            } catch (IOException ex) {
+                part.delete();
+                throw ex;
             } finally {
                 is.close();
             }
+
+            try {
+                Files.move(part.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException ex) {
+                // the old content is open and cannot be replaced on this platform
+                LOGGER.log(Level.FINE, null, ex);
+                part.deleteOnExit();
+                return part;
+            }
         }
 
         f.deleteOnExit();
 
-        return new FileInputStream(f);
+        return f;
+    }
+
+    /**
+     * Copy of one entry, made once for all the readers which ask for it while it runs. Each reader gets its own stream
+     * over the result: the content of small entries or the spill file of large ones.
+     */
+    private static final class EntryRead {
+
+        private final PharArchiveFile archive;
+        private final PharArchiveFile.ArchiveEntry entry;
+        private final boolean spill;
+        private final boolean forceRecreate;
+        private boolean done;
+        private byte[] content;
+        private File file;
+        private IOException failure;
+        /**
+         * Whether the spill file existed already
+         */
+        boolean hit;
+
+        EntryRead(PharArchiveFile archive, PharArchiveFile.ArchiveEntry entry, boolean spill, boolean forceRecreate) {
+            this.archive = archive;
+            this.entry = entry;
+            this.spill = spill;
+            this.forceRecreate = forceRecreate;
+        }
+
+        void run() throws IOException {
+            try {
+                if (spill) {
+                    boolean[] spillHit = new boolean[1];
+                    file = getTemporaryFile(archive, entry, forceRecreate, spillHit);
+                    hit = spillHit[0];
+                } else {
+                    content = getMemContent(archive, entry);
+                }
+            } catch (IOException ex) {
+                failure = ex;
+                throw ex;
+            } catch (RuntimeException ex) {
+                failure = new IOException(ex);
+                throw ex;
+            } finally {
+                synchronized (this) {
+                    done = true;
+                    notifyAll();
+                }
+            }
+        }
+
+        /**
+         * Waits for the copy and opens a stream over it.
+         */
+        InputStream open() throws IOException {
+            synchronized (this) {
+                boolean interrupted = false;
+                while (!done) {
+                    try {
+                        wait();
+                    } catch (InterruptedException ex) {
+                        interrupted = true;
+                    }
+                }
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if (failure != null) {
+                throw new IOException(failure);
+            }
+            return spill ? new FileInputStream(file) : new ByteArrayInputStream(content);
+        }
+    }
+
+    static File temporaryFolder() {
+        StringBuilder aarCacheFolder = new StringBuilder("pharfscache"); //NOI18N
+        aarCacheFolder.append(System.getProperty("user.name")).append("/"); //NOI18N
+
+        return new File(System.getProperty("java.io.tmpdir"), aarCacheFolder.toString()); //NOI18N
+    }
+
+    /**
+     * Writing is enabled by a system property, read on every check so that it can be turned on for a running IDE.
+     */
+    private static boolean isWritingEnabled() {
+        return Boolean.getBoolean(WRITABLE_PROPERTY);
     }
 
     private static String temporaryName(String filePath, String entryPath) {
+        return temporaryPrefix(filePath) + String.valueOf(entryPath.hashCode()).replace('-', 'x'); //NOI18N
+    }
+
+    static String temporaryPrefix(String filePath) {
         String fileHash = String.valueOf(filePath.hashCode());
-        String entryHash = String.valueOf(entryPath.hashCode());
 
         StringBuilder sb = new StringBuilder();
-        sb.append("f").append(fileHash).append("e").append(entryHash);
+        sb.append("f").append(fileHash).append("e");
 
         return sb.toString().replace('-', 'x'); //NOI18N
     }
 
-    private Cache getCache() {
-        Cache ret = strongCache;
+    /**
+     * @return spill files of large entries of this archive, or null
+     */
+    File[] getSpillFiles() {
+        final String prefix = temporaryPrefix(root.getAbsolutePath());
+        final String images = prefix + PharImage.IMAGE_MARK;
+        return temporaryFolder().listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File f) {
+                return f.getName().startsWith(prefix) && !f.getName().startsWith(images);
+            }
+        });
+    }
 
-        if (ret == null) {
-            ret = softCache.get();
+    PharArchiveStats getStats() {
+        PharArchiveStats s = stats;
+        if (s == null) {
+            synchronized (this) {
+                s = stats;
+                if (s == null) {
+                    stats = s = new PharArchiveStats();
+                }
+            }
         }
+        return s;
+    }
+
+    long getAliveCount() {
+        return aliveCount;
+    }
+
+    /**
+     * @return estimated size of the loaded index, -1 if there is none
+     */
+    long getIndexSize() {
+        PharIndexManager.Index index = INDEXES.peek(root);
+        return index != null ? index.estimatedSize() : -1;
+    }
+
+    int getIndexEntryCount() {
+        PharIndexManager.Index index = INDEXES.peek(root);
+        return index instanceof Cache ? ((Cache) index).getEntryCount() : 0;
+    }
+
+    private Cache getCache() {
+        Cache ret = (Cache) INDEXES.get(root);
 
         if (ret == null) {
             ret = parse(false);
@@ -614,6 +936,7 @@ public class PharArchiveFileSystem extends AbstractFileSystem {
         // force watcher to reschedule us if not succesfull
         PharArchiveFile j = null;
         long start;
+        PharTrace.Span span = TRACE.indexBuild(root);
 
         //beginAtomicAction();
         try {
@@ -622,6 +945,10 @@ public class PharArchiveFileSystem extends AbstractFileSystem {
 
                 lastModification = 0;
                 closeCurrentRoot(false);
+                if (refresh) {
+                    // entries may have come or gone, cached misses included
+                    PharArchiveURLMapper.forgetResolutions(root);
+                }
 
                 for (int i = 0; i <= 2; i++) {
                     try {
@@ -658,10 +985,11 @@ public class PharArchiveFileSystem extends AbstractFileSystem {
                             }
                         }
                     }
+                    span.entries(uniqueEntries.size());
                     Cache newCache = new Cache(uniqueEntries);
+                    getStats().parsed();
                     lastModification = root.lastModified();
-                    strongCache = newCache;
-                    softCache = new SoftReference<Cache>(newCache);
+                    INDEXES.put(root, newCache);
 
                     return newCache;
                 } catch (Throwable t) {
@@ -671,6 +999,7 @@ public class PharArchiveFileSystem extends AbstractFileSystem {
                 }
             }
         } finally {
+            span.end();
             closeCurrentRoot(false);
 
             if (refresh) {
@@ -715,10 +1044,39 @@ public class PharArchiveFileSystem extends AbstractFileSystem {
         };
     }
 
+    private void pinIndex() {
+        synchronized (closeSync) {
+            if (pinnedRoot == null) {
+                pinnedRoot = root;
+                INDEXES.pin(pinnedRoot);
+            }
+        }
+    }
+
+    private void unpinIndex() {
+        synchronized (closeSync) {
+            if (pinnedRoot != null) {
+                INDEXES.unpin(pinnedRoot);
+                pinnedRoot = null;
+            }
+        }
+    }
+
     private void setArchive(PharArchiveFile af) {
         this.af = af;
     }
 
+    /**
+     * Releases file handles held by zip and tar based archives.
+     */
+    private static void closeArchive(PharArchiveFile file) {
+        try {
+            file.close();
+        } catch (IOException ex) {
+            LOGGER.log(Level.FINE, null, ex);
+        }
+    }
+
     //
     // List
     //
@@ -732,20 +1090,90 @@ public class PharArchiveFileSystem extends AbstractFileSystem {
     // Change
     //
     protected void createFolder(String name) throws java.io.IOException {
-        throw new IOException();
+        write(new PharJournal.Changes().put(name + "/", new byte[0]));
     }
 
     protected void createData(String name) throws IOException {
-        throw new IOException();
+        write(new PharJournal.Changes().put(name, new byte[0]));
     }
 
     protected void rename(String oldName, String newName)
             throws IOException {
-        throw new IOException();
+        write(new PharJournal.Changes().rename(oldName, newName));
     }
 
     protected void delete(String name) throws IOException {
-        throw new IOException();
+        write(new PharJournal.Changes().delete(name));
+    }
+
+    /**
+     * Applies the changes to the archive file and drops everything read from its previous state.
+     */
+    private void write(PharJournal.Changes changes) throws IOException {
+        checkWritable(null);
+        synchronized (closeSync) {
+            awaitReads();
+            getJournal().apply(changes);
+            archiveChanged();
+        }
+    }
+
+    /**
+     * Rewrites the archive, reclaiming space of replaced and deleted entries.
+     */
+    void compact() throws IOException {
+        checkWritable(null);
+        synchronized (closeSync) {
+            awaitReads();
+            getJournal().compact();
+            archiveChanged();
+        }
+    }
+
+    /**
+     * Waits until entry reads which run outside of the lock are done with the archive and their spill files.
+     */
+    private void awaitReads() throws IOException {
+        assert Thread.holdsLock(closeSync);
+        while (activeReads > 0) {
+            try {
+                closeSync.wait();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException(ex.getMessage());
+            }
+        }
+    }
+
+    private PharJournal getJournal() {
+        assert Thread.holdsLock(closeSync);
+        if (journal == null) {
+            journal = new PharJournal(root);
+        }
+        return journal;
+    }
+
+    private void archiveChanged() {
+        assert Thread.holdsLock(closeSync);
+        if (pharArchiveFile != null) {
+            closeArchive(pharArchiveFile);
+            pharArchiveFile = null;
+        }
+        INDEXES.remove(root);
+        PharArchiveURLMapper.forgetResolutions(root);
+        lastModification = root.lastModified();
+        File[] spilled = getSpillFiles();
+        if (spilled != null) {
+            for (File f : spilled) {
+                f.delete();
+            }
+        }
+    }
+
+    private void checkWritable(String name) throws IOException {
+        if (isReadOnly() || PharArchiveFile.STUB_NAME.equals(name)) {
+            throw new IOException(NbBundle.getMessage(PharArchiveFileSystem.class, "EXC_CannotLock_JAR", name, root));
+        }
     }
 
     //
@@ -779,7 +1207,7 @@ public class PharArchiveFileSystem extends AbstractFileSystem {
     }
 
     protected boolean readOnly(String name) {
-        return true;
+        return isReadOnly() || PharArchiveFile.STUB_NAME.equals(name);
     }
 
     protected String mimeType(String name) {
@@ -787,18 +1215,31 @@ public class PharArchiveFileSystem extends AbstractFileSystem {
     }
 
     protected long size(String name) {
-        long retVal = getEntry(name).getSize();
+        PharArchiveFile.ArchiveEntry e = getEntry(name);
+        long retVal = (e != null) ? e.getSize() : -1;
         closeCurrentRoot(false);
 
         return (retVal == -1) ? 0 : retVal;
     }
 
-    protected OutputStream outputStream(String name) throws java.io.IOException {
-        throw new IOException();
+    protected OutputStream outputStream(final String name) throws java.io.IOException {
+        checkWritable(name);
+        // the new body is appended to the archive as a whole when the stream is closed
+        return new ByteArrayOutputStream() {
+            private boolean closed;
+
+            @Override
+            public void close() throws IOException {
+                if (!closed) {
+                    closed = true;
+                    PharArchiveFileSystem.this.write(new PharJournal.Changes().put(name, toByteArray()));
+                }
+            }
+        };
     }
 
     protected void lock(String name) throws IOException {
-        throw new IOException(NbBundle.getMessage(PharArchiveFileSystem.class, "EXC_CannotLock_JAR", name, root));
+        checkWritable(name);
     }
 
     protected void unlock(String name) {
@@ -811,16 +1252,61 @@ public class PharArchiveFileSystem extends AbstractFileSystem {
         if ("java.io.File".equals(attrName)) {
             return null;
         }
+        if (PharSignatures.ATTRIBUTE.equals(attrName) && name.isEmpty() && root.isFile()) {
+            if (ANNOUNCING.get() != null) {
+                return null;
+            }
+            // never wait for the check, the attribute change is fired once the verdict is known
+            PharSignatures.Verdict verdict = PharSignatures.peek(root);
+            if (verdict == null) {
+                announceVerdict();
+            }
+            return verdict;
+        }
         return null;
     }
 
+    /**
+     * Sets the signature attribute of the root once the running check finishes, which fires the attribute change.
+     */
+    private void announceVerdict() {
+        RequestProcessor.Task task = PharSignatures.verify(root);
+        if (task == signatureCheck) {
+            return;
+        }
+        signatureCheck = task;
+        task.addTaskListener(new TaskListener() {
+            @Override
+            public void taskFinished(Task t) {
+                PharSignatures.Verdict verdict = PharSignatures.peek(root);
+                if (verdict != null) {
+                    ANNOUNCING.set(Boolean.TRUE);
+                    try {
+                        getRoot().setAttribute(PharSignatures.ATTRIBUTE, verdict);
+                    } catch (IOException ex) {
+                        LOGGER.log(Level.FINE, null, ex);
+                    } finally {
+                        ANNOUNCING.remove();
+                    }
+                }
+            }
+        });
+    }
+
     protected void writeAttribute(String name, String attrName, Object value)
             throws IOException {
+        if (PharSignatures.ATTRIBUTE.equals(attrName) && name.isEmpty() && value instanceof PharSignatures.Verdict) {
+            // written by announceVerdict() only, the verdict itself is kept by PharSignatures
+            return;
+        }
         throw new IOException("Setting attribute not allowed for PharArchiveFileSystem [" + this.getDisplayName() + "!" + name + " <- " + attrName + "=" + value + "]");  //NOI18N
     }
 
     // attributes of tar entry
     protected Enumeration<String> attributes(String name) {
+        if (name.isEmpty()) {
+            return org.openide.util.Enumerations.singleton(PharSignatures.ATTRIBUTE);
+        }
         return org.openide.util.Enumerations.empty();
     }
 
@@ -830,7 +1316,7 @@ public class PharArchiveFileSystem extends AbstractFileSystem {
     protected void deleteAttributes(String name) {
     }
 
-    private static class Cache {
+    private static class Cache implements PharIndexManager.Index {
 
         private static final Set<PharArchiveFile.ArchiveEntry> EMPTY_SET = Collections.emptySet();
         static final Cache INVALID = new Cache(EMPTY_SET);
@@ -838,8 +1324,11 @@ public class PharArchiveFileSystem extends AbstractFileSystem {
         private int nameOffset = 0;
         int[] EMPTY = new int[0];
         private final Map<String, Folder> folders = new HashMap<String, Folder>();
+        private long estimatedSize = 0;
+        private final int entryCount;
 
         public Cache(Set<PharArchiveFile.ArchiveEntry> entries) {
+            entryCount = entries.size();
             parse(entries);
             trunc();
         }
@@ -928,6 +1417,23 @@ public class PharArchiveFileSystem extends AbstractFileSystem {
             for (Iterator<?> it = folders.values().iterator(); it.hasNext();) {
                 ((Folder) it.next()).trunc();
             }
+
+            // rough retained size: name bytes, index arrays, folder keys and map entries
+            long size = 16 + names.length;
+            for (Map.Entry<String, Folder> e : folders.entrySet()) {
+                size += 48 + 2L * e.getKey().length(); // key String and its chars
+                size += 32 + 4L * e.getValue().indices.length; // map node, Folder and indices
+            }
+            estimatedSize = size;
+        }
+
+        @Override
+        public long estimatedSize() {
+            return estimatedSize;
+        }
+
+        int getEntryCount() {
+            return entryCount;
         }
 
         private int putName(byte[] name) {
@@ -0,0 +1,65 @@
+package name.npetrovski.nbphar;
+
+/**
+ * Live statistics of one mounted phar archive, registered as
+ * <code>name.npetrovski.nbphar:type=Archive,name=&lt;archive path&gt;</code>.
+ */
+public interface PharArchiveMXBean {
+
+    String getArchive();
+
+    /**
+     * @return how many times the archive file has been opened
+     */
+    long getOpenCount();
+
+    long getCloseCount();
+
+    /**
+     * @return how many times the entries have been read into the filesystem index
+     */
+    long getParseCount();
+
+    /**
+     * @return opens during the last full minute; thousands mean the close delay keeps expiring between requests
+     */
+    long getOpensLastMinute();
+
+    boolean isIndexLoaded();
+
+    /**
+     * @return estimated retained size of the filesystem index, 0 if not loaded
+     */
+    long getIndexSizeBytes();
+
+    int getEntryCount();
+
+    /**
+     * @return number of living FileObjects of the archive
+     */
+    long getAliveCount();
+
+    long getReadCount();
+
+    /**
+     * @return reads which shared the decompression of a concurrent read of the same entry
+     */
+    long getCoalescedReadCount();
+
+    /**
+     * @return share of large entry reads served from an existing spill file
+     */
+    double getContentCacheHitRatio();
+
+    long getSpillCacheBytes();
+
+    int getSpillCacheFiles();
+
+    double getReadLatencyP50Millis();
+
+    double getReadLatencyP90Millis();
+
+    double getReadLatencyP99Millis();
+
+    double getReadLatencyMaxMillis();
+}
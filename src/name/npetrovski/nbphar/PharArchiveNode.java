@@ -1,40 +1,86 @@
 package name.npetrovski.nbphar;
 
-import de.ailis.pherialize.Mixed;
+import java.io.File;
 import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import javax.swing.Action;
-import name.npetrovski.jphar.Phar;
 import name.npetrovski.jphar.PharCompression;
+import org.openide.filesystems.FileChangeAdapter;
+import org.openide.filesystems.FileChangeListener;
+import org.openide.filesystems.FileEvent;
 import org.openide.filesystems.FileObject;
-import org.openide.loaders.DataFilter;
-import org.openide.loaders.DataFolder;
+import org.openide.filesystems.FileRenameEvent;
+import org.openide.filesystems.FileStateInvalidException;
 import org.openide.loaders.DataNode;
+import org.openide.loaders.DataObject;
+import org.openide.loaders.DataObjectNotFoundException;
+import org.openide.nodes.AbstractNode;
 import org.openide.nodes.Children;
+import org.openide.nodes.FilterNode;
 import org.openide.nodes.Node;
 import org.openide.nodes.PropertySupport;
 import org.openide.nodes.Sheet;
+import org.openide.util.NbBundle;
 import org.openide.util.RequestProcessor;
+import org.openide.util.Task;
+import org.openide.util.TaskListener;
 import org.openide.filesystems.FileUtil;
 
 final class PharArchiveNode extends DataNode {
 
+    private static final Logger LOG = Logger.getLogger(PharArchiveNode.class.getName());
+
     private static final RequestProcessor RP = new RequestProcessor(PharArchiveNode.class.getName(), 1, false, false);
 
-    private Phar base;
+    /**
+     * Manifest of the archive; null until loaded by {@link #loadIndex()}
+     */
+    private volatile PharIndex index;
 
-    public PharArchiveNode(PharArchiveDataObject obj) {
-        this(obj, new DummyChildren());
-        try {
-            this.base = new Phar(FileUtil.toFile(this.getDataObject().getPrimaryFile()));
-        } catch (IOException ex) {
-            // shouldnt
+    /**
+     * Summary of the global metadata, loaded together with the index; the full value is browsed through
+     * {@link PharMetadataNode}
+     */
+    private volatile String metadata;
+
+    /**
+     * Zip or tar for archives in those containers, unknown for native phars; null until loaded
+     */
+    private volatile PharFormat container;
+
+    /**
+     * Set when the manifest cannot be read; the sheet then shows an error instead of the loading state
+     */
+    private volatile boolean loadFailed;
+
+    /**
+     * Last known verdict on the signature, kept in case the check of a newer version has not finished yet
+     */
+    private volatile PharSignatures.Verdict verdict;
+
+    private RequestProcessor.Task loadTask;
+
+    private RequestProcessor.Task verifyTask;
+
+    /**
+     * Forgets what was loaded when the archive is rewritten, by the IDE or by another process
+     */
+    private final FileChangeListener archiveListener = new FileChangeAdapter() {
+        @Override
+        public void fileChanged(FileEvent fe) {
+            archiveChanged();
         }
-    }
+    };
 
-    private PharArchiveNode(PharArchiveDataObject obj, DummyChildren c) {
-        super(obj, c);
-        c.attachArchiveNode(this);
+    public PharArchiveNode(PharArchiveDataObject obj) {
+        super(obj, new ArchiveChildren(obj.getPrimaryFile(), null));
+        FileObject primary = obj.getPrimaryFile();
+        primary.addFileChangeListener(FileUtil.weakFileChangeListener(archiveListener, primary));
     }
 
     @Override
@@ -47,10 +93,36 @@ final class PharArchiveNode extends DataNode {
         }
         def.put(new PropertySupport.Name(this));
 
+        final PharIndex pi = index;
+        final PharFormat pc = container;
+        final boolean failed = loadFailed;
+        if (pi == null && pc == null && !failed) {
+            scheduleLoad();
+        }
+        // zip and tar based archives have no manifest of their own
+        final boolean loading = pi == null && !failed && (pc == null || pc == PharFormat.UNKNOWN);
+        final String missing = failed ? NbBundle.getMessage(PharArchiveNode.class, "LBL_LoadFailed")
+                : loading ? NbBundle.getMessage(PharArchiveNode.class, "LBL_Loading") : "";
+
+        Property<String> format = new PropertySupport.ReadOnly<String>("pharFormat", String.class, "Format", "Phar Format") {
+            @Override
+            public String getValue() throws IllegalAccessException, InvocationTargetException {
+                if (pc == null) {
+                    return missing;
+                }
+                return pc == PharFormat.UNKNOWN ? PharFormat.PHAR.name() : pc.name();
+            }
+        };
+
+        def.put(format);
+
         Property<String> version = new PropertySupport.ReadOnly<String>("pharVersion", String.class, "Version", "Phar Version") {
             @Override
             public String getValue() throws IllegalAccessException, InvocationTargetException {
-                return PharArchiveNode.this.base.getVersion();
+                if (pi == null) {
+                    return missing;
+                }
+                return pi.getVersion();
             }
         };
 
@@ -59,7 +131,10 @@ final class PharArchiveNode extends DataNode {
         Property<String> compression = new PropertySupport.ReadOnly<String>("pharCompression", String.class, "Compression", "Phar Compression") {
             @Override
             public String getValue() throws IllegalAccessException, InvocationTargetException {
-                PharCompression c = PharArchiveNode.this.base.getCompression();
+                if (pi == null) {
+                    return missing;
+                }
+                PharCompression c = pi.getCompression();
 
                 switch (c) {
                     case BZIP2:
@@ -74,16 +149,30 @@ final class PharArchiveNode extends DataNode {
 
         def.put(compression);
 
-        Mixed metadata = this.base.getMetadata();
-        
-        if (metadata != null) {
+        final File archive = FileUtil.toFile(getDataObject().getPrimaryFile());
+        final PharSignatures.Verdict known = (archive != null) ? PharSignatures.peek(archive) : null;
+        final PharSignatures.Verdict verdict = (known != null) ? known : this.verdict;
+        if (archive != null && verdict == null) {
+            scheduleVerification(archive);
+        }
+
+        Property<String> signature = new PropertySupport.ReadOnly<String>("pharSignature", String.class, "Signature", "Phar Signature") {
+            @Override
+            public String getValue() throws IllegalAccessException, InvocationTargetException {
+                return verdict != null ? verdict.toString() : NbBundle.getMessage(PharArchiveNode.class, "LBL_Verifying");
+            }
+        };
+
+        def.put(signature);
+
+        final String data = metadata;
+
+        if (pi != null && data != null) {
             Sheet.Set metaset = Sheet.createPropertiesSet();
             metaset.setDisplayName("Metadata");
             metaset.setName("Metadata");
             metaset.setValue("Metadata", "Metadata");
 
-            final String data = String.valueOf(this.base.getMetadata().getValue());
- 
             metaset.put(new PropertySupport.ReadOnly<String>("value", String.class, "value", null) {
                 @Override
                 public String getValue() throws IllegalAccessException, InvocationTargetException {
@@ -91,68 +180,260 @@ final class PharArchiveNode extends DataNode {
                 }
             });
 
-
             sheet.put(metaset);
         }
 
         return sheet;
     }
 
-    @Override
-    public Action getPreferredAction() {
-        return null;
+    /**
+     * Reads the manifest off the calling thread; the sheet is rebuilt once it is available.
+     */
+    private synchronized void scheduleLoad() {
+        if (loadTask == null) {
+            loadTask = RP.post(new Runnable() {
+                @Override
+                public void run() {
+                    loadIndex();
+                }
+            });
+        }
+    }
+
+    /**
+     * Verifies the signature off the calling thread, once per node; the sheet is rebuilt once the verdict is known.
+     * The verdict is remembered, as the rebuilt sheet must not schedule another check if the archive changed again
+     * meanwhile.
+     */
+    private synchronized void scheduleVerification(final File archive) {
+        if (verifyTask == null) {
+            verifyTask = PharSignatures.verify(archive);
+            verifyTask.addTaskListener(new TaskListener() {
+                @Override
+                public void taskFinished(Task task) {
+                    PharSignatures.Verdict known = PharSignatures.peek(archive);
+                    verdict = (known != null) ? known : PharSignatures.check(archive);
+                    setSheet(createSheet());
+                }
+            });
+        }
     }
 
-    private static Children childrenFor(FileObject fo) {
-//        if (!PharFileUtil.isArchiveFile(fo)) {
-        // Maybe corrupt, etc.
-        //          return Children.LEAF;
-        //       }
-        FileObject root = PharFileUtil.getArchiveRoot(fo);
-        if (root != null) {
-            DataFolder df = DataFolder.findFolder(root);
-            return df.createNodeChildren(DataFilter.ALL);
-        } else {
-            return Children.LEAF;
+    private void loadIndex() {
+        File f = FileUtil.toFile(getDataObject().getPrimaryFile());
+        if (f == null) {
+            loadFailed();
+            return;
+        }
+        try {
+            File data = PharImage.of(f);
+            PharFormat pc = PharFormat.detectContainer(data);
+            container = pc;
+            if (pc != PharFormat.UNKNOWN) {
+                setSheet(createSheet());
+                return;
+            }
+            PharIndex pi = PharIndex.get(data);
+            if (pi.getMetadataLength() > 0) {
+                metadata = PharMetadataNode.summary(pi);
+            }
+            index = pi;
+        } catch (IOException | RuntimeException ex) {
+            LOG.log(Level.INFO, "Cannot read manifest of " + f, ex); //NOI18N
+            loadFailed();
+            return;
         }
+        setSheet(createSheet());
+    }
+
+    private void loadFailed() {
+        loadFailed = true;
+        setSheet(createSheet());
+    }
+
+    /**
+     * Drops the manifest, metadata and verdict of the previous version; the rebuilt sheet loads and verifies the
+     * current one. Loads run one at a time, so a load of the old version still in progress is overwritten by the new
+     * one.
+     */
+    private void archiveChanged() {
+        synchronized (this) {
+            index = null;
+            metadata = null;
+            container = null;
+            loadFailed = false;
+            verdict = null;
+            loadTask = null;
+            verifyTask = null;
+        }
+        setSheet(createSheet());
+    }
+
+    @Override
+    public Action getPreferredAction() {
+        return null;
     }
 
     /**
-     * There is no nice way to lazy create delegating node's children. So, in order to fix #83595, here is a little hack
-     * that schedules replacement of this dummy children on addNotify call.
+     * Children of a folder inside the archive. Keys are the entry paths, read straight from the index of the archive
+     * filesystem on a background thread; the children are lazy, so DataObjects and nodes are created only for the rows
+     * which are actually displayed.
      */
-    final static class DummyChildren extends Children implements Runnable {
+    final static class ArchiveChildren extends Children.Keys<String> implements Runnable {
+
+        /**
+         * Key of the "please wait" node shown while the keys are computed
+         */
+        private static final String WAIT_KEY = "\u0000wait"; //NOI18N
+
+        /**
+         * Key of the global metadata node of the archive root
+         */
+        private static final String METADATA_KEY = "\u0000metadata"; //NOI18N
+
+        private final FileObject archive;
+
+        private volatile FileObject folder;
 
-        private PharArchiveNode node;
+        private boolean listening;
+
+        private final FileChangeListener listener = new FileChangeAdapter() {
+            @Override
+            public void fileFolderCreated(FileEvent fe) {
+                RP.post(ArchiveChildren.this);
+            }
+
+            @Override
+            public void fileDataCreated(FileEvent fe) {
+                RP.post(ArchiveChildren.this);
+            }
+
+            @Override
+            public void fileDeleted(FileEvent fe) {
+                RP.post(ArchiveChildren.this);
+            }
+
+            @Override
+            public void fileRenamed(FileRenameEvent fe) {
+                RP.post(ArchiveChildren.this);
+            }
+        };
+
+        /**
+         * @param archive the archive file, its root is mounted lazily; or null if <code>folder</code> is given
+         * @param folder folder inside of the archive or null
+         */
+        ArchiveChildren(FileObject archive, FileObject folder) {
+            super(true);
+            this.archive = archive;
+            this.folder = folder;
+        }
 
         @Override
         protected void addNotify() {
             super.addNotify();
-            assert node != null;
+            setKeys(Collections.singleton(WAIT_KEY));
             RP.post(this);
         }
 
-        private void attachArchiveNode(PharArchiveNode archiveNode) {
-            this.node = archiveNode;
+        @Override
+        protected void removeNotify() {
+            setKeys(Collections.<String>emptySet());
+            super.removeNotify();
         }
 
         @Override
         public void run() {
-            node.setChildren(childrenFor(node.getDataObject().getPrimaryFile()));
+            FileObject f = folder;
+            if (f == null) {
+                f = PharFileUtil.getArchiveRoot(archive);
+                if (f == null) {
+                    // Maybe corrupt, etc.
+                    setKeys(Collections.<String>emptySet());
+                    return;
+                }
+                folder = f;
+            }
+            if (!listening) {
+                listening = true;
+                f.addFileChangeListener(FileUtil.weakFileChangeListener(listener, f));
+            }
+            List<String> keys = keysOf(f);
+            if (archive != null && hasMetadata()) {
+                keys.add(0, METADATA_KEY);
+            }
+            setKeys(keys);
         }
 
-        @Override
-        public boolean add(final Node[] nodes) {
-            // no-op
-            return false;
+        private boolean hasMetadata() {
+            File f = FileUtil.toFile(archive);
+            try {
+                return f != null && PharIndex.get(PharImage.of(f)).getMetadataLength() > 0;
+            } catch (IOException ex) {
+                LOG.log(Level.FINE, null, ex);
+                return false;
+            }
         }
 
-        @Override
-        public boolean remove(final Node[] nodes) {
-            // no-op
-            return false;
+        private static List<String> keysOf(FileObject folder) {
+            List<String> folders = new ArrayList<String>();
+            List<String> files = new ArrayList<String>();
+            String prefix = folder.isRoot() ? "" : folder.getPath() + "/";
+            PharArchiveFileSystem fs = null;
+            try {
+                if (folder.getFileSystem() instanceof PharArchiveFileSystem) {
+                    fs = (PharArchiveFileSystem) folder.getFileSystem();
+                }
+            } catch (FileStateInvalidException ex) {
+                return new ArrayList<String>();
+            }
+            if (fs != null) {
+                for (String name : fs.children(folder.getPath())) {
+                    String path = prefix + name;
+                    (fs.folder(path) ? folders : files).add(path);
+                }
+            } else {
+                for (FileObject child : folder.getChildren()) {
+                    (child.isFolder() ? folders : files).add(child.getPath());
+                }
+            }
+            Collections.sort(folders, String.CASE_INSENSITIVE_ORDER);
+            Collections.sort(files, String.CASE_INSENSITIVE_ORDER);
+            folders.addAll(files);
+            return folders;
         }
 
+        @Override
+        protected Node[] createNodes(String key) {
+            if (WAIT_KEY.equals(key)) {
+                AbstractNode wait = new AbstractNode(Children.LEAF);
+                wait.setDisplayName(NbBundle.getMessage(PharArchiveNode.class, "LBL_Loading"));
+                return new Node[]{wait};
+            }
+            if (METADATA_KEY.equals(key)) {
+                try {
+                    return new Node[]{new PharMetadataNode(PharIndex.get(PharImage.of(FileUtil.toFile(archive))))};
+                } catch (IOException ex) {
+                    LOG.log(Level.FINE, null, ex);
+                    return null;
+                }
+            }
+            FileObject f = folder;
+            try {
+                FileObject fo = (f != null) ? f.getFileSystem().findResource(key) : null;
+                if (fo == null) {
+                    return null;
+                }
+                Node delegate = DataObject.find(fo).getNodeDelegate();
+                if (fo.isFolder()) {
+                    return new Node[]{new FilterNode(delegate, new ArchiveChildren(null, fo))};
+                }
+                return new Node[]{new FilterNode(delegate, Children.LEAF)};
+            } catch (FileStateInvalidException | DataObjectNotFoundException ex) {
+                LOG.log(Level.FINE, null, ex);
+                return null;
+            }
+        }
     }
 
 }
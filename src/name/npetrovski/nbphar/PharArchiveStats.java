@@ -0,0 +1,159 @@
+package name.npetrovski.nbphar;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of one {@link PharArchiveFileSystem}, updated on the hot paths without locking. Totals over all archives
+ * are kept as well, so that they survive unmounting.
+ */
+final class PharArchiveStats {
+
+    private static final LongAdder TOTAL_OPENS = new LongAdder();
+    private static final LongAdder TOTAL_PARSES = new LongAdder();
+    private static final LongAdder TOTAL_READS = new LongAdder();
+
+    private static final long MINUTE = 60000;
+
+    /**
+     * Latency buckets: bucket <code>i</code> holds reads which took less than <code>2^i</code> microseconds
+     */
+    private static final int BUCKETS = 40;
+
+    private final LongAdder opens = new LongAdder();
+    private final LongAdder closes = new LongAdder();
+    private final LongAdder parses = new LongAdder();
+    private final LongAdder reads = new LongAdder();
+    private final LongAdder spillReads = new LongAdder();
+    private final LongAdder spillHits = new LongAdder();
+    private final LongAdder coalescedReads = new LongAdder();
+    private final AtomicLongArray latencies = new AtomicLongArray(BUCKETS);
+
+    private long windowStart = System.currentTimeMillis();
+    private long windowOpens;
+    private long lastWindowOpens;
+
+    void opened() {
+        opens.increment();
+        TOTAL_OPENS.increment();
+        synchronized (this) {
+            roll(System.currentTimeMillis());
+            windowOpens++;
+        }
+    }
+
+    void closed() {
+        closes.increment();
+    }
+
+    void parsed() {
+        parses.increment();
+        TOTAL_PARSES.increment();
+    }
+
+    /**
+     * Records one entry read.
+     *
+     * @param nanos time to open the entry
+     * @param spilled whether the entry was served through a spill file
+     * @param spillHit whether the spill file existed already
+     */
+    void read(long nanos, boolean spilled, boolean spillHit) {
+        reads.increment();
+        TOTAL_READS.increment();
+        if (spilled) {
+            spillReads.increment();
+            if (spillHit) {
+                spillHits.increment();
+            }
+        }
+        long micros = Math.max(1, nanos / 1000);
+        int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+        latencies.incrementAndGet(bucket);
+    }
+
+    /**
+     * Records a read which shared the copy of a concurrent read of the same entry.
+     */
+    void coalesced() {
+        coalescedReads.increment();
+    }
+
+    long getOpens() {
+        return opens.sum();
+    }
+
+    long getCloses() {
+        return closes.sum();
+    }
+
+    long getParses() {
+        return parses.sum();
+    }
+
+    long getReads() {
+        return reads.sum();
+    }
+
+    long getCoalescedReads() {
+        return coalescedReads.sum();
+    }
+
+    synchronized long getOpensLastMinute() {
+        roll(System.currentTimeMillis());
+        return lastWindowOpens;
+    }
+
+    double getSpillHitRatio() {
+        long n = spillReads.sum();
+        return n == 0 ? 0 : (double) spillHits.sum() / n;
+    }
+
+    /**
+     * @param p percentile between 0 and 100
+     * @return upper bound of the latency bucket of the percentile, in milliseconds
+     */
+    double getLatencyMillis(double p) {
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = latencies.get(i);
+            total += counts[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(total * p / 100);
+        long seen = 0;
+        int bucket = 0;
+        for (; bucket < BUCKETS - 1; bucket++) {
+            seen += counts[bucket];
+            if (seen >= rank && seen > 0) {
+                break;
+            }
+        }
+        return (1L << bucket) / 1000.0;
+    }
+
+    static long getTotalOpens() {
+        return TOTAL_OPENS.sum();
+    }
+
+    static long getTotalParses() {
+        return TOTAL_PARSES.sum();
+    }
+
+    static long getTotalReads() {
+        return TOTAL_READS.sum();
+    }
+
+    private void roll(long now) {
+        assert Thread.holdsLock(this);
+        long elapsed = now - windowStart;
+        if (elapsed >= MINUTE) {
+            lastWindowOpens = (elapsed < 2 * MINUTE) ? windowOpens : 0;
+            windowOpens = 0;
+            windowStart = now - elapsed % MINUTE;
+        }
+    }
+}
@@ -1,21 +1,22 @@
 package name.npetrovski.nbphar;
 
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.lang.ref.Reference;
-import java.lang.ref.SoftReference;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
-import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
 import org.openide.filesystems.FileChangeAdapter;
 import org.openide.filesystems.FileChangeListener;
 import org.openide.filesystems.FileEvent;
@@ -25,6 +26,9 @@ import org.openide.filesystems.FileStateInvalidException;
 import org.openide.filesystems.FileSystem;
 import org.openide.filesystems.JarFileSystem;
 import org.openide.filesystems.Repository;
+import org.openide.filesystems.RepositoryEvent;
+import org.openide.filesystems.RepositoryListener;
+import org.openide.filesystems.RepositoryReorderedEvent;
 import org.openide.filesystems.URLMapper;
 import org.openide.util.Exceptions;
 import org.openide.util.lookup.ServiceProvider;
@@ -35,7 +39,44 @@ public class PharArchiveURLMapper extends URLMapper {
 
     static final String PHARARCHIVE_PROTOCOL = "jar";   //NOI18N
 
-    private static Map<File, SoftReference<FileSystem>> mountRoots = new ConcurrentHashMap<File, SoftReference<FileSystem>>();
+    /**
+     * Maximal number of archives kept mounted
+     */
+    private static final int MOUNT_CAPACITY = Integer.getInteger("name.npetrovski.nbphar.mount.capacity", 64); //NOI18N
+
+    /**
+     * Mounted archives. Archives with living FileObjects are never evicted, and evicted ones are kept softly, so that
+     * an archive is not mounted twice while anything still refers to its filesystem.
+     */
+    private static final PharMountCache<File, JFSReference> mountRoots = new PharMountCache<File, JFSReference>(
+            MOUNT_CAPACITY, new Predicate<JFSReference>() {
+        @Override
+        public boolean test(JFSReference ref) {
+            FileSystem fs = ref.get();
+            return fs instanceof PharArchiveFileSystem && ((PharArchiveFileSystem) fs).getAliveCount() > 0;
+        }
+    }, true);
+
+    /**
+     * URL string to FileObject resolutions, invalidated when the archive changes
+     */
+    private static final PharMountCache<String, Resolution> resolved = new PharMountCache<String, Resolution>(
+            Integer.getInteger("name.npetrovski.nbphar.resolution.capacity", 1024)); //NOI18N
+
+    private static final PharURLStreamHandler HANDLER = PharURLStreamHandler.getDefault();
+
+    /**
+     * ASCII characters which may appear unquoted in the path component of an URI
+     */
+    private static final boolean[] PATH_CHARS = new boolean[128];
+
+    static {
+        String legal = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789" //NOI18N
+                + "-_.!~*'()" + ",;:$&+=" + "/@"; //NOI18N
+        for (int i = 0; i < legal.length(); i++) {
+            PATH_CHARS[legal.charAt(i)] = true;
+        }
+    }
 
     public @Override
     URL getURL(FileObject fo, int type) {
@@ -48,19 +89,17 @@ public class PharArchiveURLMapper extends URLMapper {
                         PharArchiveFileSystem jfs = (PharArchiveFileSystem) fs;
                         File archiveFile = jfs.getArchiveFile();
                         if (isRoot(archiveFile)) {
-                            URI uri = archiveFile.toURI();
-                            URL url;
-                            /*if (fo.getMIMEType().equals("application/x-java-archive")) {
-                             String x ="jar:aar:file:";
-                             return new URL(x);
-                             }*/
-                            url = new URL(PHARARCHIVE_PROTOCOL, null, uri.getPort(), "file:" + uri.getPath() + "!/"
-                                    + new URI(null, fo.getPath(), null).getRawSchemeSpecificPart()
-                                    + (fo.isFolder() && !fo.isRoot() ? "/" : ""), new PharURLStreamHandler()); // NOI18N
-                            return url;
+                            String prefix = jfs.getURLPrefix();
+                            String entry = encodeEntryPath(fo.getPath());
+                            StringBuilder spec = new StringBuilder(prefix.length() + entry.length() + 1);
+                            spec.append(prefix).append(entry);
+                            if (fo.isFolder() && !fo.isRoot()) {
+                                spec.append('/');
+                            }
+                            return new URL(PHARARCHIVE_PROTOCOL, null, -1, spec.toString(), HANDLER);
                         }
                     }
-                } catch (FileStateInvalidException | URISyntaxException | MalformedURLException e) {
+                } catch (FileStateInvalidException | MalformedURLException e) {
                     Exceptions.printStackTrace(e);
                 }
             }
@@ -69,53 +108,232 @@ public class PharArchiveURLMapper extends URLMapper {
     }
 
     public @Override
-    FileObject[] getFileObjects(URL url) {
+    FileObject[] getFileObjects(final URL url) {
         assert url != null;
         String protocol = url.getProtocol();
-        if (PHARARCHIVE_PROTOCOL.equals(protocol) || url.toExternalForm().startsWith("jar:" + PHARARCHIVE_PROTOCOL)) {
-            String path = url.getPath();
-            int index = path.lastIndexOf('!');
-            if (index >= 0) {
+        String external = url.toExternalForm();
+        if (PHARARCHIVE_PROTOCOL.equals(protocol) || external.startsWith("jar:" + PHARARCHIVE_PROTOCOL)) {
+            PharMountCache.Factory<String, Resolution> factory = new PharMountCache.Factory<String, Resolution>() {
+                @Override
+                public Resolution create(String key) throws IOException {
+                    return resolve(url);
+                }
+            };
+            Resolution resolution = null;
+            try {
+                // a hit counts as a use, so that frequently resolved URLs are the last to be evicted
+                resolution = resolved.get(external, factory);
+                if (resolution != null && resolution.fo != null && !resolution.fo.isValid()) {
+                    resolved.remove(external, resolution);
+                    resolution = resolved.get(external, factory);
+                }
+            } catch (IOException e) {
+                //ModuleLayeredFileSystem.err.log(Level.INFO, "checking " + url, e);
+            }
+            if (resolution != null && resolution.fo != null) {
+                return new FileObject[]{resolution.fo};
+            }
+        }
+        return null;
+    }
+
+    private static Resolution resolve(URL url) throws IOException {
+        String path = url.getPath();
+        int index = path.lastIndexOf('!');
+        if (index >= 0) {
+            String archivePath = path.substring(0, index);
+            File mounted = toArchiveFile(archivePath);
+            if (mounted != null && isRoot(mounted)) {
+                // no URI, FileObject or MIME type of the archive needed once it is mounted
+                return resolve(mounted, getFileSystem(mounted, false), path, index);
+            }
+            try {
+                URL archiveFileURL;
+                URI archiveFileURI = new URI(archivePath);
                 try {
-                    URL archiveFileURL;
-                    URI archiveFileURI = new URI(path.substring(0, index));
-                    try {
-                        if (archiveFileURI.getScheme().equals(PHARARCHIVE_PROTOCOL)) {
-                            archiveFileURL = new URL(PHARARCHIVE_PROTOCOL, null, -1, path.substring(4, index), new PharURLStreamHandler());
-                        } else {
-                            archiveFileURL = archiveFileURI.toURL();
-                        }
-                    } catch (IllegalArgumentException x) {
-                        //ModuleLayeredFileSystem.err.log(Level.INFO, "checking " + archiveFileURI, x);
-                        return null;
-                    }
-                    FileObject fo = URLMapper.findFileObject(archiveFileURL);
-                    if (fo == null || fo.isVirtual()) {
-                        return null;
-                    }
-                    boolean isJar = fo.getMIMEType().equals("application/x-java-archive");
-                    File archiveFile = org.openide.filesystems.FileUtil.toFile(fo);
-                    if (archiveFile == null) {
-                        archiveFile = copyJAR(fo, archiveFileURI, false);
-                    }
-                    // XXX new URI("substring").getPath() might be better?
-                    String offset = path.length() > index + 2 ? URLDecoder.decode(path.substring(index + 2), "UTF-8") : "";   //NOI18N
-                    FileSystem fs = getFileSystem(archiveFile, isJar);
-                    FileObject resource = fs.findResource(offset);
-                    //FileObject resource = fs.getRoot();
-                    if (resource != null) {
-                        return new FileObject[]{resource};
+                    if (archivePath.startsWith(PHARARCHIVE_PROTOCOL + ":")) {
+                        archiveFileURL = new URL(PHARARCHIVE_PROTOCOL, null, -1, path.substring(4, index), HANDLER);
+                    } else {
+                        archiveFileURL = archiveFileURI.toURL();
                     }
-                } catch (IOException e) {
-                    //ModuleLayeredFileSystem.err.log(Level.INFO, "checking " + url, e);
-                } catch (URISyntaxException e) {
-                    Exceptions.printStackTrace(e);
+                } catch (IllegalArgumentException x) {
+                    //ModuleLayeredFileSystem.err.log(Level.INFO, "checking " + archiveFileURI, x);
+                    return null;
+                }
+                FileObject fo = URLMapper.findFileObject(archiveFileURL);
+                if (fo == null || fo.isVirtual()) {
+                    return null;
+                }
+                boolean isJar = fo.getMIMEType().equals("application/x-java-archive");
+                if (!isJar && !PharFileUtil.isArchiveFile(fo)) {
+                    // plain zips and tars are left to the other mappers
+                    return null;
+                }
+                File archiveFile = org.openide.filesystems.FileUtil.toFile(fo);
+                if (archiveFile == null) {
+                    archiveFile = copyJAR(fo, archiveFileURI, false);
                 }
+                return resolve(archiveFile, getFileSystem(archiveFile, isJar), path, index);
+            } catch (URISyntaxException e) {
+                Exceptions.printStackTrace(e);
             }
         }
         return null;
     }
 
+    /**
+     * Looks the entry up in a mounted archive. A missing entry is resolved to a {@link Resolution} without a file
+     * object, so that repeated lookups do not go to the archive again.
+     */
+    private static Resolution resolve(File archiveFile, FileSystem fs, String path, int index) {
+        return new Resolution(archiveFile, fs.findResource(decodeEntryPath(path, index + 2)));
+    }
+
+    /**
+     * Parses the archive part of a <code>jar:file:...!/</code> URL by hand.
+     *
+     * @return the local archive file, or null if the part is not a plain <code>file:</code> URL
+     */
+    private static File toArchiveFile(String archivePath) {
+        int from;
+        if (archivePath.startsWith("file:///")) { //NOI18N
+            from = 7;
+        } else if (archivePath.startsWith("file:/") && !archivePath.startsWith("file://")) { //NOI18N
+            from = 5;
+        } else {
+            return null;
+        }
+        try {
+            String path = decodeEntryPath(archivePath, from);
+            if (File.separatorChar == '\\' && path.length() > 2 && path.charAt(2) == ':') {
+                // "/C:/..."
+                path = path.substring(1);
+            }
+            return new File(path);
+        } catch (IllegalArgumentException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Quotes an entry path like <code>new URI(null, path, null).getRawSchemeSpecificPart()</code> used to, except that
+     * '?', '[' and ']' are quoted as well so that the entry survives {@link URL#getPath()}. A path which needs no
+     * quoting is returned as is.
+     */
+    static String encodeEntryPath(String path) {
+        int i = 0;
+        while (i < path.length() && isPathChar(path.charAt(i))) {
+            i++;
+        }
+        if (i == path.length()) {
+            return path;
+        }
+
+        StringBuilder sb = new StringBuilder(path.length() + 16);
+        sb.append(path, 0, i);
+        for (; i < path.length(); i++) {
+            char c = path.charAt(i);
+            if (isPathChar(c)) {
+                sb.append(c);
+            } else if (Character.isHighSurrogate(c) && i + 1 < path.length()) {
+                appendEscaped(sb, path.substring(i, i + 2));
+                i++;
+            } else {
+                appendEscaped(sb, String.valueOf(c));
+            }
+        }
+        return sb.toString();
+    }
+
+    private static boolean isPathChar(char c) {
+        if (c < 128) {
+            return PATH_CHARS[c];
+        }
+        return !Character.isISOControl(c) && !Character.isSpaceChar(c);
+    }
+
+    private static void appendEscaped(StringBuilder sb, String chars) {
+        byte[] bytes = chars.getBytes(StandardCharsets.UTF_8);
+        for (byte b : bytes) {
+            sb.append('%');
+            sb.append(Character.toUpperCase(Character.forDigit((b >> 4) & 0xF, 16)));
+            sb.append(Character.toUpperCase(Character.forDigit(b & 0xF, 16)));
+        }
+    }
+
+    /**
+     * Decodes the entry part of <code>path</code> starting at <code>from</code>. Only %xx escapes, as produced by
+     * {@link #encodeEntryPath(String)}, are decoded; unlike the URLDecoder a '+' is kept. Plain paths, which is the
+     * usual case, are returned as is.
+     *
+     * @throws IllegalArgumentException on a malformed escape
+     */
+    static String decodeEntryPath(String path, int from) {
+        if (path.length() <= from) {
+            return "";
+        }
+        int i = path.indexOf('%', from);
+        if (i < 0) {
+            return path.substring(from);
+        }
+
+        StringBuilder sb = new StringBuilder(path.length() - from);
+        sb.append(path, from, i);
+        byte[] bytes = new byte[(path.length() - i) / 3];
+        while (i < path.length()) {
+            char c = path.charAt(i);
+            if (c != '%') {
+                sb.append(c);
+                i++;
+                continue;
+            }
+            int n = 0;
+            while (i + 2 < path.length() && path.charAt(i) == '%') {
+                int hi = Character.digit(path.charAt(i + 1), 16);
+                int lo = Character.digit(path.charAt(i + 2), 16);
+                if (hi < 0 || lo < 0) {
+                    throw new IllegalArgumentException("Malformed escape in " + path); //NOI18N
+                }
+                bytes[n++] = (byte) ((hi << 4) | lo);
+                i += 3;
+            }
+            if (n == 0) {
+                throw new IllegalArgumentException("Incomplete escape in " + path); //NOI18N
+            }
+            sb.append(new String(bytes, 0, n, StandardCharsets.UTF_8));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Invalidates cached URL resolutions of entries of the archive, found and missing alike. Called when the archive
+     * is released and whenever its filesystem sees it change, be it by its own writes or by another process.
+     */
+    static void forgetResolutions(File archiveFile) {
+        final File archive = archiveFile.getAbsoluteFile();
+        resolved.removeIf(new Predicate<Resolution>() {
+            @Override
+            public boolean test(Resolution r) {
+                return r.archive.getAbsoluteFile().equals(archive);
+            }
+        });
+    }
+
+    /**
+     * Cached result of {@link #getFileObjects(URL)}; <code>fo</code> is null for an entry missing in the archive.
+     */
+    private static final class Resolution {
+
+        final File archive;
+
+        final FileObject fo;
+
+        Resolution(File archive, FileObject fo) {
+            this.archive = archive;
+            this.fo = fo;
+        }
+    }
+
     /**
      * #177052 - not necessary to be synchronized.
      */
@@ -123,49 +341,165 @@ public class PharArchiveURLMapper extends URLMapper {
         return mountRoots.containsKey(file);
     }
 
-    private static synchronized FileSystem getFileSystem(File file, boolean isJar) throws IOException {
-        Reference<FileSystem> reference = mountRoots.get(file);
-        FileSystem jfs = null;
-        if (reference == null || (jfs = reference.get()) == null) {
-            jfs = findAltArchiveFileSystemInRepository(file);
-            if (jfs == null) {
-                File aRoot = org.openide.filesystems.FileUtil.normalizeFile(file);
-                if (isJar) {
-                    jfs = new JarFileSystem(aRoot);
-                } else {
-                    jfs = new PharArchiveFileSystem(aRoot);
+    private static FileSystem getFileSystem(File file, final boolean isJar) throws IOException {
+        final PharTrace.Span span = PharTrace.getDefault().mount(file).cacheHit(true);
+        final FileSystem[] created = new FileSystem[1];
+        try {
+            FileSystem fs = mountRoots.get(file, new PharMountCache.Factory<File, JFSReference>() {
+                @Override
+                public JFSReference create(File key) throws IOException {
+                    span.cacheHit(false);
+                    FileSystem jfs = findAltArchiveFileSystemInRepository(key);
+                    if (jfs == null) {
+                        File aRoot = org.openide.filesystems.FileUtil.normalizeFile(key);
+                        if (isJar) {
+                            jfs = new JarFileSystem(aRoot);
+                        } else {
+                            jfs = new PharArchiveFileSystem(aRoot);
+                        }
+                    }
+                    created[0] = jfs;
+                    return new JFSReference(jfs);
+                }
+            }).get();
+            if (created[0] instanceof PharArchiveFileSystem) {
+                PharManagement.archiveMounted(file, (PharArchiveFileSystem) created[0]);
+                PharSignatures.verify(file);
+                if (PharVerifier.VERIFY_MOUNTS) {
+                    PharVerifier.verifyInBackground(file);
                 }
+                // mounting may have evicted other archives
+                PharManagement.retainArchives(new Predicate<File>() {
+                    @Override
+                    public boolean test(File f) {
+                        return isRoot(f);
+                    }
+                });
             }
-            mountRoots.put(file, new JFSReference(jfs));
+            return fs;
+        } finally {
+            span.end();
         }
-        return jfs;
     }
 
-    // More or less copied from URLMapper:
+    /**
+     * Mounts a local archive file, or returns the filesystem which already has it mounted.
+     *
+     * @param archiveFile the archive
+     * @return the filesystem of the archive
+     * @throws IOException if the archive cannot be mounted
+     */
+    static FileSystem mount(File archiveFile) throws IOException {
+        return getFileSystem(org.openide.filesystems.FileUtil.normalizeFile(archiveFile), false);
+    }
+
+    /**
+     * @return counters of the mount table
+     */
+    static PharMountCache.Statistics getMountStatistics() {
+        return mountRoots.getStatistics();
+    }
+
+    /**
+     * @return counters of the cache of resolved entry URLs
+     */
+    static PharMountCache.Statistics getResolutionStatistics() {
+        return resolved.getStatistics();
+    }
+
     private static PharArchiveFileSystem findAltArchiveFileSystemInRepository(File aarFile) {
+        PharArchiveFileSystem jfs = RepositoryIndex.INSTANCE.find(aarFile);
+        if (jfs != null && aarFile.equals(jfs.getArchiveFile())) {
+            return jfs;
+        }
+        return null;
+    }
+
+    /**
+     * Archive file to filesystem map of all PharArchiveFileSystems registered in the Repository. Kept up to date by
+     * repository listeners, so that the lookup does not depend on the number of registered filesystems.
+     */
+    private static final class RepositoryIndex implements RepositoryListener, PropertyChangeListener {
+
+        static final RepositoryIndex INSTANCE = new RepositoryIndex();
+
+        private final Map<File, PharArchiveFileSystem> index = new ConcurrentHashMap<File, PharArchiveFileSystem>();
+
+        private volatile boolean initialized;
+
+        PharArchiveFileSystem find(File archiveFile) {
+            if (!initialized) {
+                init();
+            }
+            return index.get(archiveFile);
+        }
+
         @SuppressWarnings("deprecation") // for compat only
-        Enumeration<? extends FileSystem> en = Repository.getDefault().getFileSystems();
-        while (en.hasMoreElements()) {
-            FileSystem fs = en.nextElement();
+        private synchronized void init() {
+            if (initialized) {
+                return;
+            }
+            Repository repository = Repository.getDefault();
+            repository.addRepositoryListener(this);
+            Enumeration<? extends FileSystem> en = repository.getFileSystems();
+            while (en.hasMoreElements()) {
+                add(en.nextElement());
+            }
+            initialized = true;
+        }
+
+        private void add(FileSystem fs) {
             if (fs instanceof PharArchiveFileSystem) {
                 PharArchiveFileSystem jfs = (PharArchiveFileSystem) fs;
-                if (aarFile.equals(jfs.getArchiveFile())) {
-                    return jfs;
-                }
+                jfs.addPropertyChangeListener(this);
+                index.put(jfs.getArchiveFile(), jfs);
+            }
+        }
+
+        private void remove(FileSystem fs) {
+            if (fs instanceof PharArchiveFileSystem) {
+                fs.removePropertyChangeListener(this);
+                index.values().remove(fs);
+            }
+        }
+
+        @Override
+        public void fileSystemAdded(RepositoryEvent ev) {
+            add(ev.getFileSystem());
+        }
+
+        @Override
+        public void fileSystemRemoved(RepositoryEvent ev) {
+            remove(ev.getFileSystem());
+        }
+
+        @Override
+        public void fileSystemPoolReordered(RepositoryReorderedEvent ev) {
+        }
+
+        @Override
+        public void propertyChange(PropertyChangeEvent evt) {
+            // the archive file of a registered filesystem has been changed => re-key it;
+            // system name is the absolute path and it is set before the archive file itself
+            if (FileSystem.PROP_SYSTEM_NAME.equals(evt.getPropertyName()) && evt.getNewValue() != null) {
+                PharArchiveFileSystem jfs = (PharArchiveFileSystem) evt.getSource();
+                index.values().remove(jfs);
+                index.put(new File((String) evt.getNewValue()), jfs);
             }
         }
-        return null;
     }
 
     /**
      * After deleting and recreating of phar file there must be properly refreshed cached map "mountRoots".
      */
-    private static class JFSReference extends SoftReference<FileSystem> {
+    private static class JFSReference {
+
+        private final FileSystem jfs;
 
         private FileChangeListener fcl;
 
         public JFSReference(FileSystem jfs) throws IOException {
-            super(jfs);
+            this.jfs = jfs;
             final File root;
             if (jfs instanceof PharArchiveFileSystem) {
                 root = ((PharArchiveFileSystem) jfs).getArchiveFile();
@@ -179,7 +513,7 @@ public class PharArchiveURLMapper extends URLMapper {
                 for (Map.Entry<URI, File> entry : copiedJARs.entrySet()) {
                     if (entry.getValue().equals(root)) {
                         nestedRootURI = entry.getKey();
-                        URL nestedRootURL = new URL(PHARARCHIVE_PROTOCOL, null, -1, nestedRootURI.toString().substring(4), new PharURLStreamHandler());
+                        URL nestedRootURL = new URL(PHARARCHIVE_PROTOCOL, null, -1, nestedRootURI.toString().substring(4), HANDLER);
                         rootFo = URLMapper.findFileObject(nestedRootURL);
                     }
                 }
@@ -202,6 +536,7 @@ public class PharArchiveURLMapper extends URLMapper {
 
                     @Override
                     public void fileChanged(FileEvent fe) {
+                        forgetResolutions(root);
                         if (nestedRootURIFinal != null) {
                             try {
                                 // update copy of nested aar and re-register root
@@ -219,18 +554,21 @@ public class PharArchiveURLMapper extends URLMapper {
             }
         }
 
+        FileSystem get() {
+            return jfs;
+        }
+
         void releaseMe(final File root) {
-            FileSystem jfs = get();
-            if (jfs != null) {
-                synchronized (PharArchiveURLMapper.class) {
-                    File keyToRemove;
-                    if (jfs instanceof PharArchiveFileSystem) {
-                        keyToRemove = (root != null) ? root : ((PharArchiveFileSystem) jfs).getArchiveFile();
-                    } else {
-                        keyToRemove = (root != null) ? root : ((JarFileSystem) jfs).getJarFile();
-                    }
-                    mountRoots.remove(keyToRemove);
-                }
+            File keyToRemove;
+            if (jfs instanceof PharArchiveFileSystem) {
+                keyToRemove = (root != null) ? root : ((PharArchiveFileSystem) jfs).getArchiveFile();
+            } else {
+                keyToRemove = (root != null) ? root : ((JarFileSystem) jfs).getJarFile();
+            }
+            mountRoots.remove(keyToRemove, this);
+            forgetResolutions(keyToRemove);
+            if (jfs instanceof PharArchiveFileSystem && !isRoot(keyToRemove)) {
+                PharManagement.archiveUnmounted(keyToRemove);
             }
         }
     }
@@ -0,0 +1,522 @@
+package name.npetrovski.nbphar;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import name.npetrovski.jphar.PharCompression;
+import name.npetrovski.jphar.PharSignatureType;
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream;
+
+/**
+ * Packs a directory tree into a native phar archive.
+ * <p>
+ * Entries are compressed in parallel on a {@link ForkJoinPool}, at most a few per worker ahead of the writer, and the
+ * results are appended in order to a spool file as they complete; entries larger than {@link #STREAM_THRESHOLD} are
+ * compressed by the writer itself straight into the spool. CRCs are computed while reading. Since the manifest, which
+ * precedes the bodies, needs the compressed sizes, the archive is written once all bodies are spooled: stub, manifest
+ * and bodies go sequentially to the output channel, through the digest of the signature.
+ * <pre>
+ * new PharBuilder(dir).compression(PharCompression.GZIP).signature(PharSignatureType.SHA1).build(target);
+ * </pre>
+ */
+public final class PharBuilder {
+
+    private static final String DEFAULT_STUB = "<?php\n__HALT_COMPILER(); ?>\r\n"; //NOI18N
+
+    /**
+     * API version 1.1.1
+     */
+    private static final byte[] API_VERSION = {0x11, 0x10};
+
+    private static final int SIGNATURE_FLAG = 0x00010000;
+
+    /**
+     * rw-r--r--
+     */
+    private static final int FILE_PERMISSIONS = 0x1A4;
+
+    /**
+     * Entries larger than this are not held in memory, the writer compresses them into the spool itself
+     */
+    static final long STREAM_THRESHOLD = 8L * 1024 * 1024;
+
+    /**
+     * Compressed entries waiting for the writer, per worker
+     */
+    private static final int WINDOW_PER_WORKER = 4;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final byte[] SIGNATURE_MAGIC = "GBMB".getBytes(StandardCharsets.US_ASCII); //NOI18N
+
+    private final File source;
+
+    private PharCompression compression = PharCompression.NONE;
+
+    private PharSignatureType signature = PharSignatureType.SHA1;
+
+    private String stub = DEFAULT_STUB;
+
+    private String alias;
+
+    private FileFilter filter;
+
+    private ForkJoinPool pool;
+
+    /**
+     * @param source directory whose content becomes the archive root
+     */
+    public PharBuilder(File source) {
+        this.source = source;
+    }
+
+    public PharBuilder compression(PharCompression compression) {
+        this.compression = compression;
+        return this;
+    }
+
+    /**
+     * @param signature signature type or null for an unsigned archive
+     */
+    public PharBuilder signature(PharSignatureType signature) {
+        this.signature = signature;
+        return this;
+    }
+
+    /**
+     * @param stub PHP code ending with <code>__HALT_COMPILER();</code>, optionally followed by a closing tag
+     */
+    public PharBuilder stub(String stub) {
+        this.stub = stub;
+        return this;
+    }
+
+    /**
+     * @param alias alias of the archive; the target file name by default
+     */
+    public PharBuilder alias(String alias) {
+        this.alias = alias;
+        return this;
+    }
+
+    /**
+     * @param filter files and folders to pack, all by default
+     */
+    public PharBuilder filter(FileFilter filter) {
+        this.filter = filter;
+        return this;
+    }
+
+    /**
+     * @param pool pool compressing the entries, the common pool by default
+     */
+    public PharBuilder pool(ForkJoinPool pool) {
+        this.pool = pool;
+        return this;
+    }
+
+    /**
+     * Builds the archive into a temporary file which then replaces <code>target</code>.
+     *
+     * @return number of entries
+     */
+    public int build(File target) throws IOException {
+        File tmp = File.createTempFile(target.getName(), ".tmp", target.getAbsoluteFile().getParentFile()); //NOI18N
+        boolean done = false;
+        try {
+            int count;
+            FileChannel out = new RandomAccessFile(tmp, "rw").getChannel(); //NOI18N
+            try {
+                out.truncate(0);
+                count = build(out, alias != null ? alias : target.getName());
+                out.force(false);
+            } finally {
+                out.close();
+            }
+            try {
+                Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            done = true;
+            return count;
+        } finally {
+            if (!done && !tmp.delete()) {
+                tmp.deleteOnExit();
+            }
+        }
+    }
+
+    /**
+     * Writes the archive to the channel, sequentially.
+     *
+     * @return number of entries
+     */
+    public int build(WritableByteChannel out) throws IOException {
+        return build(out, alias != null ? alias : ""); //NOI18N
+    }
+
+    private int build(WritableByteChannel out, String archiveAlias) throws IOException {
+        if (!source.isDirectory()) {
+            throw new IOException("Not a directory: " + source); //NOI18N
+        }
+        if (!stub.contains("__HALT_COMPILER();")) { //NOI18N
+            throw new IllegalArgumentException("The stub does not end with __HALT_COMPILER();"); //NOI18N
+        }
+        List<Source> files = new ArrayList<Source>();
+        collect(source, "", files); //NOI18N
+        if (files.isEmpty()) {
+            throw new IOException("Nothing to pack in " + source); //NOI18N
+        }
+
+        File spoolFile = File.createTempFile("phar", ".spool"); //NOI18N
+        try {
+            FileChannel spool = new RandomAccessFile(spoolFile, "rw").getChannel(); //NOI18N
+            try {
+                List<Body> bodies = compressAll(files, Channels.newOutputStream(spool));
+                MessageDigest md = (signature != null) ? digest(signature) : null;
+                write(out, md, stub.getBytes(StandardCharsets.UTF_8));
+                write(out, md, manifest(bodies, archiveAlias));
+                ByteBuffer buf = ByteBuffer.allocate(BUFFER_SIZE);
+                spool.position(0);
+                while (spool.read(buf) >= 0) {
+                    buf.flip();
+                    if (md != null) {
+                        md.update(buf.array(), 0, buf.limit());
+                    }
+                    while (buf.hasRemaining()) {
+                        out.write(buf);
+                    }
+                    buf.clear();
+                }
+                if (md != null) {
+                    ByteArrayOutputStream trailer = new ByteArrayOutputStream();
+                    trailer.write(md.digest());
+                    writeLEInt(trailer, signatureFlag(signature));
+                    trailer.write(SIGNATURE_MAGIC);
+                    write(out, null, trailer.toByteArray());
+                }
+                return bodies.size();
+            } finally {
+                spool.close();
+            }
+        } finally {
+            if (!spoolFile.delete()) {
+                spoolFile.deleteOnExit();
+            }
+        }
+    }
+
+    private void collect(File dir, String prefix, List<Source> files) throws IOException {
+        File[] children = dir.listFiles(filter);
+        if (children == null) {
+            throw new IOException("Cannot list " + dir); //NOI18N
+        }
+        Arrays.sort(children);
+        for (File f : children) {
+            String name = prefix + f.getName();
+            if (f.isDirectory()) {
+                collect(f, name + "/", files); //NOI18N
+            } else if (f.isFile()) {
+                if (f.length() > 0xFFFFFFFFL) {
+                    throw new IOException("Entry larger than 4 GB: " + f); //NOI18N
+                }
+                files.add(new Source(f, name));
+            }
+        }
+    }
+
+    /**
+     * Compresses the files on the pool and appends the bodies to the spool in order.
+     */
+    private List<Body> compressAll(List<Source> files, OutputStream spool) throws IOException {
+        ForkJoinPool p = (pool != null) ? pool : ForkJoinPool.commonPool();
+        int window = Math.max(2, p.getParallelism() * WINDOW_PER_WORKER);
+        Deque<ForkJoinTask<Body>> pending = new ArrayDeque<ForkJoinTask<Body>>();
+        List<Body> bodies = new ArrayList<Body>(files.size());
+        try {
+            for (final Source s : files) {
+                if (s.file.length() > STREAM_THRESHOLD) {
+                    // keep the order: drain what is in flight, then stream this one
+                    while (!pending.isEmpty()) {
+                        bodies.add(append(pending.removeFirst(), spool));
+                    }
+                    bodies.add(stream(s, spool));
+                    continue;
+                }
+                pending.addLast(p.submit(new Callable<Body>() {
+                    @Override
+                    public Body call() throws IOException {
+                        return compress(s);
+                    }
+                }));
+                if (pending.size() >= window) {
+                    bodies.add(append(pending.removeFirst(), spool));
+                }
+            }
+            while (!pending.isEmpty()) {
+                bodies.add(append(pending.removeFirst(), spool));
+            }
+            spool.flush();
+            return bodies;
+        } finally {
+            for (ForkJoinTask<Body> t : pending) {
+                t.cancel(true);
+            }
+        }
+    }
+
+    private static Body append(ForkJoinTask<Body> task, OutputStream spool) throws IOException {
+        Body body;
+        try {
+            body = task.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException(ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IOException(ex.getCause());
+        }
+        spool.write(body.data, 0, body.data.length);
+        body.data = null;
+        return body;
+    }
+
+    private Body compress(Source s) throws IOException {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream((int) Math.min(s.file.length(), STREAM_THRESHOLD) + 64);
+        Body body = encode(s, buf);
+        body.data = buf.toByteArray();
+        return body;
+    }
+
+    private Body stream(Source s, OutputStream spool) throws IOException {
+        return encode(s, spool);
+    }
+
+    private Body encode(Source s, OutputStream target) throws IOException {
+        CountingOutputStream counter = new CountingOutputStream(target);
+        OutputStream os = compressor(counter, compression);
+        CRC32 crc = new CRC32();
+        long size = 0;
+        InputStream is = new FileInputStream(s.file);
+        try {
+            byte[] buf = new byte[BUFFER_SIZE];
+            int n;
+            while ((n = is.read(buf)) != -1) {
+                crc.update(buf, 0, n);
+                os.write(buf, 0, n);
+                size += n;
+            }
+        } finally {
+            is.close();
+        }
+        if (os != counter) {
+            os.close(); // finishes the compressed stream; the counter does not close its target
+        }
+        Body body = new Body(s.name);
+        body.size = size;
+        body.compressedSize = counter.count;
+        body.crc = (int) crc.getValue();
+        body.time = (int) (s.file.lastModified() / 1000);
+        return body;
+    }
+
+    private byte[] manifest(List<Body> bodies, String archiveAlias) throws IOException {
+        ByteArrayOutputStream records = new ByteArrayOutputStream(bodies.size() * 64);
+        int flags = FILE_PERMISSIONS | flagOf(compression);
+        for (Body b : bodies) {
+            byte[] name = b.name.getBytes(StandardCharsets.UTF_8);
+            writeLEInt(records, name.length);
+            records.write(name);
+            writeLEInt(records, (int) b.size);
+            writeLEInt(records, b.time);
+            writeLEInt(records, (int) b.compressedSize);
+            writeLEInt(records, b.crc);
+            writeLEInt(records, flags);
+            writeLEInt(records, 0); // no metadata
+        }
+
+        byte[] aliasBytes = archiveAlias.getBytes(StandardCharsets.UTF_8);
+        int globalFlags = flagOf(compression) | ((signature != null) ? SIGNATURE_FLAG : 0);
+        ByteArrayOutputStream manifest = new ByteArrayOutputStream(records.size() + aliasBytes.length + 32);
+        int length = 4 + API_VERSION.length + 4 + 4 + aliasBytes.length + 4 + records.size();
+        writeLEInt(manifest, length);
+        writeLEInt(manifest, bodies.size());
+        manifest.write(API_VERSION);
+        writeLEInt(manifest, globalFlags);
+        writeLEInt(manifest, aliasBytes.length);
+        manifest.write(aliasBytes);
+        writeLEInt(manifest, 0); // no metadata
+        records.writeTo(manifest);
+        return manifest.toByteArray();
+    }
+
+    /**
+     * Wraps the stream into the encoder of phar bodies: raw deflate for gzip entries, a bzip2 stream for bzip2 ones.
+     * Closing the returned stream finishes the encoding and closes <code>out</code>.
+     */
+    static OutputStream compressor(OutputStream out, PharCompression compression) throws IOException {
+        if (compression == PharCompression.GZIP) {
+            final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+            return new DeflaterOutputStream(out, deflater, BUFFER_SIZE) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        deflater.end();
+                    }
+                }
+            };
+        }
+        if (compression == PharCompression.BZIP2) {
+            return new BZip2CompressorOutputStream(out);
+        }
+        return out;
+    }
+
+    static int flagOf(PharCompression compression) {
+        if (compression == PharCompression.GZIP) {
+            return 0x1000;
+        }
+        if (compression == PharCompression.BZIP2) {
+            return 0x2000;
+        }
+        return 0;
+    }
+
+    /**
+     * Signature type as PHP numbers it.
+     */
+    private static int signatureFlag(PharSignatureType type) {
+        switch (type) {
+            case MD5:
+                return 0x0001;
+            case SHA1:
+                return 0x0002;
+            case SHA256:
+                return 0x0003;
+            case SHA512:
+                return 0x0004;
+            default:
+                throw new IllegalArgumentException(type.name());
+        }
+    }
+
+    private static MessageDigest digest(PharSignatureType type) throws IOException {
+        try {
+            return MessageDigest.getInstance(type.getAlgorithm());
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IOException(ex);
+        }
+    }
+
+    private static void write(WritableByteChannel out, MessageDigest md, byte[] data) throws IOException {
+        if (md != null) {
+            md.update(data);
+        }
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        while (buf.hasRemaining()) {
+            out.write(buf);
+        }
+    }
+
+    private static void writeLEInt(ByteArrayOutputStream out, int v) {
+        out.write(v & 0xFF);
+        out.write((v >>> 8) & 0xFF);
+        out.write((v >>> 16) & 0xFF);
+        out.write((v >>> 24) & 0xFF);
+    }
+
+    private static final class Source {
+
+        final File file;
+        final String name;
+
+        Source(File file, String name) {
+            this.file = file;
+            this.name = name;
+        }
+    }
+
+    /**
+     * Manifest record of a compressed entry, with the body until it is spooled.
+     */
+    private static final class Body {
+
+        final String name;
+        long size;
+        long compressedSize;
+        int crc;
+        int time;
+        byte[] data;
+
+        Body(String name) {
+            this.name = name;
+        }
+    }
+
+    /**
+     * Counts the compressed bytes; never closes the target, which may be the spool.
+     */
+    private static final class CountingOutputStream extends OutputStream {
+
+        private final OutputStream out;
+        long count;
+
+        CountingOutputStream(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+}
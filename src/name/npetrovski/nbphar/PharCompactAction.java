@@ -0,0 +1,65 @@
+package name.npetrovski.nbphar;
+
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.io.File;
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.openide.awt.ActionID;
+import org.openide.awt.ActionReference;
+import org.openide.awt.ActionRegistration;
+import org.openide.awt.StatusDisplayer;
+import org.openide.filesystems.FileSystem;
+import org.openide.filesystems.FileUtil;
+import org.openide.util.NbBundle;
+import org.openide.util.NbBundle.Messages;
+import org.openide.util.RequestProcessor;
+
+/**
+ * Rewrites a phar archive without the space left behind by changed and deleted entries.
+ */
+@ActionID(category = "Tools", id = "name.npetrovski.nbphar.PharCompactAction")
+@ActionRegistration(displayName = "#CTL_PharCompactAction")
+@ActionReference(path = "Loaders/application/x-phar/Actions", position = 1100)
+@Messages("CTL_PharCompactAction=Compact Archive")
+public final class PharCompactAction implements ActionListener {
+
+    private static final Logger LOG = Logger.getLogger(PharCompactAction.class.getName());
+
+    private static final RequestProcessor RP = new RequestProcessor(PharCompactAction.class.getName(), 1, false, false);
+
+    private final PharArchiveDataObject context;
+
+    public PharCompactAction(PharArchiveDataObject context) {
+        this.context = context;
+    }
+
+    @Override
+    public void actionPerformed(ActionEvent ev) {
+        final File archive = FileUtil.toFile(context.getPrimaryFile());
+        if (archive == null) {
+            return;
+        }
+        RP.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    long before = archive.length();
+                    FileSystem fs = PharArchiveURLMapper.mount(archive);
+                    if (fs instanceof PharArchiveFileSystem) {
+                        ((PharArchiveFileSystem) fs).compact();
+                    } else {
+                        new PharJournal(archive).compact();
+                    }
+                    context.getPrimaryFile().refresh();
+                    StatusDisplayer.getDefault().setStatusText(NbBundle.getMessage(PharCompactAction.class,
+                            "MSG_Compacted", archive.getName(), before - archive.length()));
+                } catch (IOException ex) {
+                    LOG.log(Level.INFO, ex.getMessage(), ex);
+                    StatusDisplayer.getDefault().setStatusText(ex.getLocalizedMessage());
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,69 @@
+package name.npetrovski.nbphar;
+
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.io.File;
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.swing.JFileChooser;
+import org.openide.awt.ActionID;
+import org.openide.awt.ActionReference;
+import org.openide.awt.ActionRegistration;
+import org.openide.awt.StatusDisplayer;
+import org.openide.filesystems.FileUtil;
+import org.openide.util.NbBundle;
+import org.openide.util.NbBundle.Messages;
+import org.openide.util.RequestProcessor;
+import org.openide.windows.WindowManager;
+
+/**
+ * Extracts the whole archive into a folder chosen by the user.
+ */
+@ActionID(category = "Tools", id = "name.npetrovski.nbphar.PharExtractAction")
+@ActionRegistration(displayName = "#CTL_PharExtractAction")
+@ActionReference(path = "Loaders/application/x-phar/Actions", position = 1050)
+@Messages("CTL_PharExtractAction=Extract To...")
+public final class PharExtractAction implements ActionListener {
+
+    private static final Logger LOG = Logger.getLogger(PharExtractAction.class.getName());
+
+    private static final RequestProcessor RP = new RequestProcessor(PharExtractAction.class.getName(), 1, false, false);
+
+    private final PharArchiveDataObject context;
+
+    public PharExtractAction(PharArchiveDataObject context) {
+        this.context = context;
+    }
+
+    @Override
+    public void actionPerformed(ActionEvent ev) {
+        final File archive = FileUtil.toFile(context.getPrimaryFile());
+        if (archive == null) {
+            return;
+        }
+        JFileChooser chooser = new JFileChooser(archive.getParentFile());
+        chooser.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+        chooser.setDialogTitle(NbBundle.getMessage(PharExtractAction.class, "LBL_ExtractTo", archive.getName()));
+        if (chooser.showDialog(WindowManager.getDefault().getMainWindow(),
+                NbBundle.getMessage(PharExtractAction.class, "BTN_Extract")) != JFileChooser.APPROVE_OPTION) {
+            return;
+        }
+        final File target = chooser.getSelectedFile();
+        RP.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    long start = System.currentTimeMillis();
+                    int count = new PharArchiveFile(archive).extractTo(target.toPath(), null);
+                    FileUtil.refreshFor(target);
+                    StatusDisplayer.getDefault().setStatusText(NbBundle.getMessage(PharExtractAction.class,
+                            "MSG_Extracted", count, target, System.currentTimeMillis() - start));
+                } catch (IOException ex) {
+                    LOG.log(Level.INFO, ex.getMessage(), ex);
+                    StatusDisplayer.getDefault().setStatusText(ex.getLocalizedMessage());
+                }
+            }
+        });
+    }
+}
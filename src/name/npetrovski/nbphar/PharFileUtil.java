@@ -2,11 +2,10 @@ package name.npetrovski.nbphar;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URL;
-import java.util.Map;
-import java.util.WeakHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.openide.filesystems.FileObject;
@@ -22,9 +21,11 @@ public final class PharFileUtil {
     private static final Logger LOG = Logger.getLogger(PharFileUtil.class.getName());
 
     /**
-     * Cache for {@link #isArchiveFile(FileObject)}.
+     * Cache for {@link #isArchiveFile(FileObject)}, keyed by file identity and validated by size and modification
+     * time.
      */
-    private static final Map<FileObject, Boolean> archiveFileCache = new WeakHashMap<FileObject, Boolean>();
+    private static final PharMountCache<Object, Sniff> archiveFileCache = new PharMountCache<Object, Sniff>(
+            Integer.getInteger("name.npetrovski.nbphar.sniff.capacity", 4096)); //NOI18N
 
     /**
      * Get an appropriate display name for a file object. If the file corresponds to a path on disk, this will be the
@@ -121,7 +122,7 @@ public final class PharFileUtil {
             // XXX TBD whether the url should ever be escaped...
             URL phar = new URL(PharArchiveURLMapper.PHARARCHIVE_PROTOCOL, url.getHost(), url.getPort(),
                     ((url.getProtocol().equals(PharArchiveURLMapper.PHARARCHIVE_PROTOCOL)) ? PharArchiveURLMapper.PHARARCHIVE_PROTOCOL + ":" : "file:") + url.getFile() + "!/",
-                    new PharURLStreamHandler());
+                    PharURLStreamHandler.getDefault());
             return phar;
         } catch (MalformedURLException e) {
             throw new AssertionError(e);
@@ -195,7 +196,7 @@ public final class PharFileUtil {
      * Tests if a file represents a PHAR archive.
      *
      * @param fo the file to be tested
-     * @return true if the file looks like a ZIP-format archive
+     * @return true if the file starts with a phar stub and manifest or looks like a zip- or tar-based phar
      */
     public static boolean isArchiveFile(FileObject fo) {
         Parameters.notNull("fileObject", fo);  //NOI18N
@@ -214,23 +215,75 @@ public final class PharFileUtil {
             return false;
         }
 
+        final Object key = identityOf(fo);
+
         // First check the cache.
-        Boolean b = archiveFileCache.get(fo);
+        final long time = fo.lastModified().getTime();
+        final long size = fo.getSize();
+        Sniff sniff = archiveFileCache.peek(key);
+
+        if (sniff != null && (sniff.time != time || sniff.size != size)) {
+            archiveFileCache.remove(key, sniff);
+            sniff = null;
+        }
 
-        if (b == null) {
+        if (sniff == null) {
             try {
-                b = Boolean.valueOf(new PharArchiveFile("#tmp#").isArchive());
+                sniff = archiveFileCache.get(key, new PharMountCache.Factory<Object, Sniff>() {
+                    @Override
+                    public Sniff create(Object k) throws IOException {
+                        return new Sniff(time, size, sniff(fo).isArchive());
+                    }
+                });
             } catch (IOException ex) {
-                Exceptions.printStackTrace(ex);
-            }
-            if (b == null) {
-                b = isArchiveFile(fo.getPath());
+                LOG.log(Level.FINE, null, ex);
+                return isArchiveFile(fo.getPath());
             }
+        }
+
+        return sniff.archive;
+    }
 
-            archiveFileCache.put(fo, b);
+    /**
+     * Detects the format of a file by its magic bytes.
+     */
+    static PharFormat sniff(FileObject fo) throws IOException {
+        File f = org.openide.filesystems.FileUtil.toFile(fo);
+        if (f != null) {
+            return PharFormat.detect(f);
+        }
+        InputStream is = fo.getInputStream();
+        try {
+            return PharFormat.detect(is, fo.getNameExt());
+        } finally {
+            is.close();
         }
+    }
 
-        return b.booleanValue();
+    /**
+     * Key of the sniff cache: the disk file if there is one, otherwise the file object itself.
+     */
+    private static Object identityOf(FileObject fo) {
+        File f = org.openide.filesystems.FileUtil.toFile(fo);
+        return f != null ? f : fo;
+    }
+
+    /**
+     * Result of sniffing one version of a file.
+     */
+    private static final class Sniff {
+
+        final long time;
+
+        final long size;
+
+        final boolean archive;
+
+        Sniff(long time, long size, boolean archive) {
+            this.time = time;
+            this.size = size;
+            this.archive = archive;
+        }
     }
 
     /**
@@ -0,0 +1,518 @@
+package name.npetrovski.nbphar;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.SequenceInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Enumeration;
+import java.util.Locale;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+import name.npetrovski.jphar.PharCompression;
+
+/**
+ * Container format of a file as told by its magic bytes. Only the first {@link #PROBE_SIZE} bytes and the signature
+ * magic at the end of a file are read; files which start like PHP code are searched for the stub end up to
+ * {@link #MAX_STUB_PROBE} bytes, or {@link #MAX_SIGNED_STUB_PROBE} bytes when the file ends with the signature magic.
+ * Files compressed as a whole are looked at through their decompressor, reading at most
+ * {@link #MAX_COMPRESSED_PROBE} compressed bytes.
+ * <p>
+ * Zip and tar files are phars only if their name says so or they hold a <code>.phar/</code> entry, which is what PHP
+ * checks; plain jars or tarballs are not archives in this sense.
+ */
+enum PharFormat {
+
+    /**
+     * Native phar: PHP stub terminated by <code>__HALT_COMPILER();</code> followed by the phar manifest
+     */
+    PHAR,
+    /**
+     * Zip based phar
+     */
+    ZIP,
+    /**
+     * Tar based phar
+     */
+    TAR,
+    /**
+     * Not an archive
+     */
+    UNKNOWN;
+
+    static final int PROBE_SIZE = 8192;
+
+    /**
+     * Longest stub searched for the halt compiler marker when the file starts like PHP code
+     */
+    static final int MAX_STUB_PROBE = 64 * 1024;
+
+    /**
+     * Longest stub searched for the halt compiler marker when the file also ends with the signature magic
+     */
+    static final int MAX_SIGNED_STUB_PROBE = 1024 * 1024;
+
+    /**
+     * Most compressed bytes read to sniff a file compressed as a whole
+     */
+    static final int MAX_COMPRESSED_PROBE = 256 * 1024;
+
+    /**
+     * Most bytes of a zip or tar stream, which is not a local file, searched for a <code>.phar/</code> entry
+     */
+    static final int MAX_CONTAINER_PROBE = 1024 * 1024;
+
+    /**
+     * Folder of the stub, alias and metadata in zip and tar based phars
+     */
+    static final String PHAR_FOLDER = ".phar/"; //NOI18N
+
+    private static final int TAR_BLOCK = 512;
+
+    static final byte[] HALT_COMPILER = "__HALT_COMPILER();".getBytes(StandardCharsets.US_ASCII); //NOI18N
+
+    private static final byte[] SIGNATURE_MAGIC = "GBMB".getBytes(StandardCharsets.US_ASCII); //NOI18N
+
+    private static final byte[] PHP_OPEN_TAG = "<?php".getBytes(StandardCharsets.US_ASCII); //NOI18N
+
+    private static final byte[] USTAR_MAGIC = "ustar".getBytes(StandardCharsets.US_ASCII); //NOI18N
+
+    private static final int USTAR_OFFSET = 257;
+
+    /**
+     * Fixed part of the manifest: length, entry count, API version, flags and alias length
+     */
+    private static final int MANIFEST_HEADER_SIZE = 18;
+
+    /**
+     * Smallest possible manifest record of one entry
+     */
+    private static final int MIN_ENTRY_MANIFEST_SIZE = 29;
+
+    boolean isArchive() {
+        return this != UNKNOWN;
+    }
+
+    static PharFormat detect(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r"); //NOI18N
+        try {
+            long size = raf.length();
+            byte[] head = new byte[(int) Math.min(PROBE_SIZE, size)];
+            raf.readFully(head);
+
+            PharCompression compression = PharImage.compressionOf(head, head.length);
+            if (compression != PharCompression.NONE) {
+                // compressed as a whole, look at the beginning of the data
+                InputStream is = new FileInputStream(file);
+                try {
+                    return detectDecompressed(is, compression, file.getName());
+                } finally {
+                    is.close();
+                }
+            }
+
+            PharFormat format = detectContainer(head);
+            if (format != UNKNOWN) {
+                return isPharName(file.getName()) || hasPharEntry(file, format) ? format : UNKNOWN;
+            }
+
+            int marker = indexOf(head, HALT_COMPILER);
+            if (marker < 0 && size > head.length && isPhpStub(head)) {
+                // a signed phar may carry a longer stub, the marker and manifest are still required
+                int limit = isSigned(raf, size) ? MAX_SIGNED_STUB_PROBE : MAX_STUB_PROBE;
+                head = new byte[(int) Math.min(limit, size)];
+                raf.seek(0);
+                raf.readFully(head);
+                marker = indexOf(head, HALT_COMPILER);
+            }
+            if (marker >= 0) {
+                int end = manifestStart(head, marker + HALT_COMPILER.length);
+                byte[] header = new byte[MANIFEST_HEADER_SIZE];
+                if (end + header.length <= size) {
+                    raf.seek(end);
+                    raf.readFully(header);
+                    if (isManifestHeader(header, 0, size - end)) {
+                        return PHAR;
+                    }
+                }
+                return UNKNOWN;
+            }
+            return UNKNOWN;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Tells zip and tar based phars by their first header, without looking for a stub.
+     *
+     * @return {@link #ZIP}, {@link #TAR} or {@link #UNKNOWN} for anything else, including native phars
+     */
+    static PharFormat detectContainer(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r"); //NOI18N
+        try {
+            byte[] head = new byte[(int) Math.min(USTAR_OFFSET + USTAR_MAGIC.length, raf.length())];
+            raf.readFully(head);
+            return detectContainer(head);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static boolean isSigned(RandomAccessFile raf, long size) throws IOException {
+        byte[] tail = new byte[SIGNATURE_MAGIC.length];
+        raf.seek(size - tail.length);
+        raf.readFully(tail);
+        return regionMatches(tail, 0, SIGNATURE_MAGIC);
+    }
+
+    /**
+     * Detects the format from the beginning of a stream, for files which are not on a local disk.
+     *
+     * @param name file name of the stream, for telling zip and tar based phars from other zips and tars
+     */
+    static PharFormat detect(InputStream is, String name) throws IOException {
+        byte[] head = readHead(is, new byte[0], PROBE_SIZE);
+        PharCompression compression = PharImage.compressionOf(head, head.length);
+        if (compression != PharCompression.NONE) {
+            return detectDecompressed(new SequenceInputStream(new ByteArrayInputStream(head), is), compression, name);
+        }
+        return detectHead(new ProbeInputStream(is, MAX_CONTAINER_PROBE), head, name);
+    }
+
+    /**
+     * Looks at the beginning of the data of a file compressed as a whole. Compression is not nested, so compressed
+     * data inside is not an archive.
+     */
+    private static PharFormat detectDecompressed(InputStream is, PharCompression compression, String name)
+            throws IOException {
+        InputStream data = PharImage.decompress(new ProbeInputStream(is, MAX_COMPRESSED_PROBE), compression);
+        byte[] head = readHead(data, new byte[0], PROBE_SIZE);
+        if (PharImage.compressionOf(head, head.length) != PharCompression.NONE) {
+            return UNKNOWN;
+        }
+        return detectHead(data, head, name);
+    }
+
+    private static PharFormat detectHead(InputStream is, byte[] head, String name) throws IOException {
+        PharFormat format = detectContainer(head);
+        if (format != UNKNOWN) {
+            if (isPharName(name)) {
+                return format;
+            }
+            return hasPharEntry(new SequenceInputStream(new ByteArrayInputStream(head), is), format) ? format : UNKNOWN;
+        }
+        int marker = indexOf(head, HALT_COMPILER);
+        if (marker < 0 && head.length == PROBE_SIZE && isPhpStub(head)) {
+            head = readHead(is, head, MAX_STUB_PROBE);
+            marker = indexOf(head, HALT_COMPILER);
+        }
+        if (marker >= 0) {
+            int end = manifestStart(head, marker + HALT_COMPILER.length);
+            if (end + MANIFEST_HEADER_SIZE <= head.length) {
+                return isManifestHeader(head, end, Long.MAX_VALUE) ? PHAR : UNKNOWN;
+            }
+            // manifest beyond the probe, trust the marker
+            return PHAR;
+        }
+        return UNKNOWN;
+    }
+
+    /**
+     * Continues reading the stream after the already read <code>prefix</code> up to <code>limit</code> bytes. The
+     * data read before a {@link ProbeInputStream} runs out is returned as the head.
+     */
+    private static byte[] readHead(InputStream is, byte[] prefix, int limit) throws IOException {
+        byte[] head = new byte[limit];
+        System.arraycopy(prefix, 0, head, 0, prefix.length);
+        int len = prefix.length;
+        int read;
+        try {
+            while (len < head.length && (read = is.read(head, len, head.length - len)) != -1) {
+                len += read;
+            }
+        } catch (ProbeLimitException ex) {
+            // decompressor stopped mid-stream, look at what it produced
+        }
+        if (len < head.length) {
+            byte[] shorter = new byte[len];
+            System.arraycopy(head, 0, shorter, 0, len);
+            head = shorter;
+        }
+        return head;
+    }
+
+    /**
+     * Tells zip and tar based phars by name: <code>.phar</code>, <code>.phar.zip</code> or <code>.phar.tar</code>,
+     * optionally compressed as a whole.
+     */
+    static boolean isPharName(String name) {
+        if (name == null) {
+            return false;
+        }
+        String n = name.toLowerCase(Locale.ENGLISH);
+        if (n.endsWith(".gz")) { //NOI18N
+            n = n.substring(0, n.length() - 3);
+        } else if (n.endsWith(".bz2")) { //NOI18N
+            n = n.substring(0, n.length() - 4);
+        }
+        return n.endsWith(".phar") || n.endsWith(".phar.zip") || n.endsWith(".phar.tar"); //NOI18N
+    }
+
+    /**
+     * Looks for a <code>.phar/</code> entry in a local zip or tar file.
+     */
+    private static boolean hasPharEntry(File file, PharFormat format) throws IOException {
+        if (format == ZIP) {
+            ZipFile zip;
+            try {
+                zip = new ZipFile(file);
+            } catch (ZipException ex) {
+                return false;
+            }
+            try {
+                Enumeration<? extends ZipEntry> entries = zip.entries();
+                while (entries.hasMoreElements()) {
+                    if (entries.nextElement().getName().startsWith(PHAR_FOLDER)) {
+                        return true;
+                    }
+                }
+                return false;
+            } finally {
+                zip.close();
+            }
+        }
+        InputStream is = new BufferedInputStream(new FileInputStream(file), TAR_BLOCK);
+        try {
+            return hasPharEntry(is, format);
+        } finally {
+            is.close();
+        }
+    }
+
+    /**
+     * Looks for a <code>.phar/</code> entry in a zip or tar stream; a stream which ends, is cut by a
+     * {@link ProbeInputStream} or cannot be parsed holds none.
+     */
+    private static boolean hasPharEntry(InputStream is, PharFormat format) throws IOException {
+        try {
+            if (format == ZIP) {
+                ZipInputStream zip = new ZipInputStream(is);
+                ZipEntry entry;
+                while ((entry = zip.getNextEntry()) != null) {
+                    if (entry.getName().startsWith(PHAR_FOLDER)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            byte[] header = new byte[TAR_BLOCK];
+            while (true) {
+                readFully(is, header);
+                if (header[0] == 0) {
+                    // end of archive
+                    return false;
+                }
+                if (tarEntryName(header).startsWith(PHAR_FOLDER)) {
+                    return true;
+                }
+                long size = tarSize(header);
+                skipFully(is, (size + TAR_BLOCK - 1) / TAR_BLOCK * TAR_BLOCK);
+            }
+        } catch (ProbeLimitException | ZipException | EOFException ex) {
+            return false;
+        }
+    }
+
+    private static String tarEntryName(byte[] header) {
+        String name = tarString(header, 0, 100);
+        if (regionMatches(header, USTAR_OFFSET, USTAR_MAGIC)) {
+            String prefix = tarString(header, 345, 155);
+            if (!prefix.isEmpty()) {
+                name = prefix + '/' + name;
+            }
+        }
+        return name;
+    }
+
+    private static String tarString(byte[] header, int off, int len) {
+        int end = off;
+        while (end < off + len && header[end] != 0) {
+            end++;
+        }
+        return new String(header, off, end - off, StandardCharsets.UTF_8);
+    }
+
+    private static long tarSize(byte[] header) throws EOFException {
+        long size = 0;
+        for (int i = 124; i < 136 && header[i] != 0 && header[i] != ' '; i++) {
+            int digit = header[i] - '0';
+            if (digit < 0 || digit > 7) {
+                // base-256 or damaged size, nothing more can be found
+                throw new EOFException();
+            }
+            size = size * 8 + digit;
+        }
+        return size;
+    }
+
+    private static void readFully(InputStream is, byte[] buf) throws IOException {
+        int len = 0;
+        while (len < buf.length) {
+            int read = is.read(buf, len, buf.length - len);
+            if (read < 0) {
+                throw new EOFException();
+            }
+            len += read;
+        }
+    }
+
+    private static void skipFully(InputStream is, long n) throws IOException {
+        while (n > 0) {
+            long skipped = is.skip(n);
+            if (skipped <= 0) {
+                if (is.read() < 0) {
+                    throw new EOFException();
+                }
+                skipped = 1;
+            }
+            n -= skipped;
+        }
+    }
+
+    private static boolean isPhpStub(byte[] head) {
+        return indexOf(head, PHP_OPEN_TAG) >= 0;
+    }
+
+    private static PharFormat detectContainer(byte[] head) {
+        if (head.length >= 4 && head[0] == 'P' && head[1] == 'K' && head[2] == 3 && head[3] == 4) {
+            return ZIP;
+        }
+        if (head.length >= USTAR_OFFSET + USTAR_MAGIC.length && regionMatches(head, USTAR_OFFSET, USTAR_MAGIC)) {
+            return TAR;
+        }
+        return UNKNOWN;
+    }
+
+    /**
+     * Skips the optional closing tag and new line after the halt compiler marker.
+     */
+    static int manifestStart(byte[] buf, int pos) {
+        if (pos + 2 < buf.length && buf[pos] == ' ' && buf[pos + 1] == '?' && buf[pos + 2] == '>') {
+            pos += 3;
+        } else if (pos + 1 < buf.length && buf[pos] == '?' && buf[pos + 1] == '>') {
+            pos += 2;
+        }
+        if (pos + 1 < buf.length && buf[pos] == '\r' && buf[pos + 1] == '\n') {
+            pos += 2;
+        } else if (pos < buf.length && buf[pos] == '\n') {
+            pos += 1;
+        }
+        return pos;
+    }
+
+    private static boolean isManifestHeader(byte[] buf, int off, long remaining) {
+        long manifestLength = readLEInt(buf, off) & 0xFFFFFFFFL;
+        long entries = readLEInt(buf, off + 4) & 0xFFFFFFFFL;
+        return manifestLength >= MANIFEST_HEADER_SIZE - 4
+                && manifestLength + 4 <= remaining
+                && entries * MIN_ENTRY_MANIFEST_SIZE <= manifestLength;
+    }
+
+    static int readLEInt(byte[] buf, int off) {
+        return (buf[off] & 0xFF) | (buf[off + 1] & 0xFF) << 8 | (buf[off + 2] & 0xFF) << 16 | (buf[off + 3] & 0xFF) << 24;
+    }
+
+    static int indexOf(byte[] buf, byte[] pattern) {
+        outer:
+        for (int i = 0; i <= buf.length - pattern.length; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (buf[i + j] != pattern[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    private static boolean regionMatches(byte[] buf, int off, byte[] pattern) {
+        for (int j = 0; j < pattern.length; j++) {
+            if (buf[off + j] != pattern[j]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Signals that a probe has read as many bytes as it may.
+     */
+    private static final class ProbeLimitException extends IOException {
+
+        ProbeLimitException() {
+            super("Probe limit reached"); //NOI18N
+        }
+    }
+
+    /**
+     * Passes at most <code>limit</code> bytes through and then fails with {@link ProbeLimitException}, so that a
+     * decompressor does not take a truncated stream for a corrupt one.
+     */
+    private static final class ProbeInputStream extends FilterInputStream {
+
+        private long remaining;
+
+        ProbeInputStream(InputStream in, long limit) {
+            super(in);
+            this.remaining = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                throw new ProbeLimitException();
+            }
+            int b = super.read();
+            if (b >= 0) {
+                remaining--;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (remaining <= 0) {
+                throw new ProbeLimitException();
+            }
+            int n = super.read(b, off, (int) Math.min(len, remaining));
+            if (n > 0) {
+                remaining -= n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(Math.min(n, remaining));
+            remaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package name.npetrovski.nbphar;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import name.npetrovski.jphar.PharCompression;
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+
+/**
+ * Decompressed image of a phar which is gzip or bzip2 compressed as a whole (<code>.phar.gz</code>,
+ * <code>.phar.bz2</code>). Such files cannot be read at random, so they are decompressed once, as a stream, into the
+ * spill cache of {@link PharArchiveFileSystem}; readers then work on the image as on any other archive. An image is
+ * named after the path, size and time stamp of its archive, so a changed archive gets a fresh image.
+ */
+final class PharImage {
+
+    private static final Logger LOG = Logger.getLogger(PharImage.class.getName());
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Marks images among the spill files of an archive; names of spilled entries are made of digits and 'x'
+     */
+    static final String IMAGE_MARK = "i"; //NOI18N
+
+    /**
+     * Images already checked, so that repeated look ups do not read the magic bytes again. Bounded; an evicted image
+     * is kept softly, so that a caller still decompressing it is not raced by a second copy.
+     */
+    private static final PharMountCache<File, Image> IMAGES = new PharMountCache<File, Image>(
+            Integer.getInteger("name.npetrovski.nbphar.image.capacity", 64), null, true); //NOI18N
+
+    private PharImage() {
+    }
+
+    /**
+     * Tells the compression of a whole file by its magic bytes.
+     */
+    static PharCompression compressionOf(byte[] head, int len) {
+        if (len >= 2 && (head[0] & 0xFF) == 0x1F && (head[1] & 0xFF) == 0x8B) {
+            return PharCompression.GZIP;
+        }
+        if (len >= 3 && head[0] == 'B' && head[1] == 'Z' && head[2] == 'h') {
+            return PharCompression.BZIP2;
+        }
+        return PharCompression.NONE;
+    }
+
+    static PharCompression compressionOf(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r"); //NOI18N
+        try {
+            byte[] head = new byte[3];
+            int len = raf.read(head);
+            return compressionOf(head, Math.max(len, 0));
+        } finally {
+            raf.close();
+        }
+    }
+
+    static boolean isCompressed(File file) throws IOException {
+        return compressionOf(file) != PharCompression.NONE;
+    }
+
+    /**
+     * Wraps a stream of a compressed file into its decompressor.
+     */
+    static InputStream decompress(InputStream is, PharCompression compression) throws IOException {
+        switch (compression) {
+            case GZIP:
+                return new GZIPInputStream(is, BUFFER_SIZE);
+            case BZIP2:
+                return new BZip2CompressorInputStream(is, true);
+            default:
+                return is;
+        }
+    }
+
+    /**
+     * Returns the file which holds the data of the archive: the archive itself, or its decompressed image if the
+     * archive is compressed as a whole. The image is created on first use; concurrent callers wait for it rather than
+     * decompressing again.
+     */
+    static File of(File archive) throws IOException {
+        final long length = archive.length();
+        final long lastModified = archive.lastModified();
+        PharMountCache.Factory<File, Image> factory = new PharMountCache.Factory<File, Image>() {
+            @Override
+            public Image create(File key) {
+                return new Image(key, length, lastModified);
+            }
+        };
+        Image image = IMAGES.get(archive, factory);
+        if (image.length != length || image.lastModified != lastModified) {
+            // another version of the archive; whoever mounts it next, us or a concurrent caller, wins
+            IMAGES.remove(archive, image);
+            image = IMAGES.get(archive, factory);
+        }
+        return image.get();
+    }
+
+    /**
+     * One version of an archive and its image.
+     */
+    private static final class Image {
+
+        private final File archive;
+        private final long length;
+        private final long lastModified;
+        private File data;
+
+        Image(File archive, long length, long lastModified) {
+            this.archive = archive;
+            this.length = length;
+            this.lastModified = lastModified;
+        }
+
+        synchronized File get() throws IOException {
+            if (data != null && data.isFile()) {
+                return data;
+            }
+            PharCompression compression = compressionOf(archive);
+            if (compression == PharCompression.NONE) {
+                data = archive;
+                return data;
+            }
+            File folder = PharArchiveFileSystem.temporaryFolder();
+            if (!folder.exists()) {
+                folder.mkdirs();
+            }
+            final String prefix = PharArchiveFileSystem.temporaryPrefix(archive.getAbsolutePath()) + IMAGE_MARK
+                    + Integer.toHexString(archive.getPath().hashCode()) + "-"; //NOI18N
+            File image = new File(folder, prefix + length + "-" + lastModified); //NOI18N
+            if (!image.isFile()) {
+                decompress(compression, image);
+                // images of older versions of the archive
+                File[] stale = folder.listFiles();
+                if (stale != null) {
+                    for (File f : stale) {
+                        if (f.getName().startsWith(prefix) && !f.equals(image)) {
+                            f.delete();
+                        }
+                    }
+                }
+            }
+            image.deleteOnExit();
+            data = image;
+            return data;
+        }
+
+        private void decompress(PharCompression compression, File image) throws IOException {
+            long start = System.nanoTime();
+            File part = new File(image.getPath() + ".part"); //NOI18N
+            InputStream is = PharImage.decompress(new BufferedInputStream(new FileInputStream(archive), BUFFER_SIZE),
+                    compression);
+            try {
+                OutputStream os = new FileOutputStream(part);
+                try {
+                    byte[] buf = new byte[BUFFER_SIZE];
+                    int n;
+                    while ((n = is.read(buf)) != -1) {
+                        os.write(buf, 0, n);
+                    }
+                } finally {
+                    os.close();
+                }
+            } catch (IOException ex) {
+                part.delete();
+                throw ex;
+            } finally {
+                is.close();
+            }
+            Files.move(part.toPath(), image.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            LOG.log(Level.FINE, "decompressed {0} in {1} ms", new Object[]{archive, //NOI18N
+                (System.nanoTime() - start) / 1000000});
+        }
+    }
+}
@@ -0,0 +1,534 @@
+package name.npetrovski.nbphar;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.lang.ref.Reference;
+import java.lang.ref.SoftReference;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import name.npetrovski.jphar.PharCompression;
+import name.npetrovski.jphar.PharVersion;
+
+/**
+ * Manifest of a native phar archive: stub range, global flags, alias, metadata location and entry records with
+ * absolute data offsets. Only the stub and the manifest are read, entry data are not touched. Indexes are shared
+ * through {@link #get(File)} as long as the archive file does not change; they are kept by {@link PharIndexManager}
+ * within its memory budget, together with the directory index of the archive.
+ */
+final class PharIndex implements PharIndexManager.Index {
+
+    static final int COMPRESSION_MASK = 0x0000F000;
+
+    static final int SIGNATURE_FLAG = 0x00010000;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Knuth-Morris-Pratt failure function of the halt compiler marker: the length of the longest proper prefix of the
+     * marker which is also a suffix of its first <code>i + 1</code> bytes
+     */
+    private static final int[] HALT_COMPILER_FALLBACK = fallback(PharFormat.HALT_COMPILER);
+
+    private static final PharIndexManager INDEXES = PharIndexManager.getDefault();
+
+    /**
+     * Manifests being read, so that concurrent callers for the same archive wait for one read
+     */
+    private static final ConcurrentMap<File, FutureTask<PharIndex>> READING
+            = new ConcurrentHashMap<File, FutureTask<PharIndex>>();
+
+    private final File file;
+    private final long length;
+    private final long lastModified;
+
+    private long stubLength;
+    private long manifestOffset;
+    private long manifestLength;
+    private String version;
+    private int flags;
+    private String alias = "";
+    private long metadataOffset;
+    private int metadataLength;
+    private long dataOffset;
+    private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+    private long namesLength;
+
+    /**
+     * Serialized global metadata, read on first use
+     */
+    private volatile Reference<byte[]> metadata = new SoftReference<byte[]>(null);
+
+    private PharIndex(File file, long length, long lastModified) {
+        this.file = file;
+        this.length = length;
+        this.lastModified = lastModified;
+    }
+
+    /**
+     * Returns the shared index of the archive, reading the manifest if the archive is not indexed yet or has changed.
+     */
+    static PharIndex get(final File file) throws IOException {
+        PharIndex index = (PharIndex) INDEXES.getManifest(file);
+        if (index != null) {
+            if (index.isUpToDate()) {
+                return index;
+            }
+            INDEXES.removeManifest(file, index);
+        }
+        FutureTask<PharIndex> task = new FutureTask<PharIndex>(new Callable<PharIndex>() {
+            @Override
+            public PharIndex call() throws IOException {
+                PharIndex fresh = read(file);
+                INDEXES.putManifest(file, fresh);
+                return fresh;
+            }
+        });
+        FutureTask<PharIndex> running = READING.putIfAbsent(file, task);
+        if (running == null) {
+            running = task;
+            try {
+                task.run();
+            } finally {
+                READING.remove(file, task);
+            }
+        }
+        try {
+            return running.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while reading " + file); //NOI18N
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Drops the shared index of an archive which has just been written, whatever its time stamp says.
+     */
+    static void forget(File file) {
+        INDEXES.removeManifest(file, null);
+    }
+
+    private static int[] fallback(byte[] pattern) {
+        int[] fallback = new int[pattern.length];
+        int k = 0;
+        for (int i = 1; i < pattern.length; i++) {
+            while (k > 0 && pattern[i] != pattern[k]) {
+                k = fallback[k - 1];
+            }
+            if (pattern[i] == pattern[k]) {
+                k++;
+            }
+            fallback[i] = k;
+        }
+        return fallback;
+    }
+
+    /**
+     * Reads the stub and the manifest of the archive.
+     */
+    static PharIndex read(File file) throws IOException {
+        PharFormat container = PharFormat.detectContainer(file);
+        if (container != PharFormat.UNKNOWN) {
+            // the stub stored in the container would pass for a native one
+            throw new IOException(file + " is a " + container + " based phar"); //NOI18N
+        }
+        long lastModified = file.lastModified();
+        long length = file.length();
+        PharIndex index = new PharIndex(file, length, lastModified);
+        CountingInput in = new CountingInput(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+        try {
+            index.parse(in);
+        } finally {
+            in.close();
+        }
+        return index;
+    }
+
+    boolean isUpToDate() {
+        return file.lastModified() == lastModified && file.length() == length;
+    }
+
+    private void parse(CountingInput in) throws IOException {
+        stubLength = in.skipStub();
+        manifestOffset = stubLength;
+
+        manifestLength = in.readInt() & 0xFFFFFFFFL;
+        if (manifestLength == 0 || manifestOffset + 4 + manifestLength > length) {
+            throw new IOException("Invalid manifest length " + manifestLength + " in " + file); //NOI18N
+        }
+        long manifestEnd = manifestOffset + 4 + manifestLength;
+        int count = in.readInt();
+        version = PharVersion.getVersionString(in.readBytes(2));
+        flags = in.readInt();
+        int aliasLength = in.readLength(manifestEnd);
+        alias = new String(in.readBytes(aliasLength), StandardCharsets.UTF_8);
+        metadataLength = in.readLength(manifestEnd);
+        metadataOffset = in.position();
+        in.skipFully(metadataLength);
+
+        dataOffset = manifestEnd;
+        long offset = dataOffset;
+        for (int i = 0; i < count && in.position() < manifestEnd; i++) {
+            int nameLength = in.readLength(manifestEnd);
+            String name = new String(in.readBytes(nameLength), StandardCharsets.UTF_8);
+            long size = in.readInt() & 0xFFFFFFFFL;
+            int time = in.readInt();
+            long compressedSize = in.readInt() & 0xFFFFFFFFL;
+            int crc = in.readInt();
+            int entryFlags = in.readInt();
+            int entryMetadataLength = in.readLength(manifestEnd);
+            long entryMetadataOffset = in.position();
+            in.skipFully(entryMetadataLength);
+
+            Entry entry = new Entry(name, size, compressedSize, time, crc, entryFlags, offset,
+                    entryMetadataOffset, entryMetadataLength);
+            entries.put(name, entry);
+            namesLength += nameLength;
+            offset += compressedSize;
+        }
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * Rough retained size: a record, a map node and a name for each entry.
+     */
+    @Override
+    public long estimatedSize() {
+        return 128 + alias.length() + 120L * entries.size() + namesLength;
+    }
+
+    long getLength() {
+        return length;
+    }
+
+    long getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * @return length of the stub, which starts at offset 0 and includes the halt compiler marker
+     */
+    long getStubLength() {
+        return stubLength;
+    }
+
+    long getManifestOffset() {
+        return manifestOffset;
+    }
+
+    String getVersion() {
+        return version;
+    }
+
+    int getFlags() {
+        return flags;
+    }
+
+    String getAlias() {
+        return alias;
+    }
+
+    boolean isSigned() {
+        return (flags & SIGNATURE_FLAG) != 0;
+    }
+
+    /**
+     * @return compression used by entries of the archive as announced by the global flags
+     */
+    PharCompression getCompression() {
+        return compressionOf(flags);
+    }
+
+    long getMetadataOffset() {
+        return metadataOffset;
+    }
+
+    int getMetadataLength() {
+        return metadataLength;
+    }
+
+    /**
+     * @return offset of the first entry body
+     */
+    long getDataOffset() {
+        return dataOffset;
+    }
+
+    Entry getEntry(String name) {
+        return entries.get(name);
+    }
+
+    /**
+     * @return entries in manifest order
+     */
+    List<Entry> getEntries() {
+        return Collections.unmodifiableList(new ArrayList<Entry>(entries.values()));
+    }
+
+    int getEntryCount() {
+        return entries.size();
+    }
+
+    /**
+     * Returns the serialized global metadata. The data are read on first use and kept while memory permits; since an
+     * index describes one version of the archive, so do the cached data.
+     */
+    byte[] readMetadata() throws IOException {
+        byte[] data = metadata.get();
+        if (data == null) {
+            data = readRange(metadataOffset, metadataLength);
+            metadata = new SoftReference<byte[]>(data);
+        }
+        return data;
+    }
+
+    /**
+     * Reads at most <code>max</code> leading bytes of the serialized global metadata.
+     */
+    byte[] readMetadataHead(int max) throws IOException {
+        byte[] data = metadata.get();
+        if (data != null || metadataLength <= max) {
+            return readMetadata();
+        }
+        return readRange(metadataOffset, max);
+    }
+
+    byte[] readRange(long offset, int len) throws IOException {
+        byte[] buf = new byte[len];
+        if (len > 0) {
+            RandomAccessFile raf = new RandomAccessFile(file, "r"); //NOI18N
+            try {
+                raf.seek(offset);
+                raf.readFully(buf);
+            } finally {
+                raf.close();
+            }
+        }
+        return buf;
+    }
+
+    static PharCompression compressionOf(int flags) {
+        switch (flags & COMPRESSION_MASK) {
+            case 0x1000:
+                return PharCompression.GZIP;
+            case 0x2000:
+                return PharCompression.BZIP2;
+            default:
+                return PharCompression.NONE;
+        }
+    }
+
+    /**
+     * Manifest record of one entry.
+     */
+    static final class Entry {
+
+        private final String name;
+        private final long size;
+        private final long compressedSize;
+        private final int time;
+        private final int crc;
+        private final int flags;
+        private final long offset;
+        private final long metadataOffset;
+        private final int metadataLength;
+
+        Entry(String name, long size, long compressedSize, int time, int crc, int flags, long offset,
+                long metadataOffset, int metadataLength) {
+            this.name = name;
+            this.size = size;
+            this.compressedSize = compressedSize;
+            this.time = time;
+            this.crc = crc;
+            this.flags = flags;
+            this.offset = offset;
+            this.metadataOffset = metadataOffset;
+            this.metadataLength = metadataLength;
+        }
+
+        String getName() {
+            return name;
+        }
+
+        /**
+         * @return uncompressed size
+         */
+        long getSize() {
+            return size;
+        }
+
+        long getCompressedSize() {
+            return compressedSize;
+        }
+
+        /**
+         * @return modification time in milliseconds
+         */
+        long getTime() {
+            return (time & 0xFFFFFFFFL) * 1000L;
+        }
+
+        int getCrc() {
+            return crc;
+        }
+
+        int getFlags() {
+            return flags;
+        }
+
+        PharCompression getCompression() {
+            return compressionOf(flags);
+        }
+
+        /**
+         * @return absolute offset of the (possibly compressed) body in the archive file
+         */
+        long getOffset() {
+            return offset;
+        }
+
+        long getMetadataOffset() {
+            return metadataOffset;
+        }
+
+        int getMetadataLength() {
+            return metadataLength;
+        }
+    }
+
+    /**
+     * Little endian reader which tracks its position in the file.
+     */
+    private static final class CountingInput {
+
+        private final InputStream in;
+
+        private long pos = 0;
+
+        CountingInput(InputStream in) {
+            this.in = in;
+        }
+
+        long position() {
+            return pos;
+        }
+
+        int read() throws IOException {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException();
+            }
+            pos++;
+            return b;
+        }
+
+        int readInt() throws IOException {
+            return read() | read() << 8 | read() << 16 | read() << 24;
+        }
+
+        /**
+         * Reads a length field which must not point past <code>limit</code>.
+         */
+        int readLength(long limit) throws IOException {
+            long len = readInt() & 0xFFFFFFFFL;
+            if (pos + len > limit) {
+                throw new IOException("Corrupted manifest at " + pos); //NOI18N
+            }
+            return (int) len;
+        }
+
+        byte[] readBytes(int len) throws IOException {
+            byte[] buf = new byte[len];
+            int off = 0;
+            while (off < len) {
+                int n = in.read(buf, off, len - off);
+                if (n < 0) {
+                    throw new EOFException();
+                }
+                off += n;
+            }
+            pos += len;
+            return buf;
+        }
+
+        void skipFully(long len) throws IOException {
+            long remaining = len;
+            while (remaining > 0) {
+                long n = in.skip(remaining);
+                if (n <= 0) {
+                    read();
+                    n = 1;
+                } else {
+                    pos += n;
+                }
+                remaining -= n;
+            }
+        }
+
+        /**
+         * Reads up to and including <code>__HALT_COMPILER();</code> and the optional closing tag and new line.
+         *
+         * @return length of the stub
+         */
+        long skipStub() throws IOException {
+            byte[] marker = PharFormat.HALT_COMPILER;
+            int matched = 0;
+            while (matched < marker.length) {
+                int b = read();
+                // fall back to the longest prefix of the marker which still ends here, e.g. in "___HALT_COMPILER();"
+                while (matched > 0 && b != marker[matched]) {
+                    matched = HALT_COMPILER_FALLBACK[matched - 1];
+                }
+                if (b == marker[matched]) {
+                    matched++;
+                }
+            }
+            in.mark(8);
+            byte[] tail = new byte[5];
+            int n = 0;
+            int b;
+            while (n < tail.length && (b = in.read()) >= 0) {
+                tail[n++] = (byte) b;
+            }
+            in.reset();
+            byte[] probe = new byte[n];
+            System.arraycopy(tail, 0, probe, 0, n);
+            int skip = PharFormat.manifestStart(probe, 0);
+            skipFully(skip);
+            return pos;
+        }
+
+        void close() throws IOException {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,315 @@
+package name.npetrovski.nbphar;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Process-wide holder of the directory indexes built by {@link PharArchiveFileSystem} and of the manifests read by
+ * {@link PharIndex}. All archives share one memory budget; when it is exceeded the least recently used archives are
+ * dropped with both their indexes. Indexes of archives which still have living FileObjects (e.g. open editors) are
+ * pinned and never evicted.
+ */
+final class PharIndexManager {
+
+    private static final Logger LOGGER = Logger.getLogger(PharIndexManager.class.getName());
+
+    /**
+     * Default budget for all indexes together, in bytes
+     */
+    private static final long DEFAULT_BUDGET = 32L * 1024 * 1024;
+
+    private static final PharIndexManager DEFAULT = new PharIndexManager(
+            Long.getLong("name.npetrovski.nbphar.index.budget", DEFAULT_BUDGET)); //NOI18N
+
+    /**
+     * An index which knows its approximate retained size.
+     */
+    interface Index {
+
+        long estimatedSize();
+    }
+
+    private final Map<File, Slot> slots = new LinkedHashMap<File, Slot>(16, 0.75f, true);
+
+    private long budget;
+
+    private long usedBytes = 0;
+
+    private long hits = 0;
+
+    private long misses = 0;
+
+    private long evictions = 0;
+
+    PharIndexManager(long budget) {
+        this.budget = budget;
+    }
+
+    static PharIndexManager getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Returns the index registered for the archive, or null if there is none (never built or evicted).
+     */
+    synchronized Index get(File archive) {
+        Slot slot = slots.get(archive);
+        if (slot == null || slot.index == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return slot.index;
+    }
+
+    /**
+     * Returns the manifest registered for the archive, or null if there is none (never read or evicted).
+     */
+    synchronized Index getManifest(File archive) {
+        Slot slot = slots.get(archive);
+        if (slot == null || slot.manifest == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return slot.manifest;
+    }
+
+    /**
+     * Registers a freshly read manifest, replacing the previous one, and evicts other archives if the budget is
+     * exceeded.
+     */
+    synchronized void putManifest(File archive, Index manifest) {
+        Slot slot = slots.get(archive);
+        if (slot == null) {
+            slot = new Slot();
+            slots.put(archive, slot);
+        } else if (slot.manifest != null) {
+            usedBytes -= slot.manifestSize;
+        }
+        slot.manifest = manifest;
+        slot.manifestSize = manifest.estimatedSize();
+        usedBytes += slot.manifestSize;
+        evict();
+    }
+
+    /**
+     * Drops the manifest of the archive if it is still the given one, or whatever it is if <code>manifest</code> is
+     * null; the directory index is kept.
+     */
+    synchronized void removeManifest(File archive, Index manifest) {
+        Slot slot = slots.get(archive);
+        if (slot == null || slot.manifest == null || (manifest != null && slot.manifest != manifest)) {
+            return;
+        }
+        usedBytes -= slot.manifestSize;
+        slot.manifest = null;
+        slot.manifestSize = 0;
+        if (slot.isEmpty() && slot.pins == 0) {
+            slots.remove(archive);
+        }
+    }
+
+    /**
+     * Like {@link #get(File)}, but neither counted nor treated as a use of the index; for monitoring.
+     */
+    synchronized Index peek(File archive) {
+        // iterating does not reorder the access ordered map, get() would
+        for (Map.Entry<File, Slot> e : slots.entrySet()) {
+            if (e.getKey().equals(archive)) {
+                return e.getValue().index;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Registers a freshly built index, replacing the previous one, and evicts other indexes if the budget is exceeded.
+     */
+    synchronized void put(File archive, Index index) {
+        Slot slot = slots.get(archive);
+        if (slot == null) {
+            slot = new Slot();
+            slots.put(archive, slot);
+        } else if (slot.index != null) {
+            usedBytes -= slot.size;
+        }
+        slot.index = index;
+        slot.size = index.estimatedSize();
+        usedBytes += slot.size;
+        evict();
+    }
+
+    /**
+     * Drops the indexes of the archive, e.g. because the archive file has been replaced.
+     */
+    synchronized void remove(File archive) {
+        Slot slot = slots.get(archive);
+        if (slot == null) {
+            return;
+        }
+        drop(slot);
+        if (slot.pins == 0) {
+            slots.remove(archive);
+        }
+    }
+
+    /**
+     * Protects the index of the archive from eviction until the matching {@link #unpin(File)}. Calls nest.
+     */
+    synchronized void pin(File archive) {
+        Slot slot = slots.get(archive);
+        if (slot == null) {
+            slot = new Slot();
+            slots.put(archive, slot);
+        }
+        slot.pins++;
+    }
+
+    synchronized void unpin(File archive) {
+        Slot slot = slots.get(archive);
+        if (slot == null || slot.pins == 0) {
+            return;
+        }
+        slot.pins--;
+        if (slot.pins == 0) {
+            if (slot.isEmpty()) {
+                slots.remove(archive);
+            } else {
+                evict();
+            }
+        }
+    }
+
+    synchronized void setBudget(long budget) {
+        this.budget = budget;
+        evict();
+    }
+
+    synchronized Statistics getStatistics() {
+        int indexes = 0;
+        int pinned = 0;
+        for (Slot slot : slots.values()) {
+            if (!slot.isEmpty()) {
+                indexes++;
+            }
+            if (slot.pins > 0) {
+                pinned++;
+            }
+        }
+        return new Statistics(budget, usedBytes, indexes, pinned, hits, misses, evictions);
+    }
+
+    private void evict() {
+        assert Thread.holdsLock(this);
+        // iteration order of the access-ordered map is least recently used first
+        for (Iterator<Map.Entry<File, Slot>> it = slots.entrySet().iterator(); usedBytes > budget && it.hasNext();) {
+            Map.Entry<File, Slot> e = it.next();
+            Slot slot = e.getValue();
+            if (slot.pins > 0 || slot.isEmpty()) {
+                continue;
+            }
+            LOGGER.log(Level.FINE, "evicted indexes of {0} ({1} bytes)", //NOI18N
+                    new Object[]{e.getKey(), slot.size + slot.manifestSize});
+            drop(slot);
+            evictions++;
+            it.remove();
+        }
+    }
+
+    private void drop(Slot slot) {
+        if (slot.index != null) {
+            usedBytes -= slot.size;
+            slot.index = null;
+            slot.size = 0;
+        }
+        if (slot.manifest != null) {
+            usedBytes -= slot.manifestSize;
+            slot.manifest = null;
+            slot.manifestSize = 0;
+        }
+    }
+
+    private static final class Slot {
+
+        Index index;
+
+        long size;
+
+        /**
+         * Manifest of the archive, see {@link PharIndex}
+         */
+        Index manifest;
+
+        long manifestSize;
+
+        int pins;
+
+        boolean isEmpty() {
+            return index == null && manifest == null;
+        }
+    }
+
+    /**
+     * Snapshot of the manager state.
+     */
+    static final class Statistics {
+
+        private final long budget;
+        private final long usedBytes;
+        private final int indexCount;
+        private final int pinnedCount;
+        private final long hits;
+        private final long misses;
+        private final long evictions;
+
+        Statistics(long budget, long usedBytes, int indexCount, int pinnedCount, long hits, long misses, long evictions) {
+            this.budget = budget;
+            this.usedBytes = usedBytes;
+            this.indexCount = indexCount;
+            this.pinnedCount = pinnedCount;
+            this.hits = hits;
+            this.misses = misses;
+            this.evictions = evictions;
+        }
+
+        public long getBudget() {
+            return budget;
+        }
+
+        public long getUsedBytes() {
+            return usedBytes;
+        }
+
+        public int getIndexCount() {
+            return indexCount;
+        }
+
+        public int getPinnedCount() {
+            return pinnedCount;
+        }
+
+        public long getHits() {
+            return hits;
+        }
+
+        public long getMisses() {
+            return misses;
+        }
+
+        public long getEvictions() {
+            return evictions;
+        }
+
+        @Override
+        public String toString() {
+            return "PharIndexManager[used=" + usedBytes + "/" + budget + ", indexes=" + indexCount //NOI18N
+                    + ", pinned=" + pinnedCount + ", hits=" + hits + ", misses=" + misses //NOI18N
+                    + ", evictions=" + evictions + "]"; //NOI18N
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package name.npetrovski.nbphar;
+
+import java.io.File;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import name.npetrovski.jphar.PharCompression;
+
+/**
+ * {@link PharTrace} recording <code>jdk.jfr</code> events. Only instantiated when the flight recorder API is present.
+ */
+final class PharJfrTrace extends PharTrace {
+
+    @Override
+    Span archiveOpen(File archive) {
+        return start(new ArchiveOpen(), archive, null);
+    }
+
+    @Override
+    Span archiveClose(File archive) {
+        return start(new ArchiveClose(), archive, null);
+    }
+
+    @Override
+    Span indexBuild(File archive) {
+        return start(new IndexBuild(), archive, null);
+    }
+
+    @Override
+    Span entryRead(File archive, String entry) {
+        return start(new EntryRead(), archive, entry);
+    }
+
+    @Override
+    Span mount(File archive) {
+        return start(new Mount(), archive, null);
+    }
+
+    private static Span start(PharEvent event, File archive, String entry) {
+        if (!event.isEnabled()) {
+            return NONE;
+        }
+        event.archive = (archive != null) ? archive.getPath() : null;
+        event.entry = entry;
+        event.begin();
+        return new EventSpan(event);
+    }
+
+    private static final class EventSpan extends Span {
+
+        private final PharEvent event;
+
+        EventSpan(PharEvent event) {
+            this.event = event;
+        }
+
+        @Override
+        Span bytes(long bytes) {
+            event.bytes = bytes;
+            return this;
+        }
+
+        @Override
+        Span entries(int entries) {
+            event.entries = entries;
+            return this;
+        }
+
+        @Override
+        Span compression(PharCompression compression) {
+            event.compression = (compression != null) ? compression.name() : null;
+            return this;
+        }
+
+        @Override
+        Span cacheHit(boolean hit) {
+            event.cacheHit = hit;
+            return this;
+        }
+
+        @Override
+        boolean isRecording() {
+            return true;
+        }
+
+        @Override
+        void end() {
+            event.end();
+            if (event.shouldCommit()) {
+                event.commit();
+            }
+        }
+    }
+
+    @Category({"NetBeans", "Phar"}) //NOI18N
+    @StackTrace(false)
+    abstract static class PharEvent extends Event {
+
+        @Label("Archive") //NOI18N
+        String archive;
+
+        @Label("Entry") //NOI18N
+        String entry;
+
+        @Label("Bytes") //NOI18N
+        @DataAmount
+        long bytes;
+
+        @Label("Entries") //NOI18N
+        int entries;
+
+        @Label("Compression") //NOI18N
+        String compression;
+
+        @Label("Cache Hit") //NOI18N
+        boolean cacheHit;
+    }
+
+    @Name("name.npetrovski.nbphar.ArchiveOpen") //NOI18N
+    @Label("Phar Archive Open") //NOI18N
+    @Description("Archive file opened by the phar filesystem") //NOI18N
+    static final class ArchiveOpen extends PharEvent {
+    }
+
+    @Name("name.npetrovski.nbphar.ArchiveClose") //NOI18N
+    @Label("Phar Archive Close") //NOI18N
+    @Description("Archive file closed after the close delay") //NOI18N
+    static final class ArchiveClose extends PharEvent {
+    }
+
+    @Name("name.npetrovski.nbphar.IndexBuild") //NOI18N
+    @Label("Phar Index Build") //NOI18N
+    @Description("Entries of an archive read into the filesystem index") //NOI18N
+    static final class IndexBuild extends PharEvent {
+    }
+
+    @Name("name.npetrovski.nbphar.EntryRead") //NOI18N
+    @Label("Phar Entry Read") //NOI18N
+    @Description("Entry of an archive opened for reading") //NOI18N
+    @StackTrace(false)
+    static final class EntryRead extends PharEvent {
+    }
+
+    @Name("name.npetrovski.nbphar.Mount") //NOI18N
+    @Label("Phar Mount") //NOI18N
+    @Description("Filesystem of an archive looked up or mounted by the URL mapper") //NOI18N
+    static final class Mount extends PharEvent {
+    }
+}
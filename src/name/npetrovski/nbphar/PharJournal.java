@@ -0,0 +1,817 @@
+package name.npetrovski.nbphar;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import name.npetrovski.jphar.PharCompression;
+import org.openide.util.NbBundle;
+
+/**
+ * Writes changes into a native phar archive without rebuilding it. New entry bodies are appended to the data section
+ * and only the manifest and the signature are rewritten. Bodies of replaced or deleted entries stay where they are,
+ * covered by internal "dead" manifest records, so the offsets of all other entries are kept. The manifest keeps its
+ * length thanks to an internal slack record whose metadata shrinks as the manifest grows; PHP and jphar skip both
+ * kinds of records like any other entry metadata, and {@link #isInternal(String)} hides them from the filesystem.
+ * <p>
+ * Before the archive is touched, the bytes about to be overwritten are saved to an undo journal next to the archive,
+ * so an interrupted update is rolled back by {@link #recover(File)}. Archives without slack, or with the slack used
+ * up, are rewritten by {@link #compact()}, which also drops the dead bodies.
+ */
+final class PharJournal {
+
+    private static final Logger LOG = Logger.getLogger(PharJournal.class.getName());
+
+    static final String INTERNAL_PREFIX = ".phar/journal/"; //NOI18N
+
+    private static final String SLACK_NAME = INTERNAL_PREFIX + "slack"; //NOI18N
+
+    private static final String DEAD_PREFIX = INTERNAL_PREFIX + "dead-"; //NOI18N
+
+    /**
+     * Manifest bytes reserved by {@link #compact()} for later in place updates; one update of an entry takes its name
+     * twice plus about 40 bytes
+     */
+    private static final int DEFAULT_SLACK = Integer.getInteger("name.npetrovski.nbphar.journal.slack", 16 * 1024); //NOI18N
+
+    private static final byte[] JOURNAL_MAGIC = "PHARJNL1".getBytes(StandardCharsets.US_ASCII); //NOI18N
+
+    private static final byte[] SIGNATURE_MAGIC = "GBMB".getBytes(StandardCharsets.US_ASCII); //NOI18N
+
+    static final int SIGNATURE_OPENSSL = 0x0010;
+
+    /**
+     * rw-rw-rw-, as PHP stores new entries
+     */
+    private static final int DEFAULT_PERMISSIONS = 0x1B6;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private final File file;
+
+    PharJournal(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Tells archives which cannot be written: an OpenSSL signature cannot be renewed without the private key.
+     */
+    static boolean isOpenSslSigned(File file) throws IOException {
+        PharIndex index = PharIndex.get(file);
+        long length = index.getLength();
+        if (!index.isSigned() || length < 8) {
+            return false;
+        }
+        byte[] trailer = index.readRange(length - 8, 8);
+        return Arrays.equals(Arrays.copyOfRange(trailer, 4, 8), SIGNATURE_MAGIC)
+                && (PharFormat.readLEInt(trailer, 0) & SIGNATURE_OPENSSL) != 0;
+    }
+
+    /**
+     * @return whether the entry is a bookkeeping record of the journal, not a file of the archive
+     */
+    static boolean isInternal(String name) {
+        return name.startsWith(INTERNAL_PREFIX);
+    }
+
+    static File journalFile(File archive) {
+        return new File(archive.getParentFile(), "." + archive.getName() + ".journal"); //NOI18N
+    }
+
+    /**
+     * Rolls back an update which was interrupted, e.g. by a crash. Does nothing if there is no undo journal.
+     */
+    static void recover(File archive) throws IOException {
+        File journal = journalFile(archive);
+        if (!journal.isFile()) {
+            return;
+        }
+        long length;
+        long manifestOffset;
+        byte[] manifest;
+        long tailOffset;
+        byte[] tail;
+        DataInputStream in = new DataInputStream(new FileInputStream(journal));
+        try {
+            byte[] magic = new byte[JOURNAL_MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, JOURNAL_MAGIC)) {
+                throw new EOFException();
+            }
+            length = in.readLong();
+            manifestOffset = in.readLong();
+            manifest = new byte[in.readInt()];
+            in.readFully(manifest);
+            tailOffset = in.readLong();
+            tail = new byte[in.readInt()];
+            in.readFully(tail);
+        } catch (EOFException ex) {
+            // the journal was not complete, so the archive has not been touched yet
+            in.close();
+            Files.delete(journal.toPath());
+            return;
+        } finally {
+            in.close();
+        }
+
+        LOG.log(Level.INFO, "Rolling back interrupted update of {0}", archive); //NOI18N
+        RandomAccessFile raf = new RandomAccessFile(archive, "rw"); //NOI18N
+        try {
+            raf.seek(manifestOffset);
+            raf.write(manifest);
+            raf.seek(tailOffset);
+            raf.write(tail);
+            raf.setLength(length);
+            raf.getChannel().force(true);
+        } finally {
+            raf.close();
+        }
+        Files.delete(journal.toPath());
+        PharIndex.forget(archive);
+    }
+
+    /**
+     * Applies the changes, appending to the archive if it has enough slack and rewriting it otherwise.
+     */
+    synchronized void apply(Changes changes) throws IOException {
+        if (changes.isEmpty()) {
+            return;
+        }
+        recover(file);
+        Layout layout = load();
+        int now = (int) (System.currentTimeMillis() / 1000);
+        for (Change c : changes.list) {
+            switch (c.kind) {
+                case PUT:
+                    put(layout, c.name, c.content, now);
+                    break;
+                case DELETE:
+                    delete(layout, c.name);
+                    break;
+                case RENAME:
+                    rename(layout, c.name, c.target);
+                    break;
+                default:
+                    throw new IllegalStateException();
+            }
+        }
+        if (!writeInPlace(layout)) {
+            rewrite(layout);
+        }
+        PharIndex.forget(file);
+    }
+
+    /**
+     * Rewrites the archive without dead bodies and with fresh slack.
+     */
+    synchronized void compact() throws IOException {
+        recover(file);
+        rewrite(load());
+        PharIndex.forget(file);
+    }
+
+    /**
+     * @return bytes of replaced and deleted bodies which {@link #compact()} would reclaim
+     */
+    synchronized long getDeadBytes() throws IOException {
+        long dead = 0;
+        for (PharIndex.Entry e : PharIndex.get(file).getEntries()) {
+            if (e.getName().startsWith(DEAD_PREFIX)) {
+                dead += e.getCompressedSize();
+            }
+        }
+        return dead;
+    }
+
+    //
+    // Changes
+    //
+    private static void put(Layout layout, String name, byte[] content, int now) throws IOException {
+        Record old = layout.find(name);
+        int flags = (old != null) ? old.flags : (DEFAULT_PERMISSIONS | (layout.flags & PharIndex.COMPRESSION_MASK));
+        // new bodies are compressed like the old ones
+        PharCompression compression = PharIndex.compressionOf(flags);
+
+        Record r = new Record();
+        r.name = (old != null) ? old.name : name;
+        r.size = content.length;
+        r.crc = crc(content);
+        r.time = now;
+        r.flags = (flags & ~PharIndex.COMPRESSION_MASK) | PharBuilder.flagOf(compression);
+        r.metadata = (old != null) ? old.metadata : EMPTY;
+        r.body = encode(content, compression);
+        r.compressedSize = r.body.length;
+
+        if (old != null) {
+            layout.kill(old);
+        }
+        layout.records.add(r);
+    }
+
+    private static void delete(Layout layout, String name) throws IOException {
+        List<Record> tree = layout.findTree(name);
+        if (tree.isEmpty()) {
+            throw new FileNotFoundException(name);
+        }
+        for (Record r : tree) {
+            layout.kill(r);
+        }
+    }
+
+    private static void rename(Layout layout, String from, String to) throws IOException {
+        List<Record> tree = layout.findTree(from);
+        if (tree.isEmpty()) {
+            throw new FileNotFoundException(from);
+        }
+        String prefix = normalize(from);
+        String target = normalize(to);
+        for (Record r : tree) {
+            String path = normalize(r.name);
+            String renamed = target + path.substring(prefix.length());
+            if (r.name.endsWith("/")) {
+                renamed += "/";
+            }
+            Record existing = layout.find(renamed);
+            if (existing != null && existing != r) {
+                layout.kill(existing);
+            }
+            r.name = renamed;
+        }
+    }
+
+    //
+    // Reading
+    //
+    private Layout load() throws IOException {
+        PharIndex index = PharIndex.read(file);
+        Layout layout = new Layout();
+        layout.index = index;
+
+        int manifestSize = (int) (index.getDataOffset() - index.getManifestOffset());
+        layout.manifest = index.readRange(index.getManifestOffset(), manifestSize);
+        int count = PharFormat.readLEInt(layout.manifest, 4);
+        if (count != index.getEntryCount()) {
+            throw new IOException(NbBundle.getMessage(PharJournal.class, "EXC_DuplicateEntries", file));
+        }
+        int headerEnd = (int) (index.getMetadataOffset() + index.getMetadataLength() - index.getManifestOffset());
+        layout.header = Arrays.copyOfRange(layout.manifest, 8, headerEnd);
+        layout.flags = index.getFlags();
+
+        long dataEnd = index.getDataOffset();
+        for (PharIndex.Entry e : index.getEntries()) {
+            Record r = new Record();
+            r.name = e.getName();
+            r.size = e.getSize();
+            r.compressedSize = e.getCompressedSize();
+            r.time = (int) (e.getTime() / 1000);
+            r.crc = e.getCrc();
+            r.flags = e.getFlags();
+            int metadataStart = (int) (e.getMetadataOffset() - index.getManifestOffset());
+            r.metadata = Arrays.copyOfRange(layout.manifest, metadataStart, metadataStart + e.getMetadataLength());
+            r.offset = e.getOffset();
+            layout.records.add(r);
+            if (r.name.startsWith(DEAD_PREFIX)) {
+                try {
+                    layout.deadCounter = Math.max(layout.deadCounter,
+                            Integer.parseInt(r.name.substring(DEAD_PREFIX.length())) + 1);
+                } catch (NumberFormatException ex) {
+                    // not one of ours, keep it
+                }
+            }
+            dataEnd += e.getCompressedSize();
+        }
+        layout.dataEnd = dataEnd;
+
+        long length = index.getLength();
+        if (index.isSigned()) {
+            byte[] trailer = index.readRange(length - 8, 8);
+            if (!Arrays.equals(Arrays.copyOfRange(trailer, 4, 8), SIGNATURE_MAGIC)) {
+                throw new IOException(NbBundle.getMessage(PharJournal.class, "EXC_InvalidSignature", file));
+            }
+            layout.signature = PharFormat.readLEInt(trailer, 0);
+            if ((layout.signature & SIGNATURE_OPENSSL) != 0) {
+                throw new IOException(NbBundle.getMessage(PharJournal.class, "EXC_OpenSslSigned", file));
+            }
+            layout.consistent = dataEnd + digest(layout.signature).getDigestLength() + 8 == length;
+        } else {
+            layout.consistent = dataEnd == length;
+        }
+        return layout;
+    }
+
+    //
+    // Writing
+    //
+    /**
+     * Appends the new bodies and rewrites the manifest in place.
+     *
+     * @return false if the archive needs to be rewritten instead
+     */
+    private boolean writeInPlace(Layout layout) throws IOException {
+        if (!layout.consistent) {
+            return false;
+        }
+        byte[] manifest = fitSlack(layout, layout.manifest.length);
+        if (manifest == null) {
+            return false;
+        }
+
+        PharIndex index = layout.index;
+        long length = index.getLength();
+        byte[] tail = index.readRange(layout.dataEnd, (int) (length - layout.dataEnd));
+        File journal = journalFile(file);
+        writeJournal(journal, length, index.getManifestOffset(), layout.manifest, layout.dataEnd, tail);
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw"); //NOI18N
+        boolean done = false;
+        try {
+            raf.seek(layout.dataEnd);
+            for (Record r : layout.records) {
+                if (r.body != null) {
+                    raf.write(r.body);
+                }
+            }
+            long dataEnd = raf.getFilePointer();
+            raf.seek(index.getManifestOffset());
+            raf.write(manifest);
+            if (layout.signature != 0) {
+                MessageDigest md = digest(layout.signature);
+                byte[] buf = new byte[BUFFER_SIZE];
+                raf.seek(0);
+                for (long pos = 0; pos < dataEnd;) {
+                    int n = raf.read(buf, 0, (int) Math.min(buf.length, dataEnd - pos));
+                    if (n < 0) {
+                        throw new EOFException();
+                    }
+                    md.update(buf, 0, n);
+                    pos += n;
+                }
+                raf.seek(dataEnd);
+                raf.write(signature(md.digest(), layout.signature));
+            }
+            raf.setLength(raf.getFilePointer());
+            raf.getChannel().force(true);
+            done = true;
+        } finally {
+            raf.close();
+            if (!done) {
+                recover(file);
+            }
+        }
+        Files.delete(journal.toPath());
+        return true;
+    }
+
+    /**
+     * Writes the stub, the manifest of the living entries with fresh slack, their bodies and the signature into a
+     * temporary file which then replaces the archive.
+     */
+    private void rewrite(Layout layout) throws IOException {
+        PharIndex index = layout.index;
+        for (Iterator<Record> it = layout.records.iterator(); it.hasNext();) {
+            if (isInternal(it.next().name)) {
+                it.remove();
+            }
+        }
+        Record slack = new Record();
+        slack.name = SLACK_NAME;
+        slack.metadata = EMPTY;
+        slack.flags = DEFAULT_PERMISSIONS;
+        slack.body = EMPTY;
+        layout.records.add(0, slack);
+        int base = manifestSize(layout);
+        byte[] manifest = fitSlack(layout, base + DEFAULT_SLACK);
+        if (manifest == null) {
+            manifest = fitSlack(layout, base + DEFAULT_SLACK + 1);
+        }
+
+        File tmp = File.createTempFile(file.getName(), ".tmp", file.getParentFile()); //NOI18N
+        boolean done = false;
+        try {
+            MessageDigest md = (layout.signature != 0) ? digest(layout.signature) : null;
+            RandomAccessFile source = new RandomAccessFile(file, "r"); //NOI18N
+            try {
+                OutputStream os = new BufferedOutputStream(new FileOutputStream(tmp), BUFFER_SIZE);
+                try {
+                    DigestingOutput out = new DigestingOutput(os, md);
+                    copy(source, 0, index.getStubLength(), out);
+                    out.write(manifest);
+                    for (Record r : layout.records) {
+                        if (r.body != null) {
+                            out.write(r.body);
+                        } else {
+                            copy(source, r.offset, r.compressedSize, out);
+                        }
+                    }
+                    if (md != null) {
+                        os.write(signature(md.digest(), layout.signature));
+                    }
+                } finally {
+                    os.close();
+                }
+            } finally {
+                source.close();
+            }
+            try {
+                Files.setPosixFilePermissions(tmp.toPath(), Files.getPosixFilePermissions(file.toPath()));
+            } catch (UnsupportedOperationException ex) {
+                // not a POSIX filesystem
+            }
+            try {
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            done = true;
+        } finally {
+            if (!done && !tmp.delete()) {
+                tmp.deleteOnExit();
+            }
+        }
+    }
+
+    /**
+     * Saves what an in-place update overwrites, the manifest and the signature after the data, together with the
+     * length to truncate the archive to; synced before the archive is touched.
+     */
+    static void writeJournal(File journal, long length, long manifestOffset, byte[] manifest, long tailOffset,
+            byte[] tail) throws IOException {
+        FileOutputStream fos = new FileOutputStream(journal);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.write(JOURNAL_MAGIC);
+            out.writeLong(length);
+            out.writeLong(manifestOffset);
+            out.writeInt(manifest.length);
+            out.write(manifest);
+            out.writeLong(tailOffset);
+            out.writeInt(tail.length);
+            out.write(tail);
+            out.flush();
+            fos.getFD().sync();
+        } finally {
+            fos.close();
+        }
+    }
+
+    /**
+     * Serializes the manifest with the slack record sized so that the whole manifest takes <code>size</code> bytes.
+     *
+     * @return the manifest or null if there is no slack record or it cannot absorb the difference
+     */
+    private static byte[] fitSlack(Layout layout, int size) {
+        Record slack = null;
+        for (Record r : layout.records) {
+            if (r.name.startsWith(SLACK_NAME)) {
+                slack = r;
+                break;
+            }
+        }
+        if (slack == null) {
+            return null;
+        }
+        slack.name = SLACK_NAME;
+        slack.metadata = EMPTY;
+        int missing = size - manifestSize(layout);
+        if (missing != 0) {
+            byte[] metadata = slackMetadata(missing);
+            if (metadata == null) {
+                // the serialized form cannot have every length, give the extra byte to the name
+                slack.name = SLACK_NAME + "_"; //NOI18N
+                metadata = slackMetadata(missing - 1);
+            }
+            if (metadata == null) {
+                return null;
+            }
+            slack.metadata = metadata;
+        }
+        byte[] manifest = serialize(layout);
+        assert manifest.length == size;
+        return manifest;
+    }
+
+    /**
+     * @return a serialized PHP string of exactly <code>length</code> bytes, or null if there is none
+     */
+    private static byte[] slackMetadata(int length) {
+        for (int digits = 1; digits <= 10; digits++) {
+            int chars = length - 6 - digits; // s:N:"...";
+            if (chars >= 0 && String.valueOf(chars).length() == digits) {
+                StringBuilder sb = new StringBuilder(length);
+                sb.append("s:").append(chars).append(":\""); //NOI18N
+                for (int i = 0; i < chars; i++) {
+                    sb.append(' ');
+                }
+                sb.append("\";"); //NOI18N
+                return sb.toString().getBytes(StandardCharsets.US_ASCII);
+            }
+        }
+        return null;
+    }
+
+    private static int manifestSize(Layout layout) {
+        int size = 8 + layout.header.length;
+        for (Record r : layout.records) {
+            size += 28 + r.name.getBytes(StandardCharsets.UTF_8).length + r.metadata.length;
+        }
+        return size;
+    }
+
+    private static byte[] serialize(Layout layout) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(manifestSize(layout));
+        writeLEInt(out, manifestSize(layout) - 4);
+        writeLEInt(out, layout.records.size());
+        out.write(layout.header, 0, layout.header.length);
+        for (Record r : layout.records) {
+            byte[] name = r.name.getBytes(StandardCharsets.UTF_8);
+            writeLEInt(out, name.length);
+            out.write(name, 0, name.length);
+            writeLEInt(out, (int) r.size);
+            writeLEInt(out, r.time);
+            writeLEInt(out, (int) r.compressedSize);
+            writeLEInt(out, r.crc);
+            writeLEInt(out, r.flags);
+            writeLEInt(out, r.metadata.length);
+            out.write(r.metadata, 0, r.metadata.length);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] signature(byte[] hash, int type) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(hash.length + 8);
+        out.write(hash, 0, hash.length);
+        writeLEInt(out, type);
+        out.write(SIGNATURE_MAGIC, 0, SIGNATURE_MAGIC.length);
+        return out.toByteArray();
+    }
+
+    /**
+     * @return digest of a hash signature type, as stored in the trailer
+     */
+    static MessageDigest digest(int type) throws IOException {
+        String algorithm;
+        switch (type) {
+            case 0x0001:
+                algorithm = "MD5"; //NOI18N
+                break;
+            case 0x0002:
+                algorithm = "SHA-1"; //NOI18N
+                break;
+            case 0x0003:
+                algorithm = "SHA-256"; //NOI18N
+                break;
+            case 0x0004:
+                algorithm = "SHA-512"; //NOI18N
+                break;
+            default:
+                throw new IOException("Unknown signature type " + type); //NOI18N
+        }
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IOException(ex);
+        }
+    }
+
+    private static void copy(RandomAccessFile source, long offset, long length, OutputStream out) throws IOException {
+        byte[] buf = new byte[(int) Math.min(BUFFER_SIZE, Math.max(1, length))];
+        source.seek(offset);
+        while (length > 0) {
+            int n = source.read(buf, 0, (int) Math.min(buf.length, length));
+            if (n < 0) {
+                throw new EOFException();
+            }
+            out.write(buf, 0, n);
+            length -= n;
+        }
+    }
+
+    private static void writeLEInt(ByteArrayOutputStream out, int v) {
+        out.write(v & 0xFF);
+        out.write((v >>> 8) & 0xFF);
+        out.write((v >>> 16) & 0xFF);
+        out.write((v >>> 24) & 0xFF);
+    }
+
+    private static int crc(byte[] content) {
+        CRC32 crc = new CRC32();
+        crc.update(content, 0, content.length);
+        return (int) crc.getValue();
+    }
+
+    private static byte[] encode(byte[] content, PharCompression compression) throws IOException {
+        if (compression == PharCompression.NONE) {
+            return content;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(content.length / 2 + 64);
+        OutputStream os = PharBuilder.compressor(out, compression);
+        try {
+            os.write(content);
+        } finally {
+            os.close();
+        }
+        return out.toByteArray();
+    }
+
+    private static String normalize(String name) {
+        String n = name.replace('\\', '/');
+        while (n.startsWith("/")) {
+            n = n.substring(1);
+        }
+        while (n.endsWith("/")) {
+            n = n.substring(0, n.length() - 1);
+        }
+        return n;
+    }
+
+    /**
+     * Changes to apply in one update, in order.
+     */
+    static final class Changes {
+
+        private final List<Change> list = new ArrayList<Change>();
+
+        /**
+         * Creates or replaces a file; a name ending with a slash creates a folder.
+         */
+        Changes put(String name, byte[] content) {
+            list.add(new Change(Kind.PUT, name, null, content));
+            return this;
+        }
+
+        /**
+         * Deletes a file or a folder with everything inside.
+         */
+        Changes delete(String name) {
+            list.add(new Change(Kind.DELETE, name, null, null));
+            return this;
+        }
+
+        /**
+         * Renames a file or a folder with everything inside.
+         */
+        Changes rename(String from, String to) {
+            list.add(new Change(Kind.RENAME, from, to, null));
+            return this;
+        }
+
+        boolean isEmpty() {
+            return list.isEmpty();
+        }
+    }
+
+    private enum Kind {
+        PUT, DELETE, RENAME
+    }
+
+    private static final class Change {
+
+        final Kind kind;
+        final String name;
+        final String target;
+        final byte[] content;
+
+        Change(Kind kind, String name, String target, byte[] content) {
+            this.kind = kind;
+            this.name = name;
+            this.target = target;
+            this.content = content;
+        }
+    }
+
+    /**
+     * One manifest record; either refers to a body in the archive or carries a new one.
+     */
+    private static final class Record {
+
+        String name;
+        long size;
+        long compressedSize;
+        int time;
+        int crc;
+        int flags;
+        byte[] metadata;
+        /**
+         * Offset of the body in the archive, -1 for new bodies
+         */
+        long offset = -1;
+        byte[] body;
+    }
+
+    /**
+     * Parsed archive being changed.
+     */
+    private static final class Layout {
+
+        PharIndex index;
+        /**
+         * The manifest as found in the archive, including its length
+         */
+        byte[] manifest;
+        /**
+         * API version, flags, alias and global metadata
+         */
+        byte[] header;
+        int flags;
+        final List<Record> records = new ArrayList<Record>();
+        long dataEnd;
+        /**
+         * Signature type, 0 if unsigned
+         */
+        int signature;
+        /**
+         * Whether the data end where the manifest says, followed by nothing but the signature
+         */
+        boolean consistent;
+        int deadCounter;
+
+        Record find(String name) {
+            String n = normalize(name);
+            for (Record r : records) {
+                if (!isInternal(r.name) && normalize(r.name).equals(n)) {
+                    return r;
+                }
+            }
+            return null;
+        }
+
+        List<Record> findTree(String name) {
+            String n = normalize(name);
+            List<Record> tree = new ArrayList<Record>();
+            for (Record r : records) {
+                if (!isInternal(r.name)) {
+                    String path = normalize(r.name);
+                    if (path.equals(n) || n.isEmpty() || path.startsWith(n + "/")) {
+                        tree.add(r);
+                    }
+                }
+            }
+            return tree;
+        }
+
+        /**
+         * Removes an entry; its body, if already in the archive, is kept under a dead record.
+         */
+        void kill(Record r) {
+            if (r.offset < 0 || r.compressedSize == 0) {
+                records.remove(r);
+            } else {
+                r.name = DEAD_PREFIX + (deadCounter++);
+                r.metadata = EMPTY;
+            }
+        }
+    }
+
+    /**
+     * Passes the written bytes to the digest of the signature, if any.
+     */
+    private static final class DigestingOutput extends OutputStream {
+
+        private final OutputStream out;
+        private final MessageDigest md;
+
+        DigestingOutput(OutputStream out, MessageDigest md) {
+            this.out = out;
+            this.md = md;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            if (md != null) {
+                md.update((byte) b);
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            if (md != null) {
+                md.update(b, off, len);
+            }
+        }
+    }
+}
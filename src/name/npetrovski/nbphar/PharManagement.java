@@ -0,0 +1,336 @@
+package name.npetrovski.nbphar;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.Reference;
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * JMX registration of the archive statistics: one {@link PharArchiveMXBean} per mounted archive and one
+ * {@link PharMapperMXBean} for all of them. Beans only hold weak references to the filesystems, so a forgotten
+ * registration never keeps an archive index alive.
+ */
+final class PharManagement {
+
+    private static final Logger LOG = Logger.getLogger(PharManagement.class.getName());
+
+    static final String DOMAIN = "name.npetrovski.nbphar"; //NOI18N
+
+    private static final boolean ENABLED = Boolean.parseBoolean(
+            System.getProperty("name.npetrovski.nbphar.jmx", "true")); //NOI18N
+
+    private static final Map<File, ObjectName> archives = new ConcurrentHashMap<File, ObjectName>();
+
+    private static volatile boolean mapperRegistered;
+
+    private PharManagement() {
+    }
+
+    /**
+     * Registers the bean of a freshly mounted archive, and the aggregate bean on first use.
+     *
+     * @param key the archive as keyed by the mount table
+     * @param fs its filesystem
+     */
+    static void archiveMounted(File key, PharArchiveFileSystem fs) {
+        if (!ENABLED) {
+            return;
+        }
+        registerMapper();
+        File archive = fs.getArchiveFile();
+        if (archive == null) {
+            return;
+        }
+        try {
+            ObjectName name = new ObjectName(DOMAIN + ":type=Archive,name=" + ObjectName.quote(archive.getPath())); //NOI18N
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(new ArchiveBean(fs), name);
+            archives.put(key, name);
+        } catch (JMException | SecurityException ex) {
+            LOG.log(Level.FINE, "Cannot register statistics of " + archive, ex); //NOI18N
+        }
+    }
+
+    /**
+     * Unregisters the bean of an unmounted archive.
+     *
+     * @param key the archive as keyed by the mount table
+     */
+    static void archiveUnmounted(File key) {
+        ObjectName name = archives.remove(key);
+        if (name != null) {
+            unregister(name);
+        }
+    }
+
+    /**
+     * Unregisters beans of archives which are not mounted any more, e.g. because they were evicted from the mount
+     * table.
+     */
+    static void retainArchives(Predicate<File> mounted) {
+        for (Iterator<Map.Entry<File, ObjectName>> it = archives.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<File, ObjectName> e = it.next();
+            if (!mounted.test(e.getKey())) {
+                it.remove();
+                unregister(e.getValue());
+            }
+        }
+    }
+
+    private static void registerMapper() {
+        if (mapperRegistered) {
+            return;
+        }
+        synchronized (PharManagement.class) {
+            if (mapperRegistered) {
+                return;
+            }
+            mapperRegistered = true;
+            try {
+                ObjectName name = new ObjectName(DOMAIN + ":type=Mapper"); //NOI18N
+                MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+                if (!server.isRegistered(name)) {
+                    server.registerMBean(new MapperBean(), name);
+                }
+            } catch (JMException | SecurityException ex) {
+                LOG.log(Level.FINE, "Cannot register mapper statistics", ex); //NOI18N
+            }
+        }
+    }
+
+    private static void unregister(ObjectName name) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+        } catch (JMException | SecurityException ex) {
+            LOG.log(Level.FINE, null, ex);
+        }
+    }
+
+    static final class ArchiveBean implements PharArchiveMXBean {
+
+        private final String archive;
+
+        private final Reference<PharArchiveFileSystem> fs;
+
+        /**
+         * Statistics outlive the filesystem, the bean keeps reporting the last numbers
+         */
+        private final PharArchiveStats stats;
+
+        ArchiveBean(PharArchiveFileSystem fs) {
+            this.archive = fs.getArchiveFile().getPath();
+            this.fs = new WeakReference<PharArchiveFileSystem>(fs);
+            this.stats = fs.getStats();
+        }
+
+        @Override
+        public String getArchive() {
+            return archive;
+        }
+
+        @Override
+        public long getOpenCount() {
+            return stats.getOpens();
+        }
+
+        @Override
+        public long getCloseCount() {
+            return stats.getCloses();
+        }
+
+        @Override
+        public long getParseCount() {
+            return stats.getParses();
+        }
+
+        @Override
+        public long getOpensLastMinute() {
+            return stats.getOpensLastMinute();
+        }
+
+        @Override
+        public boolean isIndexLoaded() {
+            PharArchiveFileSystem f = fs.get();
+            return f != null && f.getIndexSize() >= 0;
+        }
+
+        @Override
+        public long getIndexSizeBytes() {
+            PharArchiveFileSystem f = fs.get();
+            return f != null ? Math.max(0, f.getIndexSize()) : 0;
+        }
+
+        @Override
+        public int getEntryCount() {
+            PharArchiveFileSystem f = fs.get();
+            return f != null ? f.getIndexEntryCount() : 0;
+        }
+
+        @Override
+        public long getAliveCount() {
+            PharArchiveFileSystem f = fs.get();
+            return f != null ? f.getAliveCount() : 0;
+        }
+
+        @Override
+        public long getReadCount() {
+            return stats.getReads();
+        }
+
+        @Override
+        public long getCoalescedReadCount() {
+            return stats.getCoalescedReads();
+        }
+
+        @Override
+        public double getContentCacheHitRatio() {
+            return stats.getSpillHitRatio();
+        }
+
+        @Override
+        public long getSpillCacheBytes() {
+            long size = 0;
+            for (File f : spillFiles()) {
+                size += f.length();
+            }
+            return size;
+        }
+
+        @Override
+        public int getSpillCacheFiles() {
+            return spillFiles().length;
+        }
+
+        /**
+         * Spill files of this archive alone: neither its decompressed image nor files of equally named archives.
+         */
+        private File[] spillFiles() {
+            PharArchiveFileSystem f = fs.get();
+            File[] files = (f != null) ? f.getSpillFiles() : null;
+            return files != null ? files : new File[0];
+        }
+
+        @Override
+        public double getReadLatencyP50Millis() {
+            return stats.getLatencyMillis(50);
+        }
+
+        @Override
+        public double getReadLatencyP90Millis() {
+            return stats.getLatencyMillis(90);
+        }
+
+        @Override
+        public double getReadLatencyP99Millis() {
+            return stats.getLatencyMillis(99);
+        }
+
+        @Override
+        public double getReadLatencyMaxMillis() {
+            return stats.getLatencyMillis(100);
+        }
+    }
+
+    private static final class MapperBean implements PharMapperMXBean {
+
+        @Override
+        public int getMountedArchives() {
+            return PharArchiveURLMapper.getMountStatistics().getSize();
+        }
+
+        @Override
+        public int getMountCapacity() {
+            return PharArchiveURLMapper.getMountStatistics().getCapacity();
+        }
+
+        @Override
+        public long getMountHits() {
+            return PharArchiveURLMapper.getMountStatistics().getHits();
+        }
+
+        @Override
+        public long getMountMisses() {
+            return PharArchiveURLMapper.getMountStatistics().getMisses();
+        }
+
+        @Override
+        public long getRemounts() {
+            return PharArchiveURLMapper.getMountStatistics().getRemounts();
+        }
+
+        @Override
+        public long getMountEvictions() {
+            return PharArchiveURLMapper.getMountStatistics().getEvictions();
+        }
+
+        @Override
+        public int getResolutionCacheSize() {
+            return PharArchiveURLMapper.getResolutionStatistics().getSize();
+        }
+
+        @Override
+        public long getResolutionHits() {
+            return PharArchiveURLMapper.getResolutionStatistics().getHits();
+        }
+
+        @Override
+        public long getResolutionMisses() {
+            return PharArchiveURLMapper.getResolutionStatistics().getMisses();
+        }
+
+        @Override
+        public long getIndexBudgetBytes() {
+            return PharIndexManager.getDefault().getStatistics().getBudget();
+        }
+
+        @Override
+        public long getIndexUsedBytes() {
+            return PharIndexManager.getDefault().getStatistics().getUsedBytes();
+        }
+
+        @Override
+        public int getIndexCount() {
+            return PharIndexManager.getDefault().getStatistics().getIndexCount();
+        }
+
+        @Override
+        public int getPinnedIndexCount() {
+            return PharIndexManager.getDefault().getStatistics().getPinnedCount();
+        }
+
+        @Override
+        public long getIndexEvictions() {
+            return PharIndexManager.getDefault().getStatistics().getEvictions();
+        }
+
+        @Override
+        public long getOpenCount() {
+            return PharArchiveStats.getTotalOpens();
+        }
+
+        @Override
+        public long getParseCount() {
+            return PharArchiveStats.getTotalParses();
+        }
+
+        @Override
+        public long getReadCount() {
+            return PharArchiveStats.getTotalReads();
+        }
+    }
+}
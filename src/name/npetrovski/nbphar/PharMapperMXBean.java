@@ -0,0 +1,44 @@
+package name.npetrovski.nbphar;
+
+/**
+ * Statistics of all phar archives together, registered as <code>name.npetrovski.nbphar:type=Mapper</code>.
+ */
+public interface PharMapperMXBean {
+
+    int getMountedArchives();
+
+    int getMountCapacity();
+
+    long getMountHits();
+
+    long getMountMisses();
+
+    /**
+     * @return mounts of archives which had been mounted before and were evicted or released
+     */
+    long getRemounts();
+
+    long getMountEvictions();
+
+    int getResolutionCacheSize();
+
+    long getResolutionHits();
+
+    long getResolutionMisses();
+
+    long getIndexBudgetBytes();
+
+    long getIndexUsedBytes();
+
+    int getIndexCount();
+
+    int getPinnedIndexCount();
+
+    long getIndexEvictions();
+
+    long getOpenCount();
+
+    long getParseCount();
+
+    long getReadCount();
+}
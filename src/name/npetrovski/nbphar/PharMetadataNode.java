@@ -0,0 +1,187 @@
+package name.npetrovski.nbphar;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.openide.nodes.AbstractNode;
+import org.openide.nodes.ChildFactory;
+import org.openide.nodes.Children;
+import org.openide.nodes.Node;
+
+/**
+ * Tree of the global metadata of a phar archive. Only the head of the metadata is read to render the root; the whole
+ * serialized value is read when the root is expanded and each level is decoded when it is expanded. Arrays and
+ * objects with many elements are split into pages and scalar values are cut at {@link #MAX_TEXT} characters.
+ */
+final class PharMetadataNode extends AbstractNode {
+
+    private static final Logger LOG = Logger.getLogger(PharMetadataNode.class.getName());
+
+    static final int PAGE_SIZE = 100;
+
+    static final int MAX_TEXT = 256;
+
+    private static final int HEAD_SIZE = 512;
+
+    /**
+     * Root node of the metadata of the archive.
+     */
+    PharMetadataNode(PharIndex index) throws IOException {
+        super(Children.create(new Elements(new Source(index), 0, -1, -1), true));
+        setName("Metadata"); //NOI18N
+        setDisplayName("Metadata = " + summary(index)); //NOI18N
+        setIconBaseWithExtension("name/npetrovski/nbphar/phar.png"); //NOI18N
+    }
+
+    private PharMetadataNode(Children children, String displayName) {
+        super(children);
+        setDisplayName(displayName);
+    }
+
+    /**
+     * Renders the head of the global metadata of the archive, e.g. "array(12)".
+     */
+    static String summary(PharIndex index) throws IOException {
+        return PhpSerializedReader.summarize(index.readMetadataHead(HEAD_SIZE));
+    }
+
+    /**
+     * Serialized data of one archive version, loaded on first use.
+     */
+    private static final class Source {
+
+        private final PharIndex index;
+
+        private PhpSerializedReader reader;
+
+        Source(PharIndex index) {
+            this.index = index;
+        }
+
+        synchronized PhpSerializedReader reader() throws IOException {
+            if (reader == null) {
+                reader = new PhpSerializedReader(index.readMetadata());
+            }
+            return reader;
+        }
+    }
+
+    /**
+     * Element of a container: offsets of its key and value.
+     */
+    private static final class Element {
+
+        final int keyPos;
+        final int valuePos;
+
+        Element(int keyPos, int valuePos) {
+            this.keyPos = keyPos;
+            this.valuePos = valuePos;
+        }
+    }
+
+    /**
+     * Page of elements <code>[from, to)</code> of a container; <code>pos</code> is the offset of the key of element
+     * <code>from</code>.
+     */
+    private static final class Page {
+
+        final int from;
+        final int to;
+        final int pos;
+
+        Page(int from, int to, int pos) {
+            this.from = from;
+            this.to = to;
+            this.pos = pos;
+        }
+    }
+
+    /**
+     * Elements <code>[from, to)</code> of the container at <code>container</code>, either directly or grouped into
+     * pages. A negative <code>to</code> means all elements from the container start.
+     */
+    private static final class Elements extends ChildFactory<Object> {
+
+        private final Source source;
+        private final int container;
+        private final int from;
+        private final int to;
+        private final int start;
+
+        Elements(Source source, int container, int from, int to) {
+            this(source, container, from, to, -1);
+        }
+
+        private Elements(Source source, int container, int from, int to, int start) {
+            this.source = source;
+            this.container = container;
+            this.from = from;
+            this.to = to;
+            this.start = start;
+        }
+
+        @Override
+        protected boolean createKeys(List<Object> toPopulate) {
+            try {
+                PhpSerializedReader r = source.reader();
+                char type = r.typeAt(container);
+                if (type != PhpSerializedReader.ARRAY && type != PhpSerializedReader.OBJECT) {
+                    // scalar top level value
+                    toPopulate.add(new Element(-1, container));
+                    return true;
+                }
+                int first = (from < 0) ? 0 : from;
+                int last = (to < 0) ? r.countAt(container) : to;
+                int pos = (start < 0) ? r.firstElementAt(container) : start;
+
+                int pageSize = 1;
+                while ((last - first) / pageSize > PAGE_SIZE) {
+                    pageSize *= PAGE_SIZE;
+                }
+                for (int i = first; i < last; i += pageSize) {
+                    if (pageSize == 1) {
+                        int valuePos = r.skip(pos);
+                        toPopulate.add(new Element(pos, valuePos));
+                        pos = r.skip(valuePos);
+                    } else {
+                        int end = Math.min(i + pageSize, last);
+                        toPopulate.add(new Page(i, end, pos));
+                        for (int j = i; j < end; j++) {
+                            pos = r.skip(r.skip(pos));
+                        }
+                    }
+                }
+            } catch (IOException ex) {
+                LOG.log(Level.INFO, null, ex);
+            }
+            return true;
+        }
+
+        @Override
+        protected Node createNodeForKey(Object key) {
+            try {
+                PhpSerializedReader r = source.reader();
+                if (key instanceof Page) {
+                    Page page = (Page) key;
+                    return new PharMetadataNode(
+                            Children.create(new Elements(source, container, page.from, page.to, page.pos), false),
+                            "[" + page.from + ".." + (page.to - 1) + "]"); //NOI18N
+                }
+                Element element = (Element) key;
+                String value = r.describe(element.valuePos, MAX_TEXT);
+                String name = (element.keyPos < 0) ? value : r.describe(element.keyPos, MAX_TEXT) + " => " + value; //NOI18N
+                char type = r.typeAt(element.valuePos);
+                Children children = (type == PhpSerializedReader.ARRAY || type == PhpSerializedReader.OBJECT)
+                        && r.countAt(element.valuePos) > 0
+                        ? Children.create(new Elements(source, element.valuePos, -1, -1), false)
+                        : Children.LEAF;
+                return new PharMetadataNode(children, name);
+            } catch (IOException ex) {
+                LOG.log(Level.INFO, null, ex);
+                return null;
+            }
+        }
+    }
+}
@@ -0,0 +1,385 @@
+package name.npetrovski.nbphar;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Bounded table of mounted archives. Lookups of already mounted keys do not take any lock; a missing key is mounted
+ * by exactly one thread while concurrent callers for the same key wait for its result. When the capacity is exceeded
+ * the least recently used mount which is not in use is dropped; optionally it is kept softly, so that a value still
+ * referred to elsewhere is revived rather than mounted a second time.
+ *
+ * @param <K> key, usually the archive file
+ * @param <V> mounted value
+ */
+final class PharMountCache<K, V> {
+
+    private static final Logger LOGGER = Logger.getLogger(PharMountCache.class.getName());
+
+    /**
+     * Creates the value for a key which is not mounted yet. A null value is returned to the caller but not kept.
+     */
+    interface Factory<K, V> {
+
+        V create(K key) throws IOException;
+    }
+
+    private final ConcurrentHashMap<K, Mount<V>> mounts = new ConcurrentHashMap<K, Mount<V>>();
+
+    /**
+     * Keys mounted at least once, to tell first mounts from remounts
+     */
+    private final Set<K> seen = ConcurrentHashMap.newKeySet();
+
+    private final AtomicLong clock = new AtomicLong();
+
+    private final int capacity;
+
+    /**
+     * Tells values which must not be evicted, or null
+     */
+    private final Predicate<? super V> inUse;
+
+    /**
+     * Evicted values which may still be revived, or null if evicted values are let go
+     */
+    private final ConcurrentHashMap<K, Evicted<K, V>> evicted;
+
+    private final ReferenceQueue<V> queue = new ReferenceQueue<V>();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder remounts = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    PharMountCache(int capacity) {
+        this(capacity, null, false);
+    }
+
+    /**
+     * @param inUse tells values which are not evicted however old they are; null if any value may be evicted
+     * @param keepEvicted whether evicted values are kept by soft references and revived on their next request
+     */
+    PharMountCache(int capacity, Predicate<? super V> inUse, boolean keepEvicted) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Illegal capacity: " + capacity); //NOI18N
+        }
+        this.capacity = capacity;
+        this.inUse = inUse;
+        this.evicted = keepEvicted ? new ConcurrentHashMap<K, Evicted<K, V>>() : null;
+    }
+
+    /**
+     * Returns the value mounted for the key, mounting it with the factory if necessary.
+     */
+    V get(final K key, final Factory<K, V> factory) throws IOException {
+        Mount<V> mount = mounts.get(key);
+        if (mount != null && mount.value != null) {
+            mount.stamp = clock.incrementAndGet();
+            hits.increment();
+            return mount.value;
+        }
+
+        if (mount == null && evicted != null) {
+            expunge();
+            V value = revive(key);
+            if (value != null) {
+                hits.increment();
+                return value;
+            }
+            mount = mounts.get(key);
+        }
+
+        if (mount == null) {
+            Mount<V> created = new Mount<V>(new Callable<V>() {
+                @Override
+                public V call() throws Exception {
+                    return factory.create(key);
+                }
+            });
+            mount = mounts.putIfAbsent(key, created);
+            if (mount == null) {
+                mount = created;
+                misses.increment();
+                if (!seen.add(key)) {
+                    remounts.increment();
+                } else if (seen.size() > 4 * capacity) {
+                    seen.clear(); // keep the history bounded, remounts are counted approximately
+                }
+                mount.creator = Thread.currentThread();
+                mount.task.run();
+                mount.creator = null;
+            }
+        }
+
+        if (mount.creator == Thread.currentThread()) {
+            throw new IOException("Recursive mount of " + key); //NOI18N
+        }
+
+        V value = await(key, mount);
+        if (value == null) {
+            mounts.remove(key, mount);
+            return null;
+        }
+        mount.stamp = clock.incrementAndGet();
+        mount.value = value;
+        if (mounts.size() > capacity) {
+            evict(key);
+        }
+        return value;
+    }
+
+    /**
+     * Returns the mounted value without mounting or touching statistics.
+     */
+    V peek(K key) {
+        Mount<V> mount = mounts.get(key);
+        if (mount != null) {
+            return mount.value;
+        }
+        Evicted<K, V> ref = (evicted != null) ? evicted.get(key) : null;
+        return ref != null ? ref.get() : null;
+    }
+
+    /**
+     * @return whether the key is mounted, or evicted but still alive
+     */
+    boolean containsKey(K key) {
+        if (mounts.containsKey(key)) {
+            return true;
+        }
+        Evicted<K, V> ref = (evicted != null) ? evicted.get(key) : null;
+        return ref != null && ref.get() != null;
+    }
+
+    /**
+     * Unmounts the key if it is still mapped to the given value.
+     */
+    boolean remove(K key, V value) {
+        Mount<V> mount = mounts.get(key);
+        if (mount != null) {
+            return mount.value == value && mounts.remove(key, mount);
+        }
+        Evicted<K, V> ref = (evicted != null) ? evicted.get(key) : null;
+        return ref != null && ref.get() == value && evicted.remove(key, ref);
+    }
+
+    /**
+     * Unmounts all keys whose value matches the filter.
+     */
+    void removeIf(Predicate<? super V> filter) {
+        for (Map.Entry<K, Mount<V>> e : mounts.entrySet()) {
+            V value = e.getValue().value;
+            if (value != null && filter.test(value)) {
+                mounts.remove(e.getKey(), e.getValue());
+            }
+        }
+        if (evicted != null) {
+            for (Map.Entry<K, Evicted<K, V>> e : evicted.entrySet()) {
+                V value = e.getValue().get();
+                if (value == null || filter.test(value)) {
+                    evicted.remove(e.getKey(), e.getValue());
+                }
+            }
+        }
+    }
+
+    int size() {
+        return mounts.size();
+    }
+
+    Statistics getStatistics() {
+        return new Statistics(capacity, mounts.size(), hits.sum(), misses.sum(), remounts.sum(), evictions.sum());
+    }
+
+    private V await(K key, Mount<V> mount) throws IOException {
+        try {
+            return mount.task.get();
+        } catch (InterruptedException ex) {
+            InterruptedIOException iioe = new InterruptedIOException("Interrupted while mounting " + key); //NOI18N
+            iioe.initCause(ex);
+            throw iioe;
+        } catch (ExecutionException ex) {
+            // let the next caller try again
+            mounts.remove(key, mount);
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Puts an evicted value which is still alive back into the table.
+     *
+     * @return the value, or null if there is none or another thread got ahead
+     */
+    private V revive(K key) {
+        Evicted<K, V> ref = evicted.get(key);
+        final V value = (ref != null) ? ref.get() : null;
+        if (value == null) {
+            return null;
+        }
+        Mount<V> mount = new Mount<V>(new Callable<V>() {
+            @Override
+            public V call() {
+                return value;
+            }
+        });
+        mount.task.run();
+        mount.value = value;
+        mount.stamp = clock.incrementAndGet();
+        if (mounts.putIfAbsent(key, mount) != null) {
+            return null;
+        }
+        evicted.remove(key, ref);
+        LOGGER.log(Level.FINE, "revived {0}", key); //NOI18N
+        if (mounts.size() > capacity) {
+            evict(key);
+        }
+        return value;
+    }
+
+    /**
+     * Forgets evicted keys whose values have been collected.
+     */
+    @SuppressWarnings("unchecked")
+    private void expunge() {
+        Evicted<K, V> ref;
+        while ((ref = (Evicted<K, V>) queue.poll()) != null) {
+            evicted.remove(ref.key, ref);
+        }
+    }
+
+    /**
+     * Drops least recently used mounts until the table fits its capacity. The just requested key is kept, and so are
+     * values in use; the table may thus stay over its capacity while they are.
+     */
+    private void evict(K keep) {
+        while (mounts.size() > capacity) {
+            Map.Entry<K, Mount<V>> eldest = null;
+            for (Map.Entry<K, Mount<V>> e : mounts.entrySet()) {
+                V value = e.getValue().value;
+                if (value == null || e.getKey().equals(keep)) {
+                    continue; // still being mounted
+                }
+                if (inUse != null && inUse.test(value)) {
+                    continue;
+                }
+                if (eldest == null || e.getValue().stamp < eldest.getValue().stamp) {
+                    eldest = e;
+                }
+            }
+            if (eldest == null) {
+                return;
+            }
+            if (mounts.remove(eldest.getKey(), eldest.getValue())) {
+                if (evicted != null) {
+                    evicted.put(eldest.getKey(), new Evicted<K, V>(eldest.getKey(), eldest.getValue().value, queue));
+                }
+                evictions.increment();
+                LOGGER.log(Level.FINE, "unmounted {0}", eldest.getKey()); //NOI18N
+            }
+        }
+    }
+
+    private static final class Mount<V> {
+
+        final FutureTask<V> task;
+
+        volatile V value;
+
+        volatile long stamp;
+
+        volatile Thread creator;
+
+        Mount(Callable<V> callable) {
+            this.task = new FutureTask<V>(callable);
+        }
+    }
+
+    /**
+     * Evicted value, kept until memory runs short.
+     */
+    private static final class Evicted<K, V> extends SoftReference<V> {
+
+        final K key;
+
+        Evicted(K key, V value, ReferenceQueue<? super V> queue) {
+            super(value, queue);
+            this.key = key;
+        }
+    }
+
+    /**
+     * Snapshot of the mount table counters.
+     */
+    static final class Statistics {
+
+        private final int capacity;
+        private final int size;
+        private final long hits;
+        private final long misses;
+        private final long remounts;
+        private final long evictions;
+
+        Statistics(int capacity, int size, long hits, long misses, long remounts, long evictions) {
+            this.capacity = capacity;
+            this.size = size;
+            this.hits = hits;
+            this.misses = misses;
+            this.remounts = remounts;
+            this.evictions = evictions;
+        }
+
+        public int getCapacity() {
+            return capacity;
+        }
+
+        public int getSize() {
+            return size;
+        }
+
+        public long getHits() {
+            return hits;
+        }
+
+        public long getMisses() {
+            return misses;
+        }
+
+        public long getRemounts() {
+            return remounts;
+        }
+
+        public long getEvictions() {
+            return evictions;
+        }
+
+        @Override
+        public String toString() {
+            return "PharMountCache[size=" + size + "/" + capacity + ", hits=" + hits + ", misses=" + misses //NOI18N
+                    + ", remounts=" + remounts + ", evictions=" + evictions + "]"; //NOI18N
+        }
+    }
+}
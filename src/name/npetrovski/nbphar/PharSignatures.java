@@ -0,0 +1,331 @@
+package name.npetrovski.nbphar;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.openide.awt.StatusDisplayer;
+import org.openide.util.NbBundle;
+import org.openide.util.RequestProcessor;
+
+/**
+ * Verifies the trailing signature of native phar archives. Checks run on background threads, several archives at a
+ * time, and their verdicts are kept per archive as long as its size and time stamp do not change.
+ */
+final class PharSignatures {
+
+    private static final Logger LOG = Logger.getLogger(PharSignatures.class.getName());
+
+    /**
+     * Name of the filesystem attribute of the archive root which holds the verdict
+     */
+    static final String ATTRIBUTE = "pharSignature"; //NOI18N
+
+    private static final RequestProcessor RP = new RequestProcessor("Phar signatures", //NOI18N
+            Runtime.getRuntime().availableProcessors(), true, false);
+
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    private static final byte[] SIGNATURE_MAGIC = "GBMB".getBytes(StandardCharsets.US_ASCII); //NOI18N
+
+    /**
+     * Checks of recently verified archives. Bounded; a check still running is never dropped.
+     */
+    private static final PharMountCache<File, Check> CHECKS = new PharMountCache<File, Check>(
+            Integer.getInteger("name.npetrovski.nbphar.signature.capacity", 256), new Predicate<Check>() { //NOI18N
+        @Override
+        public boolean test(Check check) {
+            return !check.task.isFinished();
+        }
+    }, false);
+
+    private static final PharMountCache.Factory<File, Check> SCHEDULE = new PharMountCache.Factory<File, Check>() {
+        @Override
+        public Check create(File archive) {
+            Check check = new Check(archive);
+            check.task.schedule(0);
+            return check;
+        }
+    };
+
+    enum Status {
+        VALID, INVALID, UNSIGNED,
+        /**
+         * OpenSSL signed, but the public key is not next to the archive
+         */
+        NO_KEY,
+        /**
+         * Zip or tar based archive, whose signature is not checked
+         */
+        UNSUPPORTED,
+        /**
+         * The archive cannot be read
+         */
+        ERROR
+    }
+
+    /**
+     * Outcome of a check.
+     */
+    static final class Verdict {
+
+        private final Status status;
+        private final String type;
+
+        Verdict(Status status, String type) {
+            this.status = status;
+            this.type = type;
+        }
+
+        Status getStatus() {
+            return status;
+        }
+
+        /**
+         * @return name of the signature type, null if unknown
+         */
+        String getType() {
+            return type;
+        }
+
+        @Override
+        public String toString() {
+            return NbBundle.getMessage(PharSignatures.class, "LBL_Signature_" + status, type);
+        }
+    }
+
+    private PharSignatures() {
+    }
+
+    /**
+     * @return verdict on the current version of the archive, or null if it has not been verified yet
+     */
+    static Verdict peek(File archive) {
+        Check check = CHECKS.peek(archive);
+        return (check != null && check.isUpToDate() && check.task.isFinished()) ? check.verdict : null;
+    }
+
+    /**
+     * Schedules verification of the archive unless the current version of it is verified or being verified.
+     *
+     * @return task which finishes once the verdict is known
+     */
+    static RequestProcessor.Task verify(File archive) {
+        try {
+            Check check = CHECKS.get(archive, SCHEDULE);
+            if (!check.isUpToDate()) {
+                // whoever mounts the next check, us or a concurrent caller, looks at the current version
+                CHECKS.remove(archive, check);
+                check = CHECKS.get(archive, SCHEDULE);
+            }
+            return check.task;
+        } catch (IOException ex) {
+            // not remembered, but still verified
+            LOG.log(Level.FINE, null, ex);
+            Check check = new Check(archive);
+            check.task.schedule(0);
+            return check.task;
+        }
+    }
+
+    /**
+     * Returns the verdict, waiting for the check to finish.
+     */
+    static Verdict verdict(File archive) {
+        verify(archive).waitFinished();
+        Verdict verdict = peek(archive);
+        // the archive changed meanwhile
+        return (verdict != null) ? verdict : check(archive);
+    }
+
+    /**
+     * Verifies the archive on the calling thread.
+     */
+    static Verdict check(File archive) {
+        try {
+            // the signature of an archive compressed as a whole covers the decompressed data
+            File data = PharImage.of(archive);
+            PharFormat container = PharFormat.detectContainer(data);
+            if (container != PharFormat.UNKNOWN) {
+                return new Verdict(Status.UNSUPPORTED, container.name());
+            }
+            PharIndex index = PharIndex.get(data);
+            if (!index.isSigned()) {
+                return new Verdict(Status.UNSIGNED, null);
+            }
+            FileChannel in = FileChannel.open(data.toPath(), StandardOpenOption.READ);
+            try {
+                return check(archive, in, in.size());
+            } finally {
+                in.close();
+            }
+        } catch (IOException | GeneralSecurityException | RuntimeException ex) {
+            LOG.log(Level.INFO, "Cannot verify " + archive, ex); //NOI18N
+            return new Verdict(Status.ERROR, null);
+        }
+    }
+
+    private static Verdict check(File archive, FileChannel in, long length) throws IOException, GeneralSecurityException {
+        if (length < 8) {
+            return new Verdict(Status.INVALID, null);
+        }
+        ByteBuffer trailer = read(in, length - 8, 8);
+        if (!Arrays.equals(Arrays.copyOfRange(trailer.array(), 4, 8), SIGNATURE_MAGIC)) {
+            return new Verdict(Status.INVALID, null);
+        }
+        int type = PharFormat.readLEInt(trailer.array(), 0);
+        if ((type & PharJournal.SIGNATURE_OPENSSL) != 0) {
+            return checkOpenSsl(archive, in, length, type);
+        }
+        MessageDigest md;
+        try {
+            md = PharJournal.digest(type);
+        } catch (IOException ex) {
+            return new Verdict(Status.INVALID, null);
+        }
+        String name = md.getAlgorithm();
+        long dataEnd = length - 8 - md.getDigestLength();
+        if (dataEnd < 0) {
+            return new Verdict(Status.INVALID, name);
+        }
+        digest(in, dataEnd, md);
+        boolean valid = MessageDigest.isEqual(md.digest(), read(in, dataEnd, md.getDigestLength()).array());
+        return new Verdict(valid ? Status.VALID : Status.INVALID, name);
+    }
+
+    /**
+     * OpenSSL signatures are checked with the public key which PHP expects in <code>&lt;archive&gt;.pubkey</code>.
+     */
+    private static Verdict checkOpenSsl(File archive, FileChannel in, long length, int type)
+            throws IOException, GeneralSecurityException {
+        String algorithm;
+        switch (type) {
+            case 0x0010:
+                algorithm = "SHA1withRSA"; //NOI18N
+                break;
+            case 0x0011:
+                algorithm = "SHA256withRSA"; //NOI18N
+                break;
+            case 0x0012:
+                algorithm = "SHA512withRSA"; //NOI18N
+                break;
+            default:
+                return new Verdict(Status.INVALID, null);
+        }
+        String name = "OpenSSL " + algorithm; //NOI18N
+        if (length < 12) {
+            return new Verdict(Status.INVALID, name);
+        }
+        long signatureLength = PharFormat.readLEInt(read(in, length - 12, 4).array(), 0) & 0xFFFFFFFFL;
+        long dataEnd = length - 12 - signatureLength;
+        if (dataEnd < 0) {
+            return new Verdict(Status.INVALID, name);
+        }
+        File keyFile = new File(archive.getPath() + ".pubkey"); //NOI18N
+        if (!keyFile.isFile()) {
+            return new Verdict(Status.NO_KEY, name);
+        }
+        Signature signature = Signature.getInstance(algorithm);
+        signature.initVerify(publicKey(keyFile));
+        ByteBuffer buf = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        for (long pos = 0; pos < dataEnd; ) {
+            buf.clear();
+            buf.limit((int) Math.min(buf.capacity(), dataEnd - pos));
+            int n = in.read(buf, pos);
+            if (n < 0) {
+                throw new IOException("Unexpected end of " + archive); //NOI18N
+            }
+            buf.flip();
+            signature.update(buf);
+            pos += n;
+        }
+        boolean valid = signature.verify(read(in, dataEnd, (int) signatureLength).array());
+        return new Verdict(valid ? Status.VALID : Status.INVALID, name);
+    }
+
+    private static PublicKey publicKey(File pem) throws IOException, GeneralSecurityException {
+        String text = new String(Files.readAllBytes(pem.toPath()), StandardCharsets.US_ASCII);
+        String base64 = text.replaceAll("-----[A-Z ]+-----", "").replaceAll("\\s", ""); //NOI18N
+        return KeyFactory.getInstance("RSA").generatePublic( //NOI18N
+                new X509EncodedKeySpec(Base64.getDecoder().decode(base64)));
+    }
+
+    /**
+     * Hashes the first <code>length</code> bytes of the file with large sequential reads into a direct buffer. The
+     * file is deliberately not mapped: a mapping pins the file until it is collected, which would get in the way of
+     * in-place writes to a mounted archive.
+     */
+    private static void digest(FileChannel in, long length, MessageDigest md) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        for (long pos = 0; pos < length; ) {
+            buf.clear();
+            buf.limit((int) Math.min(buf.capacity(), length - pos));
+            int n = in.read(buf, pos);
+            if (n < 0) {
+                throw new IOException("Unexpected end of file"); //NOI18N
+            }
+            buf.flip();
+            md.update(buf);
+            pos += n;
+        }
+    }
+
+    private static ByteBuffer read(FileChannel in, long offset, int len) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(len);
+        while (buf.hasRemaining()) {
+            if (in.read(buf, offset + buf.position()) < 0) {
+                throw new IOException("Unexpected end of file"); //NOI18N
+            }
+        }
+        return buf;
+    }
+
+    /**
+     * Check of one version of an archive.
+     */
+    private static final class Check implements Runnable {
+
+        private final File archive;
+        private final long length;
+        private final long lastModified;
+        private final RequestProcessor.Task task;
+        private volatile Verdict verdict;
+
+        Check(File archive) {
+            this.archive = archive;
+            this.length = archive.length();
+            this.lastModified = archive.lastModified();
+            this.task = RP.create(this);
+            this.task.setPriority(Thread.MIN_PRIORITY);
+        }
+
+        boolean isUpToDate() {
+            return archive.length() == length && archive.lastModified() == lastModified;
+        }
+
+        @Override
+        public void run() {
+            Verdict v = check(archive);
+            verdict = v;
+            if (v.getStatus() == Status.INVALID) {
+                LOG.log(Level.WARNING, "Signature of {0} does not match its contents", archive); //NOI18N
+                StatusDisplayer.getDefault().setStatusText(NbBundle.getMessage(PharSignatures.class,
+                        "MSG_InvalidSignature", archive.getName()), StatusDisplayer.IMPORTANCE_ERROR_HIGHLIGHT);
+            }
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package name.npetrovski.nbphar;
+
+import java.io.File;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import name.npetrovski.jphar.PharCompression;
+
+/**
+ * Flight recorder events of the archive filesystem: archive open and close, index build, entry read and mount. The
+ * events are recorded with <code>jdk.jfr</code> when the running JDK has it (JDK 11, 8u262 and newer) and cost next to
+ * nothing when no recording is running; on other JDKs, or with
+ * <code>-Dname.npetrovski.nbphar.jfr=false</code>, all spans are no-ops.
+ * <p>
+ * A span is started by one of the factory methods, annotated while the operation runs and committed by
+ * {@link Span#end()}, which also records the duration.</p>
+ */
+abstract class PharTrace {
+
+    private static final Logger LOG = Logger.getLogger(PharTrace.class.getName());
+
+    /**
+     * Span which records nothing
+     */
+    static final Span NONE = new Span();
+
+    private static final PharTrace DEFAULT = create();
+
+    static PharTrace getDefault() {
+        return DEFAULT;
+    }
+
+    private static PharTrace create() {
+        if (Boolean.parseBoolean(System.getProperty("name.npetrovski.nbphar.jfr", "true"))) { //NOI18N
+            try {
+                Class.forName("jdk.jfr.Event"); //NOI18N
+                // loaded reflectively, so that this class links without jdk.jfr
+                return (PharTrace) Class.forName("name.npetrovski.nbphar.PharJfrTrace").getDeclaredConstructor().newInstance(); //NOI18N
+            } catch (ClassNotFoundException | LinkageError ex) {
+                LOG.log(Level.FINE, "Flight recorder not available", ex); //NOI18N
+            } catch (ReflectiveOperationException ex) {
+                LOG.log(Level.INFO, null, ex);
+            }
+        }
+        return new PharTrace() {
+            @Override
+            Span archiveOpen(File archive) {
+                return NONE;
+            }
+
+            @Override
+            Span archiveClose(File archive) {
+                return NONE;
+            }
+
+            @Override
+            Span indexBuild(File archive) {
+                return NONE;
+            }
+
+            @Override
+            Span entryRead(File archive, String entry) {
+                return NONE;
+            }
+
+            @Override
+            Span mount(File archive) {
+                return NONE;
+            }
+        };
+    }
+
+    /**
+     * Opening the archive file by <code>PharArchiveFileSystem.getArchive</code>.
+     */
+    abstract Span archiveOpen(File archive);
+
+    /**
+     * Closing the archive file after the close delay.
+     */
+    abstract Span archiveClose(File archive);
+
+    /**
+     * Reading the entries of the archive into the filesystem index.
+     */
+    abstract Span indexBuild(File archive);
+
+    /**
+     * Opening an entry for reading.
+     */
+    abstract Span entryRead(File archive, String entry);
+
+    /**
+     * Looking up or mounting the filesystem of an archive in <code>PharArchiveURLMapper</code>.
+     */
+    abstract Span mount(File archive);
+
+    /**
+     * One traced operation. This base class records nothing.
+     */
+    static class Span {
+
+        Span bytes(long bytes) {
+            return this;
+        }
+
+        Span entries(int entries) {
+            return this;
+        }
+
+        Span compression(PharCompression compression) {
+            return this;
+        }
+
+        Span cacheHit(boolean hit) {
+            return this;
+        }
+
+        /**
+         * @return true if the annotations are recorded; lets callers skip computing expensive values
+         */
+        boolean isRecording() {
+            return false;
+        }
+
+        void end() {
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package name.npetrovski.nbphar;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLConnection;
+import org.openide.filesystems.FileObject;
+import org.openide.filesystems.FileSystem;
+import org.openide.filesystems.URLMapper;
+
+/**
+ * Connection to an entry of a phar archive. The archive is resolved through the mount table of
+ * {@link PharArchiveURLMapper}; length and modification time come from the archive index and the entry body is not
+ * read before the first read from the returned stream.
+ */
+final class PharURLConnection extends URLConnection {
+
+    private PharArchiveFileSystem fs;
+
+    private String entryName;
+
+    /**
+     * Fallback for URLs which do not point into a local archive (e.g. nested archives)
+     */
+    private FileObject fo;
+
+    PharURLConnection(URL url) {
+        super(url);
+    }
+
+    @Override
+    public void connect() throws IOException {
+        if (connected) {
+            return;
+        }
+
+        String path = url.getPath();
+        int index = path.lastIndexOf("!/"); //NOI18N
+        if (index < 0) {
+            throw new FileNotFoundException(url.toExternalForm());
+        }
+
+        String archive = path.substring(0, index);
+        if (archive.startsWith("file:")) { //NOI18N
+            File archiveFile;
+            try {
+                // both parts are escaped, see PharArchiveFileSystem.getURLPrefix()
+                archiveFile = new File(URI.create(archive));
+                entryName = PharArchiveURLMapper.decodeEntryPath(path, index + 2);
+            } catch (IllegalArgumentException ex) {
+                throw (FileNotFoundException) new FileNotFoundException(url.toExternalForm()).initCause(ex);
+            }
+            FileSystem mounted = PharArchiveURLMapper.mount(archiveFile);
+            if (mounted instanceof PharArchiveFileSystem) {
+                fs = (PharArchiveFileSystem) mounted;
+                if (entryName.endsWith("/")) {
+                    entryName = entryName.substring(0, entryName.length() - 1);
+                }
+                // existence is answered by the index, the entry itself is still opened lazily
+                if (fs.findResource(entryName) == null) {
+                    throw new FileNotFoundException(url.toExternalForm());
+                }
+            }
+        }
+
+        if (fs == null) {
+            fo = URLMapper.findFileObject(url);
+            if (fo == null) {
+                throw new FileNotFoundException(url.toExternalForm());
+            }
+        }
+
+        connected = true;
+    }
+
+    @Override
+    public long getContentLengthLong() {
+        try {
+            connect();
+        } catch (IOException ex) {
+            return -1;
+        }
+        return fs != null ? fs.size(entryName) : fo.getSize();
+    }
+
+    @Override
+    public int getContentLength() {
+        long length = getContentLengthLong();
+        return length <= Integer.MAX_VALUE ? (int) length : -1;
+    }
+
+    @Override
+    public long getLastModified() {
+        try {
+            connect();
+        } catch (IOException ex) {
+            return 0;
+        }
+        return fs != null ? fs.lastModified(entryName).getTime() : fo.lastModified().getTime();
+    }
+
+    @Override
+    public String getContentType() {
+        String type = guessContentTypeFromName(url.getPath());
+        return type != null ? type : "content/unknown"; //NOI18N
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        connect();
+        if (fs == null) {
+            return fo.getInputStream();
+        }
+        if (entryName.isEmpty() || fs.folder(entryName)) {
+            throw new FileNotFoundException(url.toExternalForm() + " is a folder"); //NOI18N
+        }
+        return new LazyEntryStream(fs, entryName);
+    }
+
+    /**
+     * Opens the entry on the first access only.
+     */
+    private static final class LazyEntryStream extends InputStream {
+
+        private final PharArchiveFileSystem fs;
+
+        private final String name;
+
+        private InputStream delegate;
+
+        private boolean closed;
+
+        LazyEntryStream(PharArchiveFileSystem fs, String name) {
+            this.fs = fs;
+            this.name = name;
+        }
+
+        private InputStream delegate() throws IOException {
+            if (closed) {
+                throw new IOException("Stream closed"); //NOI18N
+            }
+            if (delegate == null) {
+                delegate = fs.inputStream(name);
+            }
+            return delegate;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return delegate().read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return delegate().read(b, off, len);
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            return delegate().skip(n);
+        }
+
+        @Override
+        public int available() throws IOException {
+            return delegate == null ? 0 : delegate.available();
+        }
+
+        @Override
+        public void close() throws IOException {
+            closed = true;
+            if (delegate != null) {
+                delegate.close();
+            }
+        }
+    }
+}
@@ -8,9 +8,20 @@ import java.net.URLStreamHandler;
 @SuppressWarnings( "deprecation" )
 public class PharURLStreamHandler extends URLStreamHandler {
 
+    private static final PharURLStreamHandler DEFAULT = new PharURLStreamHandler();
+
+    /**
+     * The handler is stateless, so one instance is shared by all URLs created by this module.
+     *
+     * @return shared handler
+     */
+    static PharURLStreamHandler getDefault() {
+        return DEFAULT;
+    }
+
     @Override
     protected URLConnection openConnection(URL u) throws IOException {
-        throw new UnsupportedOperationException("Not supported yet.");
+        return new PharURLConnection(u);
     }
 
     @Override
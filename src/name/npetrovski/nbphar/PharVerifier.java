@@ -0,0 +1,295 @@
+package name.npetrovski.nbphar;
+
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import name.npetrovski.jphar.PharCompression;
+import org.openide.awt.StatusDisplayer;
+import org.openide.util.NbBundle;
+import org.openide.util.RequestProcessor;
+
+/**
+ * Checks entry data against the CRC32 and size from the manifest, using the JDK's intrinsic {@link CRC32}. Reads are
+ * checked as the data stream, so the check costs no extra pass; a whole archive is verified in parallel, optionally in
+ * the background after it is mounted.
+ */
+final class PharVerifier {
+
+    private static final Logger LOG = Logger.getLogger(PharVerifier.class.getName());
+
+    /**
+     * Whether data returned by {@link PharArchiveFile#getInputStream} are checked
+     */
+    static final boolean VERIFY_READS = Boolean.parseBoolean(
+            System.getProperty("name.npetrovski.nbphar.verify", "true")); //NOI18N
+
+    /**
+     * Whether archives are verified as a whole after they are mounted
+     */
+    static final boolean VERIFY_MOUNTS = Boolean.getBoolean("name.npetrovski.nbphar.verify.background"); //NOI18N
+
+    private static final RequestProcessor RP = new RequestProcessor("Phar verification", //NOI18N
+            Runtime.getRuntime().availableProcessors(), true, false);
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Archives verified in the background, with their time stamps, so a mount verifies each version once
+     */
+    private static final Set<String> verified = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private PharVerifier() {
+    }
+
+    /**
+     * Wraps the data of an entry so that reading past their end fails if they do not match the manifest.
+     */
+    static InputStream checking(InputStream data, File archive, PharIndex.Entry entry) {
+        return new CheckingInputStream(data, archive, entry.getName(), entry.getSize(), entry.getCrc());
+    }
+
+    /**
+     * Wraps the data of a zip entry so that reading past their end fails if they do not match the central directory.
+     */
+    static InputStream checking(InputStream data, File archive, ZipEntry entry) {
+        return new CheckingInputStream(data, archive, entry.getName(), entry.getSize(), (int) entry.getCrc());
+    }
+
+    /**
+     * Verifies all entries of a native archive in parallel.
+     *
+     * @return descriptions of corrupted entries, empty if the archive is fine
+     */
+    static List<String> verify(final File archive) throws IOException {
+        PharIndex index = PharIndex.get(archive);
+        final FileChannel in = FileChannel.open(archive.toPath(), StandardOpenOption.READ);
+        List<Future<String>> tasks = new ArrayList<Future<String>>(index.getEntryCount());
+        try {
+            for (final PharIndex.Entry entry : index.getEntries()) {
+                tasks.add(RP.submit(new Callable<String>() {
+                    @Override
+                    public String call() {
+                        return verify(in, archive, entry);
+                    }
+                }));
+            }
+            return collect(tasks);
+        } finally {
+            for (Future<String> task : tasks) {
+                task.cancel(true);
+            }
+            in.close();
+        }
+    }
+
+    /**
+     * Verifies all entries of a zip based archive in parallel.
+     *
+     * @return descriptions of corrupted entries, empty if the archive is fine
+     */
+    static List<String> verify(final File archive, final ZipFile zip) throws IOException {
+        List<Future<String>> tasks = new ArrayList<Future<String>>(zip.size());
+        try {
+            for (final ZipEntry entry : Collections.list(zip.entries())) {
+                if (entry.isDirectory()) {
+                    continue;
+                }
+                tasks.add(RP.submit(new Callable<String>() {
+                    @Override
+                    public String call() {
+                        try {
+                            drain(checking(zip.getInputStream(entry), archive, entry));
+                            return null;
+                        } catch (IOException ex) {
+                            return entry.getName() + ": " + ex.getMessage(); //NOI18N
+                        }
+                    }
+                }));
+            }
+            return collect(tasks);
+        } finally {
+            for (Future<String> task : tasks) {
+                task.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Verifies the archive on a background thread unless this version of it has been verified already; corrupted
+     * entries are logged and announced in the status line.
+     */
+    static void verifyInBackground(final File archive) {
+        if (!verified.add(archive.getPath() + '@' + archive.lastModified() + '@' + archive.length())) {
+            return;
+        }
+        RP.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    PharArchiveFile file = new PharArchiveFile(archive);
+                    List<String> problems;
+                    try {
+                        problems = file.verify();
+                    } finally {
+                        file.close();
+                    }
+                    if (!problems.isEmpty()) {
+                        LOG.log(Level.WARNING, "{0} is corrupted: {1}", new Object[]{archive, problems}); //NOI18N
+                        StatusDisplayer.getDefault().setStatusText(NbBundle.getMessage(PharVerifier.class,
+                                "MSG_Corrupted", archive.getName(), problems.size()), StatusDisplayer.IMPORTANCE_ERROR_HIGHLIGHT);
+                    }
+                } catch (IOException ex) {
+                    LOG.log(Level.INFO, ex.getMessage(), ex);
+                }
+            }
+        }, 0, Thread.MIN_PRIORITY);
+    }
+
+    /**
+     * @return description of the problem or null if the entry is fine
+     */
+    private static String verify(FileChannel in, File archive, PharIndex.Entry entry) {
+        if (PharJournal.isInternal(entry.getName()) || entry.getName().endsWith("/")) { //NOI18N
+            return null;
+        }
+        try {
+            PharCompression compression = entry.getCompression();
+            drain(checking(PharArchiveFile.decoder(new PharArchiveFile.RegionInputStream(in,
+                    entry.getOffset(), entry.getCompressedSize(), compression == PharCompression.GZIP), compression),
+                    archive, entry));
+            return null;
+        } catch (IOException ex) {
+            return entry.getName() + ": " + ex.getMessage(); //NOI18N
+        }
+    }
+
+    private static List<String> collect(List<Future<String>> tasks) throws IOException {
+        List<String> problems = new ArrayList<String>();
+        for (Future<String> task : tasks) {
+            String problem;
+            try {
+                problem = task.get();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IOException(ex);
+            } catch (ExecutionException ex) {
+                throw new IOException(ex.getCause());
+            }
+            if (problem != null) {
+                problems.add(problem);
+            }
+        }
+        return problems;
+    }
+
+    /**
+     * Reads the stream to its end, which is where the check is done.
+     */
+    private static void drain(InputStream is) throws IOException {
+        try {
+            byte[] buf = new byte[BUFFER_SIZE];
+            while (is.read(buf) != -1) {
+                // nothing to do with the data
+            }
+        } finally {
+            is.close();
+        }
+    }
+
+    /**
+     * Computes the checksum while the data are read and compares it at the end of the stream.
+     */
+    private static final class CheckingInputStream extends FilterInputStream {
+
+        private final File archive;
+        private final String name;
+        private final long expectedSize;
+        private final int expectedCrc;
+        private final CRC32 crc = new CRC32();
+        private long size;
+        private boolean checked;
+
+        CheckingInputStream(InputStream in, File archive, String name, long expectedSize, int expectedCrc) {
+            super(in);
+            this.archive = archive;
+            this.name = name;
+            this.expectedSize = expectedSize;
+            this.expectedCrc = expectedCrc;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b >= 0) {
+                crc.update(b);
+                size++;
+            } else {
+                check();
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = in.read(b, off, len);
+            if (n > 0) {
+                crc.update(b, off, n);
+                size += n;
+            } else if (n < 0) {
+                check();
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            // skipped data must be checked as well
+            byte[] buf = new byte[(int) Math.min(BUFFER_SIZE, Math.max(n, 1))];
+            long skipped = 0;
+            while (skipped < n) {
+                int r = read(buf, 0, (int) Math.min(buf.length, n - skipped));
+                if (r < 0) {
+                    break;
+                }
+                skipped += r;
+            }
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        private void check() throws IOException {
+            if (checked) {
+                return;
+            }
+            checked = true;
+            if (size != expectedSize) {
+                throw new IOException(NbBundle.getMessage(PharVerifier.class, "EXC_SizeMismatch",
+                        name, archive, expectedSize, size));
+            }
+            if ((int) crc.getValue() != expectedCrc) {
+                throw new IOException(NbBundle.getMessage(PharVerifier.class, "EXC_CrcMismatch",
+                        name, archive, Integer.toHexString(expectedCrc), Long.toHexString(crc.getValue())));
+            }
+        }
+    }
+}
@@ -0,0 +1,237 @@
+package name.npetrovski.nbphar;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Scanner of PHP <code>serialize()</code> output. Values are addressed by their offset in the serialized data and
+ * decoded on demand only: nested arrays and objects are skipped without building any object graph, and strings are
+ * rendered up to a given length.
+ */
+final class PhpSerializedReader {
+
+    static final char NULL = 'N';
+    static final char BOOLEAN = 'b';
+    static final char INTEGER = 'i';
+    static final char DOUBLE = 'd';
+    static final char STRING = 's';
+    static final char ARRAY = 'a';
+    static final char OBJECT = 'O';
+    static final char CUSTOM = 'C';
+    static final char ENUM = 'E';
+    static final char REFERENCE = 'r';
+    static final char OBJECT_REFERENCE = 'R';
+
+    /**
+     * Deepest nesting of arrays and objects accepted, as PHP's default <code>unserialize_max_depth</code>
+     */
+    static final int MAX_DEPTH = 4096;
+
+    private final byte[] data;
+
+    PhpSerializedReader(byte[] data) {
+        this.data = data;
+    }
+
+    int length() {
+        return data.length;
+    }
+
+    char typeAt(int pos) throws IOException {
+        check(pos);
+        return (char) data[pos];
+    }
+
+    /**
+     * @return number of elements of the array or object at <code>pos</code>
+     */
+    int countAt(int pos) throws IOException {
+        switch (typeAt(pos)) {
+            case ARRAY:
+                return (int) number(pos + 2, ':');
+            case OBJECT:
+                int nameEnd = quotedEnd(pos + 2);
+                return (int) number(nameEnd + 2, ':');
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * @return offset of the first key of the array or object at <code>pos</code>
+     */
+    int firstElementAt(int pos) throws IOException {
+        switch (typeAt(pos)) {
+            case ARRAY:
+                return indexOf(pos + 2, '{') + 1;
+            case OBJECT:
+                int nameEnd = quotedEnd(pos + 2);
+                return indexOf(nameEnd + 2, '{') + 1;
+            default:
+                throw new IOException("Not a container at " + pos); //NOI18N
+        }
+    }
+
+    /**
+     * @return class name of the object at <code>pos</code> or null
+     */
+    String classNameAt(int pos) throws IOException {
+        char type = typeAt(pos);
+        if (type == OBJECT || type == CUSTOM || type == ENUM) {
+            int len = (int) number(pos + 2, ':');
+            int start = indexOf(pos + 2, ':') + 2;
+            return new String(data, start, len, StandardCharsets.UTF_8);
+        }
+        return null;
+    }
+
+    /**
+     * Returns the offset just after the value at <code>pos</code>. Nested containers are walked with an explicit
+     * stack, so that deeply nested data fails with an IOException rather than overflowing the thread stack.
+     */
+    int skip(int pos) throws IOException {
+        // values left to skip in each open container
+        long[] remaining = new long[8];
+        int depth = 0;
+        int p = pos;
+        while (true) {
+            char type = typeAt(p);
+            if (type == ARRAY || type == OBJECT) {
+                if (depth == MAX_DEPTH) {
+                    throw new IOException("Nesting deeper than " + MAX_DEPTH + " at " + p); //NOI18N
+                }
+                if (depth == remaining.length) {
+                    remaining = Arrays.copyOf(remaining, 2 * depth);
+                }
+                remaining[depth++] = 2L * countAt(p);
+                p = firstElementAt(p);
+            } else {
+                p = skipScalar(p, type);
+                if (depth == 0) {
+                    return p;
+                }
+                remaining[depth - 1]--;
+            }
+            while (depth > 0 && remaining[depth - 1] <= 0) {
+                check(p);
+                p++; // '}'
+                depth--;
+                if (depth == 0) {
+                    return p;
+                }
+                remaining[depth - 1]--;
+            }
+        }
+    }
+
+    private int skipScalar(int pos, char type) throws IOException {
+        switch (type) {
+            case NULL:
+                return pos + 2;
+            case BOOLEAN:
+            case INTEGER:
+            case DOUBLE:
+            case REFERENCE:
+            case OBJECT_REFERENCE:
+                return indexOf(pos + 2, ';') + 1;
+            case STRING:
+            case ENUM:
+                return quotedEnd(pos + 2) + 2;
+            case CUSTOM: {
+                int nameEnd = quotedEnd(pos + 2);
+                int len = (int) number(nameEnd + 2, ':');
+                int start = indexOf(nameEnd + 2, '{') + 1;
+                return start + len + 1;
+            }
+            default:
+                throw new IOException("Unsupported type '" + type + "' at " + pos); //NOI18N
+        }
+    }
+
+    /**
+     * Renders a value in one line; containers are shown by type and size, strings are cut at <code>max</code>
+     * characters.
+     */
+    String describe(int pos, int max) throws IOException {
+        char type = typeAt(pos);
+        switch (type) {
+            case NULL:
+                return "null"; //NOI18N
+            case BOOLEAN:
+                return number(pos + 2, ';') != 0 ? "true" : "false"; //NOI18N
+            case INTEGER:
+            case DOUBLE:
+                return new String(data, pos + 2, indexOf(pos + 2, ';') - pos - 2, StandardCharsets.US_ASCII);
+            case STRING: {
+                int len = (int) number(pos + 2, ':');
+                int start = indexOf(pos + 2, ':') + 2;
+                // a partial buffer is fine, only the shown part has to be there
+                int shown = Math.max(0, Math.min(Math.min(len, max), data.length - start));
+                String text = new String(data, start, shown, StandardCharsets.UTF_8);
+                return "\"" + text + (len > shown ? "\u2026\"" : "\""); //NOI18N
+            }
+            case ARRAY:
+                return "array(" + countAt(pos) + ")"; //NOI18N
+            case OBJECT:
+                return classNameAt(pos) + "(" + countAt(pos) + ")"; //NOI18N
+            case CUSTOM:
+                return classNameAt(pos) + " {\u2026}"; //NOI18N
+            case ENUM:
+                return classNameAt(pos);
+            case REFERENCE:
+            case OBJECT_REFERENCE:
+                return "&" + number(pos + 2, ';'); //NOI18N
+            default:
+                throw new IOException("Unsupported type '" + type + "' at " + pos); //NOI18N
+        }
+    }
+
+    /**
+     * Renders the head of serialized data without reading the rest, e.g. "array(12)" for a partial buffer.
+     */
+    static String summarize(byte[] head) {
+        try {
+            return new PhpSerializedReader(head).describe(0, 64);
+        } catch (IOException | RuntimeException ex) {
+            return "\u2026"; //NOI18N
+        }
+    }
+
+    private long number(int pos, char terminator) throws IOException {
+        int end = indexOf(pos, terminator);
+        try {
+            return Long.parseLong(new String(data, pos, end - pos, StandardCharsets.US_ASCII));
+        } catch (NumberFormatException ex) {
+            throw new IOException("Invalid number at " + pos, ex); //NOI18N
+        }
+    }
+
+    /**
+     * For <code>len:"..."</code> at <code>pos</code> returns the offset of the closing quote.
+     */
+    private int quotedEnd(int pos) throws IOException {
+        int len = (int) number(pos, ':');
+        int end = indexOf(pos, ':') + 2 + len;
+        check(end);
+        if (data[end] != '"') {
+            throw new IOException("Invalid string at " + pos); //NOI18N
+        }
+        return end;
+    }
+
+    private int indexOf(int pos, char c) throws IOException {
+        for (int i = pos; i < data.length; i++) {
+            if (data[i] == c) {
+                return i;
+            }
+        }
+        throw new IOException("Unexpected end of data, '" + c + "' expected after " + pos); //NOI18N
+    }
+
+    private void check(int pos) throws IOException {
+        if (pos < 0 || pos >= data.length) {
+            throw new IOException("Unexpected end of data at " + pos); //NOI18N
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package name.npetrovski.nbphar;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openide.filesystems.FileObject;
+import org.openide.filesystems.URLMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Throughput of the basic archive operations on the phars bundled with the unit test resources. Run through the
+ * <code>bench</code> target of the module build; allocation rates are reported with <code>-prof gc</code>.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PharArchiveBenchmark {
+
+    /**
+     * Folder of the bundled phars, relative to the project directory
+     */
+    static final String RESOURCES = System.getProperty("nbphar.bench.resources",
+            "test/unit/src/name/npetrovski/nbphar/resource"); //NOI18N
+
+    @Param({"composer.phar", "phpunit.phar", "codecept.phar"})
+    public String archive;
+
+    private File file;
+
+    private PharArchiveFile pharArchiveFile;
+
+    private PharArchiveFile.ArchiveEntry entry;
+
+    private PharArchiveFileSystem fs;
+
+    private FileObject fileObject;
+
+    private final PharArchiveURLMapper mapper = new PharArchiveURLMapper();
+
+    private final byte[] buffer = new byte[8192];
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        file = new File(RESOURCES, archive).getAbsoluteFile();
+        if (!file.isFile()) {
+            throw new IOException("Missing " + file + ", set -Dnbphar.bench.resources"); //NOI18N
+        }
+        pharArchiveFile = new PharArchiveFile(file);
+
+        // a file from the middle of the manifest rather than the first one
+        List<PharArchiveFile.ArchiveEntry> files = files(pharArchiveFile);
+        entry = files.get(files.size() / 2);
+
+        // URLs are only produced for archives in the mount table of the mapper
+        fs = (PharArchiveFileSystem) PharArchiveURLMapper.mount(file);
+        fileObject = fs.findResource(entry.getName());
+        if (fileObject == null) {
+            throw new IOException("Cannot find " + entry.getName() + " in " + file); //NOI18N
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        fs = null;
+        fileObject = null;
+    }
+
+    @Benchmark
+    public PharArchiveFile openArchive() throws IOException {
+        return new PharArchiveFile(file);
+    }
+
+    @Benchmark
+    public void enumerateEntries(Blackhole bh) throws IOException {
+        Enumeration<PharArchiveFile.ArchiveEntry> en = new PharArchiveFile(file).entries();
+        while (en.hasMoreElements()) {
+            bh.consume(en.nextElement());
+        }
+    }
+
+    @Benchmark
+    public long readSingleEntry() throws IOException {
+        return drain(pharArchiveFile.getInputStream(entry));
+    }
+
+    @Benchmark
+    public long readAllEntries() throws IOException {
+        long total = 0;
+        for (PharArchiveFile.ArchiveEntry e : files(pharArchiveFile)) {
+            total += drain(pharArchiveFile.getInputStream(e));
+        }
+        return total;
+    }
+
+    @Benchmark
+    public int walkChildren(Blackhole bh) {
+        return walk(fs, "", bh); //NOI18N
+    }
+
+    @Benchmark
+    public FileObject[] urlRoundTrip() {
+        URL url = mapper.getURL(fileObject, URLMapper.EXTERNAL);
+        return mapper.getFileObjects(url);
+    }
+
+    static List<PharArchiveFile.ArchiveEntry> files(PharArchiveFile phar) throws IOException {
+        List<PharArchiveFile.ArchiveEntry> files = new ArrayList<PharArchiveFile.ArchiveEntry>();
+        Enumeration<PharArchiveFile.ArchiveEntry> en = phar.entries();
+        while (en.hasMoreElements()) {
+            PharArchiveFile.ArchiveEntry e = en.nextElement();
+            if (!e.getName().endsWith("/") && !"__STUB__".equals(e.getName())) { //NOI18N
+                files.add(e);
+            }
+        }
+        return files;
+    }
+
+    static int walk(PharArchiveFileSystem fs, String folder, Blackhole bh) {
+        int count = 0;
+        String[] names = fs.children(folder);
+        if (names != null) {
+            for (String name : names) {
+                String path = folder.isEmpty() ? name : folder + "/" + name;
+                bh.consume(fs.size(path));
+                count++;
+                if (fs.folder(path)) {
+                    count += walk(fs, path, bh);
+                }
+            }
+        }
+        return count;
+    }
+
+    private long drain(InputStream is) throws IOException {
+        if (is == null) {
+            return 0;
+        }
+        long total = 0;
+        try {
+            int n;
+            while ((n = is.read(buffer)) != -1) {
+                total += n;
+            }
+        } finally {
+            is.close();
+        }
+        return total;
+    }
+}
@@ -0,0 +1,186 @@
+package name.npetrovski.nbphar;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.util.Statistics;
+
+/**
+ * Reader threads hammering one mounted filesystem while the archive is reparsed concurrently. Each reader cycles
+ * through <code>inputStream</code>, <code>size</code>, <code>lastModified</code> and <code>children</code>, so all of
+ * them compete for the <code>closeSync</code> monitor, the close task and <code>reOpenArchiveFile</code> with the
+ * reparse, which does what the modification watcher does when the archive changes.
+ * <p>
+ * The readers and the reparse form one asymmetric JMH group; the number of readers is set with
+ * <code>-tg N,1</code> (methods of a group are ordered by name). {@link #main(String[])} runs the group for 1 to 64
+ * readers and prints throughput and tail latency of the readers for each count.</p>
+ */
+@State(Scope.Group)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 3)
+@Fork(1)
+public class PharContentionBenchmark {
+
+    private static final int[] READERS = {1, 2, 4, 8, 16, 32, 64};
+
+    @Param({"phpunit.phar"})
+    public String archive;
+
+    /**
+     * Pause between two reparses; the watcher reacts to file changes, it does not reparse in a loop
+     */
+    @Param({"50"})
+    public int reparseMillis;
+
+    private File file;
+
+    private PharArchiveFileSystem fs;
+
+    private String[] files;
+
+    private String[] folders;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        file = new File(PharArchiveBenchmark.RESOURCES, archive).getAbsoluteFile();
+        fs = new PharArchiveFileSystem(file);
+
+        List<String> fileList = new ArrayList<String>();
+        List<String> folderList = new ArrayList<String>();
+        collect("", fileList, folderList); //NOI18N
+        files = fileList.toArray(new String[fileList.size()]);
+        folders = folderList.toArray(new String[folderList.size()]);
+    }
+
+    private void collect(String folder, List<String> fileList, List<String> folderList) {
+        folderList.add(folder);
+        for (String name : fs.children(folder)) {
+            String path = folder.isEmpty() ? name : folder + "/" + name;
+            if (fs.folder(path)) {
+                collect(path, fileList, folderList);
+            } else {
+                fileList.add(path);
+            }
+        }
+    }
+
+    /**
+     * Per thread position in the file and folder lists.
+     */
+    @State(Scope.Thread)
+    public static class Reader {
+
+        int next;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            // spread the threads over the archive
+            next = System.identityHashCode(this) & 0xFFFF;
+        }
+    }
+
+    @Benchmark
+    @Group("contention")
+    @GroupThreads(4)
+    public Object read(Reader reader) throws IOException {
+        int i = reader.next++;
+        String path = files[(i >>> 2) % files.length];
+        switch (i & 3) {
+            case 0:
+                InputStream is = fs.inputStream(path);
+                try {
+                    long total = 0;
+                    byte[] buf = new byte[4096];
+                    int n;
+                    while ((n = is.read(buf)) != -1) {
+                        total += n;
+                    }
+                    return total;
+                } finally {
+                    is.close();
+                }
+            case 1:
+                return fs.size(path);
+            case 2:
+                return fs.lastModified(path);
+            default:
+                return fs.children(folders[(i >>> 2) % folders.length]);
+        }
+    }
+
+    @Benchmark
+    @Group("contention")
+    @GroupThreads(1)
+    public String[] reparse() throws InterruptedException {
+        Thread.sleep(reparseMillis);
+        // forget the index, the next listing parses the archive again under closeSync
+        PharIndexManager.getDefault().remove(file);
+        return fs.children(""); //NOI18N
+    }
+
+    /**
+     * Runs the contention group for 1 to 64 readers and prints a table of reader throughput and latency percentiles.
+     * Arguments are JMH command line options, e.g. <code>-p archive=composer.phar -i 1</code>.
+     */
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+        StringBuilder table = new StringBuilder(String.format("%8s %14s %12s %12s %12s %12s%n", "readers", //NOI18N
+                "ops/ms", "p50 us", "p99 us", "p99.9 us", "max us")); //NOI18N
+        for (int readers : READERS) {
+            Options options = new OptionsBuilder()
+                    .parent(commandLine)
+                    .include(PharContentionBenchmark.class.getName() + ".contention") //NOI18N
+                    .threadGroups(readers, 1)
+                    .build();
+            Collection<RunResult> results = new Runner(options).run();
+
+            double throughput = Double.NaN;
+            Statistics latency = null;
+            for (RunResult run : results) {
+                Result<?> read = run.getSecondaryResults().get("read"); //NOI18N
+                if (read == null) {
+                    continue;
+                }
+                if (run.getParams().getMode() == Mode.Throughput) {
+                    throughput = read.getScore() * 1000;
+                } else {
+                    latency = read.getStatistics();
+                }
+            }
+            if (latency != null) {
+                table.append(String.format("%8d %14.1f %12.1f %12.1f %12.1f %12.1f%n", readers, throughput, //NOI18N
+                        latency.getPercentile(50), latency.getPercentile(99), latency.getPercentile(99.9),
+                        latency.getMax()));
+            }
+        }
+        System.out.print(table);
+    }
+}
@@ -0,0 +1,314 @@
+package name.npetrovski.nbphar;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Writes synthetic native phar archives for the scaling benchmarks. Entry bodies are deterministic, so two archives
+ * generated with the same settings are identical and can be reused between runs.
+ * <p>
+ * The archive is written in two passes: entry bodies go to a temporary file first, because the manifest in front of
+ * them needs the compressed sizes, and are appended after the manifest. Large archives therefore never have to fit
+ * into memory. Compressed bodies are raw deflate streams, like the ones written by PHP.</p>
+ */
+public final class PharGenerator {
+
+    /**
+     * Directory layout of the generated entries
+     */
+    public enum Layout {
+        /**
+         * All entries in one folder
+         */
+        FLAT,
+        /**
+         * One folder level per decimal digit of the entry number, ten entries per folder
+         */
+        DEEP
+    }
+
+    /**
+     * Size of the generated entries
+     */
+    public enum Content {
+        TINY(64),
+        LARGE(64 * 1024);
+
+        final int size;
+
+        Content(int size) {
+            this.size = size;
+        }
+    }
+
+    private static final byte[] STUB = "<?php __HALT_COMPILER(); ?>\r\n".getBytes(StandardCharsets.US_ASCII); //NOI18N
+
+    private static final byte[] SIGNATURE_MAGIC = "GBMB".getBytes(StandardCharsets.US_ASCII); //NOI18N
+
+    private static final int SHA1_SIGNATURE = 0x0002;
+
+    private static final int GZIP_FLAG = 0x1000;
+
+    private static final int ENTRY_PERMISSIONS = 0x01B6;
+
+    /**
+     * Fixed epoch second used as modification time of all entries
+     */
+    private static final int TIME = 1500000000;
+
+    private final int entries;
+
+    private Layout layout = Layout.FLAT;
+
+    private Content content = Content.TINY;
+
+    private boolean compressed;
+
+    private boolean signed = true;
+
+    public PharGenerator(int entries) {
+        if (entries < 1) {
+            throw new IllegalArgumentException("entries: " + entries); //NOI18N
+        }
+        this.entries = entries;
+    }
+
+    public PharGenerator layout(Layout layout) {
+        this.layout = layout;
+        return this;
+    }
+
+    public PharGenerator content(Content content) {
+        this.content = content;
+        return this;
+    }
+
+    public PharGenerator compressed(boolean compressed) {
+        this.compressed = compressed;
+        return this;
+    }
+
+    public PharGenerator signed(boolean signed) {
+        this.signed = signed;
+        return this;
+    }
+
+    /**
+     * File name which identifies the settings, e.g. <code>1000-DEEP-TINY-gz.phar</code>.
+     */
+    public String fileName() {
+        return entries + "-" + layout + "-" + content + (compressed ? "-gz" : "") + (signed ? "" : "-unsigned") + ".phar"; //NOI18N
+    }
+
+    /**
+     * Returns the archive in <code>dir</code>, generating it unless it exists from a previous run.
+     */
+    public File generateIn(File dir) throws IOException {
+        File target = new File(dir, fileName());
+        if (!target.isFile()) {
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("Cannot create " + dir); //NOI18N
+            }
+            File tmp = new File(dir, target.getName() + ".tmp"); //NOI18N
+            write(tmp);
+            if (!tmp.renameTo(target)) {
+                throw new IOException("Cannot rename " + tmp + " to " + target); //NOI18N
+            }
+        }
+        return target;
+    }
+
+    /**
+     * Path of the entry with the given number, without a leading slash.
+     */
+    public String entryName(int i) {
+        if (layout == Layout.FLAT) {
+            return "src/File" + i + ".php"; //NOI18N
+        }
+        String digits = Integer.toString(i);
+        int depth = Integer.toString(entries - 1).length();
+        StringBuilder sb = new StringBuilder("src/"); //NOI18N
+        for (int d = digits.length(); d < depth; d++) {
+            sb.append("0/"); //NOI18N
+        }
+        for (int d = 0; d < digits.length() - 1; d++) {
+            sb.append(digits.charAt(d)).append('/');
+        }
+        return sb.append("File").append(i).append(".php").toString(); //NOI18N
+    }
+
+    public int getEntries() {
+        return entries;
+    }
+
+    public void write(File target) throws IOException {
+        File bodies = File.createTempFile("phar-bodies", ".tmp"); //NOI18N
+        try {
+            ByteArrayOutputStream manifestEntries = new ByteArrayOutputStream();
+            LittleEndian manifest = new LittleEndian(manifestEntries);
+            OutputStream data = new BufferedOutputStream(new FileOutputStream(bodies), 64 * 1024);
+            Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+            try {
+                Random random = new Random(entries);
+                CRC32 crc = new CRC32();
+                for (int i = 0; i < entries; i++) {
+                    byte[] body = body(i, random);
+                    byte[] stored = compressed ? deflate(body, deflater) : body;
+                    crc.reset();
+                    crc.update(body);
+
+                    byte[] name = entryName(i).getBytes(StandardCharsets.UTF_8);
+                    manifest.writeInt(name.length);
+                    manifest.write(name);
+                    manifest.writeInt(body.length);
+                    manifest.writeInt(TIME);
+                    manifest.writeInt(stored.length);
+                    manifest.writeInt((int) crc.getValue());
+                    manifest.writeInt(ENTRY_PERMISSIONS | (compressed ? GZIP_FLAG : 0));
+                    manifest.writeInt(0); // no metadata
+                    data.write(stored);
+                }
+            } finally {
+                deflater.end();
+                data.close();
+            }
+
+            MessageDigest sha1 = sha1();
+            OutputStream file = new BufferedOutputStream(new FileOutputStream(target), 64 * 1024);
+            try {
+                DigestOutputStream out = new DigestOutputStream(file, sha1);
+                out.on(signed);
+                LittleEndian header = new LittleEndian(out);
+                header.write(STUB);
+                // manifest length counts everything after the length field itself
+                header.writeInt(4 + 2 + 4 + 4 + 4 + manifestEntries.size());
+                header.writeInt(entries);
+                header.write(new byte[]{0x11, 0x10}); // API 1.1.1
+                header.writeInt((signed ? PharIndex.SIGNATURE_FLAG : 0) | (compressed ? GZIP_FLAG : 0));
+                header.writeInt(0); // no alias
+                header.writeInt(0); // no metadata
+                manifestEntries.writeTo(out);
+                copy(bodies, out);
+                out.on(false);
+                if (signed) {
+                    LittleEndian signature = new LittleEndian(file);
+                    signature.write(sha1.digest());
+                    signature.writeInt(SHA1_SIGNATURE);
+                    signature.write(SIGNATURE_MAGIC);
+                }
+            } finally {
+                file.close();
+            }
+        } finally {
+            bodies.delete();
+        }
+    }
+
+    private byte[] body(int i, Random random) {
+        byte[] head = ("<?php\n// entry " + i + "\n").getBytes(StandardCharsets.US_ASCII); //NOI18N
+        byte[] body = new byte[Math.max(content.size, head.length)];
+        System.arraycopy(head, 0, body, 0, head.length);
+        // source-like filler: short words from a small alphabet, so that compression ratios look realistic
+        for (int p = head.length; p < body.length; p++) {
+            int r = random.nextInt(32);
+            body[p] = (byte) (r < 4 ? ' ' : r == 4 ? '\n' : 'a' + r % 26);
+        }
+        return body;
+    }
+
+    private static byte[] deflate(byte[] body, Deflater deflater) throws IOException {
+        deflater.reset();
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(body.length / 2 + 32);
+        DeflaterOutputStream out = new DeflaterOutputStream(bos, deflater);
+        out.write(body);
+        out.finish();
+        return bos.toByteArray();
+    }
+
+    private static void copy(File from, OutputStream to) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(from), 64 * 1024);
+        try {
+            byte[] buf = new byte[64 * 1024];
+            int n;
+            while ((n = in.read(buf)) != -1) {
+                to.write(buf, 0, n);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static MessageDigest sha1() throws IOException {
+        try {
+            return MessageDigest.getInstance("SHA-1"); //NOI18N
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IOException(ex);
+        }
+    }
+
+    /**
+     * Little endian counterpart of {@link java.io.DataOutputStream} for the few fields of the phar format.
+     */
+    private static final class LittleEndian {
+
+        private final OutputStream out;
+
+        LittleEndian(OutputStream out) {
+            this.out = out;
+        }
+
+        void writeInt(int v) throws IOException {
+            out.write(v);
+            out.write(v >>> 8);
+            out.write(v >>> 16);
+            out.write(v >>> 24);
+        }
+
+        void write(byte[] b) throws IOException {
+            out.write(b);
+        }
+    }
+
+    /**
+     * Generates an archive: <code>PharGenerator entries [FLAT|DEEP] [TINY|LARGE] [gz] [dir]</code>.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.err.println("Usage: PharGenerator entries [FLAT|DEEP] [TINY|LARGE] [gz] [dir]"); //NOI18N
+            return;
+        }
+        PharGenerator generator = new PharGenerator(Integer.parseInt(args[0]));
+        File dir = new File("."); //NOI18N
+        for (int i = 1; i < args.length; i++) {
+            String arg = args[i];
+            if ("gz".equals(arg)) { //NOI18N
+                generator.compressed(true);
+            } else if ("FLAT".equals(arg) || "DEEP".equals(arg)) { //NOI18N
+                generator.layout(Layout.valueOf(arg));
+            } else if ("TINY".equals(arg) || "LARGE".equals(arg)) { //NOI18N
+                generator.content(Content.valueOf(arg));
+            } else {
+                dir = new File(arg);
+            }
+        }
+        long start = System.nanoTime();
+        File file = generator.generateIn(dir);
+        System.out.println(file + ": " + file.length() + " bytes in " //NOI18N
+                + (System.nanoTime() - start) / 1000000 + " ms"); //NOI18N
+    }
+}
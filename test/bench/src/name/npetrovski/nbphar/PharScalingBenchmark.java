@@ -0,0 +1,206 @@
+package name.npetrovski.nbphar;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.Enumeration;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * How archive parsing and lookups scale with the number of entries, on archives written by {@link PharGenerator}.
+ * The JMH benchmarks measure parse time and lookup latency; {@link #main(String[])} reports the heap retained per entry
+ * by the filesystem index and by {@link PharArchiveFile}, which JMH cannot measure.
+ * <p>
+ * Generated archives are kept in <code>nbphar.bench.dir</code> (a folder in the temporary directory by default) and
+ * reused by later runs.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class PharScalingBenchmark {
+
+    static final File DIR = new File(System.getProperty("nbphar.bench.dir",
+            new File(System.getProperty("java.io.tmpdir"), "nbphar-bench").getPath())); //NOI18N
+
+    private static final int LOOKUPS = 1024;
+
+    /**
+     * Keeps the measured object reachable while the heap is sampled
+     */
+    private static volatile Object retained;
+
+    @Param({"1000", "10000", "100000", "1000000"})
+    public int entries;
+
+    @Param({"FLAT", "DEEP"})
+    public PharGenerator.Layout layout;
+
+    @Param({"TINY"})
+    public PharGenerator.Content content;
+
+    @Param({"false"})
+    public boolean compressed;
+
+    private File file;
+
+    private PharArchiveFileSystem fs;
+
+    private String[] paths;
+
+    private String[] parents;
+
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        PharGenerator generator = generator(entries, layout, content, compressed);
+        file = generator.generateIn(DIR);
+        // the filesystem index of the largest archives must not be evicted between invocations
+        PharIndexManager.getDefault().setBudget(Long.MAX_VALUE);
+        fs = new PharArchiveFileSystem(file);
+
+        Random random = new Random(42);
+        paths = new String[LOOKUPS];
+        parents = new String[LOOKUPS];
+        for (int i = 0; i < LOOKUPS; i++) {
+            paths[i] = generator.entryName(random.nextInt(entries));
+            parents[i] = paths[i].substring(0, paths[i].lastIndexOf('/'));
+        }
+    }
+
+    static PharGenerator generator(int entries, PharGenerator.Layout layout, PharGenerator.Content content,
+            boolean compressed) {
+        return new PharGenerator(entries).layout(layout).content(content).compressed(compressed);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public int parseManifest() throws IOException {
+        return PharIndex.read(file).getEntryCount();
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public int enumerateEntries() throws IOException {
+        int count = 0;
+        Enumeration<PharArchiveFile.ArchiveEntry> en = new PharArchiveFile(file).entries();
+        while (en.hasMoreElements()) {
+            en.nextElement();
+            count++;
+        }
+        return count;
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public String[] buildIndex() {
+        PharIndexManager.getDefault().remove(file);
+        return fs.children(""); //NOI18N
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public String[] lookupChildren() {
+        return fs.children(parents[next++ & (LOOKUPS - 1)]);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public long lookupSize() {
+        return fs.size(paths[next++ & (LOOKUPS - 1)]);
+    }
+
+    /**
+     * Prints parse time, retained heap per entry and lookup latency for each archive size:
+     * <code>PharScalingBenchmark [FLAT|DEEP] [gz] [max entries]</code>.
+     */
+    public static void main(String[] args) throws IOException {
+        PharGenerator.Layout layout = PharGenerator.Layout.FLAT;
+        boolean compressed = false;
+        int max = 1000000;
+        for (String arg : args) {
+            if ("gz".equals(arg)) { //NOI18N
+                compressed = true;
+            } else if ("FLAT".equals(arg) || "DEEP".equals(arg)) { //NOI18N
+                layout = PharGenerator.Layout.valueOf(arg);
+            } else {
+                max = Integer.parseInt(arg);
+            }
+        }
+        PharIndexManager.getDefault().setBudget(Long.MAX_VALUE);
+
+        System.out.printf("%10s %12s %12s %14s %14s %14s %12s%n", "entries", "manifest ms", "index ms", //NOI18N
+                "index B/entry", "estimate B/e", "archive B/e", "lookup ns"); //NOI18N
+        for (int n = 1000; n <= max; n *= 10) {
+            PharGenerator generator = generator(n, layout, PharGenerator.Content.TINY, compressed);
+            File file = generator.generateIn(DIR);
+
+            long start = System.nanoTime();
+            PharIndex.read(file);
+            long manifestMillis = (System.nanoTime() - start) / 1000000;
+
+            // PharArchiveFile with its entry map
+            long before = usedHeap();
+            PharArchiveFile archive = new PharArchiveFile(file);
+            archive.entries();
+            retained = archive;
+            long archiveBytes = usedHeap() - before;
+            retained = null;
+
+            // filesystem index: measured as what is freed when the index manager drops it
+            PharArchiveFileSystem fs = new PharArchiveFileSystem(file);
+            start = System.nanoTime();
+            fs.children(""); //NOI18N
+            long indexMillis = (System.nanoTime() - start) / 1000000;
+            long estimate = PharIndexManager.getDefault().getStatistics().getUsedBytes();
+            long withIndex = usedHeap();
+            PharIndexManager.getDefault().remove(file);
+            long indexBytes = withIndex - usedHeap();
+            fs.children(""); //NOI18N
+
+            Random random = new Random(42);
+            String[] parents = new String[LOOKUPS];
+            for (int i = 0; i < LOOKUPS; i++) {
+                String path = generator.entryName(random.nextInt(n));
+                parents[i] = path.substring(0, path.lastIndexOf('/'));
+            }
+            // as many lookups as fit into a second, large flat folders are slow to list
+            long calls = 0;
+            start = System.nanoTime();
+            long elapsed;
+            do {
+                fs.children(parents[(int) (calls++ & (LOOKUPS - 1))]);
+                elapsed = System.nanoTime() - start;
+            } while (elapsed < 1000000000L);
+            long lookupNanos = elapsed / calls;
+            PharIndexManager.getDefault().remove(file);
+
+            System.out.printf("%10d %12d %12d %14d %14d %14d %12d%n", n, manifestMillis, indexMillis, //NOI18N
+                    indexBytes / n, estimate / n, archiveBytes / n, lookupNanos);
+        }
+    }
+
+    private static long usedHeap() {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        for (int i = 0; i < 4; i++) {
+            System.gc();
+        }
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+}
@@ -0,0 +1,110 @@
+package name.npetrovski.nbphar;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import name.npetrovski.jphar.PharCompression;
+import name.npetrovski.jphar.PharSignatureType;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.openide.filesystems.FileLock;
+import org.openide.filesystems.FileObject;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * Reading and writing entries through the filesystem of a writable archive.
+ */
+public class PharArchiveFileSystemTest {
+
+    private static final String WRITABLE = "name.npetrovski.nbphar.writable"; //NOI18N
+
+    /**
+     * Larger than the entries kept in memory, so that reads go through a spill file
+     */
+    private static final int LARGE = 150 * 1024;
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private String writable;
+
+    @Before
+    public void setUp() {
+        writable = System.setProperty(WRITABLE, "true");
+    }
+
+    @After
+    public void tearDown() {
+        if (writable == null) {
+            System.clearProperty(WRITABLE);
+        } else {
+            System.setProperty(WRITABLE, writable);
+        }
+    }
+
+    @Test
+    public void testOverwriteLargeEntry() throws IOException {
+        byte[] first = PharTestSupport.bytes(LARGE, 1);
+        File phar = archive(tmp.newFolder("a"), "app.phar", first);
+        PharArchiveFileSystem fs = new PharArchiveFileSystem(phar);
+        assertFalse(fs.isReadOnly());
+
+        FileObject fo = fs.findResource("big.bin");
+        assertNotNull(fo);
+        assertArrayEquals(first, PharTestSupport.readAll(fo.getInputStream()));
+
+        byte[] second = PharTestSupport.bytes(LARGE + 1000, 2);
+        write(fo, second);
+        assertArrayEquals(second, PharTestSupport.readAll(fs.findResource("big.bin").getInputStream()));
+        assertArrayEquals(second, PharTestSupport.read(phar, "big.bin"));
+
+        byte[] third = PharTestSupport.bytes(LARGE, 3);
+        write(fs.findResource("big.bin"), third);
+        assertArrayEquals(third, PharTestSupport.readAll(fs.findResource("big.bin").getInputStream()));
+        // the spill files of earlier contents are gone, only the one of the last read is left
+        assertEquals(1, fs.getSpillFiles().length);
+    }
+
+    @Test
+    public void testEquallyNamedArchivesDoNotShareSpillFiles() throws IOException {
+        byte[] one = PharTestSupport.bytes(LARGE, 1);
+        byte[] two = PharTestSupport.bytes(LARGE, 2);
+        PharArchiveFileSystem fs1 = new PharArchiveFileSystem(archive(tmp.newFolder("one"), "app.phar", one));
+        PharArchiveFileSystem fs2 = new PharArchiveFileSystem(archive(tmp.newFolder("two"), "app.phar", two));
+
+        assertArrayEquals(one, PharTestSupport.readAll(fs1.findResource("big.bin").getInputStream()));
+        assertArrayEquals(two, PharTestSupport.readAll(fs2.findResource("big.bin").getInputStream()));
+        assertEquals(1, fs1.getSpillFiles().length);
+        assertEquals(1, fs2.getSpillFiles().length);
+    }
+
+    private File archive(File dir, String name, byte[] big) throws IOException {
+        Map<String, byte[]> files = new LinkedHashMap<String, byte[]>();
+        files.put("index.php", "<?php echo 1;\n".getBytes("UTF-8"));
+        files.put("big.bin", big);
+        return PharTestSupport.build(new File(dir, name), files, PharCompression.NONE, PharSignatureType.SHA1);
+    }
+
+    private static void write(FileObject fo, byte[] content) throws IOException {
+        FileLock lock = fo.lock();
+        try {
+            OutputStream os = fo.getOutputStream(lock);
+            try {
+                os.write(content);
+            } finally {
+                os.close();
+            }
+        } finally {
+            lock.releaseLock();
+        }
+    }
+}
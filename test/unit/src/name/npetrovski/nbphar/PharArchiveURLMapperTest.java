@@ -0,0 +1,105 @@
+package name.npetrovski.nbphar;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URL;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import name.npetrovski.jphar.PharCompression;
+import name.npetrovski.jphar.PharSignatureType;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.openide.filesystems.FileLock;
+import org.openide.filesystems.FileObject;
+import org.openide.filesystems.FileSystem;
+import org.openide.filesystems.URLMapper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Resolution of entry URLs and its cache.
+ */
+public class PharArchiveURLMapperTest {
+
+    private static final String WRITABLE = "name.npetrovski.nbphar.writable"; //NOI18N
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private final PharArchiveURLMapper mapper = new PharArchiveURLMapper();
+
+    private String writable;
+
+    @Before
+    public void setUp() {
+        writable = System.setProperty(WRITABLE, "true");
+    }
+
+    @After
+    public void tearDown() {
+        if (writable == null) {
+            System.clearProperty(WRITABLE);
+        } else {
+            System.setProperty(WRITABLE, writable);
+        }
+    }
+
+    @Test
+    public void testRepeatedLookupsAreHits() throws IOException {
+        FileSystem fs = PharArchiveURLMapper.mount(archive());
+        FileObject fo = fs.findResource("index.php");
+        URL url = mapper.getURL(fo, URLMapper.EXTERNAL);
+        assertNotNull(url);
+
+        long hits = PharArchiveURLMapper.getResolutionStatistics().getHits();
+        for (int i = 0; i < 3; i++) {
+            assertSame(fo, mapper.getFileObjects(entryURL(url.toExternalForm()))[0]);
+        }
+        assertEquals(hits + 2, PharArchiveURLMapper.getResolutionStatistics().getHits());
+    }
+
+    @Test
+    public void testMissIsForgottenWhenTheArchiveIsWritten() throws IOException {
+        File phar = archive();
+        FileSystem fs = PharArchiveURLMapper.mount(phar);
+        String prefix = mapper.getURL(fs.getRoot(), URLMapper.EXTERNAL).toExternalForm();
+        URL missing = entryURL(prefix + "added.php");
+        assertNull(mapper.getFileObjects(missing));
+        assertNull(mapper.getFileObjects(missing));
+
+        FileObject added = fs.getRoot().createData("added.php");
+        FileLock lock = added.lock();
+        try {
+            OutputStream os = added.getOutputStream(lock);
+            try {
+                os.write("<?php echo 2;\n".getBytes("UTF-8"));
+            } finally {
+                os.close();
+            }
+        } finally {
+            lock.releaseLock();
+        }
+
+        FileObject[] found = mapper.getFileObjects(missing);
+        assertNotNull(found);
+        assertEquals("added.php", found[0].getNameExt());
+    }
+
+    private File archive() throws IOException {
+        Map<String, byte[]> files = new LinkedHashMap<String, byte[]>();
+        files.put("index.php", "<?php echo 1;\n".getBytes("UTF-8"));
+        return PharTestSupport.build(new File(tmp.newFolder(), "app.phar"), files, PharCompression.NONE,
+                PharSignatureType.SHA1);
+    }
+
+    private static URL entryURL(String spec) throws IOException {
+        return new URL(null, spec, PharURLStreamHandler.getDefault());
+    }
+}
@@ -0,0 +1,193 @@
+package name.npetrovski.nbphar;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Format detection: native phars by stub and manifest, zip and tar based phars by name or <code>.phar/</code> entry.
+ */
+public class PharFormatTest {
+
+    private static final byte[] STUB = "<?php __HALT_COMPILER(); ?>\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void testPlainJarIsNotAPhar() throws IOException {
+        File jar = tmp.newFile("library.jar");
+        Manifest manifest = new Manifest();
+        manifest.getMainAttributes().putValue("Manifest-Version", "1.0");
+        JarOutputStream os = new JarOutputStream(new FileOutputStream(jar), manifest);
+        try {
+            os.putNextEntry(new JarEntry("org/example/A.class"));
+            os.write(new byte[]{(byte) 0xCA, (byte) 0xFE, (byte) 0xBA, (byte) 0xBE});
+            os.closeEntry();
+        } finally {
+            os.close();
+        }
+
+        assertEquals(PharFormat.UNKNOWN, PharFormat.detect(jar));
+        assertEquals(PharFormat.UNKNOWN, detectStream(jar));
+    }
+
+    @Test
+    public void testPlainTarGzIsNotAPhar() throws IOException {
+        File tgz = tmp.newFile("sources.tar.gz");
+        writeTar(tgz, true, "src/a.php");
+
+        assertEquals(PharFormat.UNKNOWN, PharFormat.detect(tgz));
+        assertEquals(PharFormat.UNKNOWN, detectStream(tgz));
+    }
+
+    @Test
+    public void testPlainTarIsNotAPhar() throws IOException {
+        File tar = tmp.newFile("sources.tar");
+        writeTar(tar, false, "src/a.php", "src/b.php");
+
+        assertEquals(PharFormat.UNKNOWN, PharFormat.detect(tar));
+        assertEquals(PharFormat.UNKNOWN, detectStream(tar));
+    }
+
+    @Test
+    public void testZipWithPharFolder() throws IOException {
+        File zip = tmp.newFile("app.zip");
+        writeZip(zip, "src/a.php", ".phar/stub.php");
+
+        assertEquals(PharFormat.ZIP, PharFormat.detect(zip));
+        assertEquals(PharFormat.ZIP, detectStream(zip));
+    }
+
+    @Test
+    public void testTarGzWithPharFolder() throws IOException {
+        File tgz = tmp.newFile("app.tar.gz");
+        writeTar(tgz, true, "src/a.php", ".phar/stub.php");
+
+        assertEquals(PharFormat.TAR, PharFormat.detect(tgz));
+        assertEquals(PharFormat.TAR, detectStream(tgz));
+    }
+
+    @Test
+    public void testContainerNamedPhar() throws IOException {
+        File zip = tmp.newFile("app.phar.zip");
+        writeZip(zip, "src/a.php");
+        File tar = tmp.newFile("app.phar.tar.gz");
+        writeTar(tar, true, "src/a.php");
+
+        assertEquals(PharFormat.ZIP, PharFormat.detect(zip));
+        assertEquals(PharFormat.TAR, PharFormat.detect(tar));
+        assertEquals(PharFormat.TAR, detectStream(tar));
+    }
+
+    @Test
+    public void testPharNames() {
+        assertTrue(PharFormat.isPharName("a.phar"));
+        assertTrue(PharFormat.isPharName("A.PHAR.ZIP"));
+        assertTrue(PharFormat.isPharName("a.phar.tar.bz2"));
+        assertFalse(PharFormat.isPharName("a.jar"));
+        assertFalse(PharFormat.isPharName("a.phar.bak"));
+        assertFalse(PharFormat.isPharName("a.tar.gz"));
+        assertFalse(PharFormat.isPharName(null));
+    }
+
+    @Test
+    public void testNativePhar() throws IOException {
+        File phar = tmp.newFile("native.bin");
+        OutputStream os = new FileOutputStream(phar);
+        try {
+            os.write(STUB);
+            // manifest header of no entries: length, count, API version, flags and alias length
+            byte[] manifest = new byte[]{14, 0, 0, 0, 0, 0, 0, 0, 0x11, 0x10, 0, 0, 0, 0, 0, 0, 0, 0};
+            os.write(manifest);
+        } finally {
+            os.close();
+        }
+
+        assertEquals(PharFormat.PHAR, PharFormat.detect(phar));
+        assertEquals(PharFormat.PHAR, detectStream(phar));
+    }
+
+    @Test
+    public void testBundledPhars() throws IOException {
+        for (String name : new String[]{"composer.phar", "phpunit.phar", "codecept.phar"}) {
+            InputStream is = PharFormatTest.class.getResourceAsStream("resource/" + name);
+            byte[] data = PharTestSupport.readAll(is);
+            assertEquals(name, PharFormat.PHAR, PharFormat.detect(new ByteArrayInputStream(data), name));
+        }
+    }
+
+    /**
+     * Detects the format like for a file which is not on a local disk.
+     */
+    private static PharFormat detectStream(File file) throws IOException {
+        InputStream is = new FileInputStream(file);
+        try {
+            return PharFormat.detect(is, file.getName());
+        } finally {
+            is.close();
+        }
+    }
+
+    private static void writeZip(File file, String... names) throws IOException {
+        ZipOutputStream os = new ZipOutputStream(new FileOutputStream(file));
+        try {
+            for (String name : names) {
+                os.putNextEntry(new ZipEntry(name));
+                os.write(body(name));
+                os.closeEntry();
+            }
+        } finally {
+            os.close();
+        }
+    }
+
+    private static void writeTar(File file, boolean gzip, String... names) throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        if (gzip) {
+            out = new GZIPOutputStream(out);
+        }
+        TarArchiveOutputStream os = new TarArchiveOutputStream(out);
+        try {
+            for (String name : names) {
+                byte[] body = body(name);
+                TarArchiveEntry entry = new TarArchiveEntry(name);
+                entry.setSize(body.length);
+                os.putArchiveEntry(entry);
+                os.write(body);
+                os.closeArchiveEntry();
+            }
+        } finally {
+            os.close();
+        }
+    }
+
+    private static byte[] body(String name) {
+        // longer than a tar block, so that the walk has to skip entry bodies
+        StringBuilder sb = new StringBuilder("<?php\n");
+        while (sb.length() < 1500) {
+            sb.append("// ").append(name).append('\n');
+        }
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,75 @@
+package name.npetrovski.nbphar;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Decompressed images of archives compressed as a whole.
+ */
+public class PharImageTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void testUncompressedArchiveIsItsOwnImage() throws IOException {
+        File plain = tmp.newFile("plain.phar");
+        write(plain, PharTestSupport.bytes(1000, 1), false);
+        assertEquals(plain, PharImage.of(plain));
+    }
+
+    @Test
+    public void testChangedArchiveGetsFreshImage() throws IOException {
+        File gz = tmp.newFile("app.phar.gz");
+        byte[] first = PharTestSupport.bytes(5000, 1);
+        write(gz, first, true);
+        File image = PharImage.of(gz);
+        assertArrayEquals(first, PharTestSupport.readAll(new FileInputStream(image)));
+        assertEquals(image, PharImage.of(gz));
+
+        byte[] second = PharTestSupport.bytes(7000, 2);
+        write(gz, second, true);
+        gz.setLastModified(gz.lastModified() + 2000);
+        File fresh = PharImage.of(gz);
+        assertArrayEquals(second, PharTestSupport.readAll(new FileInputStream(fresh)));
+        assertFalse("image of the old version is deleted", image.exists());
+    }
+
+    @Test
+    public void testManyArchives() throws IOException {
+        // more than the images remembered at once; evicted ones are looked up again
+        for (int round = 0; round < 2; round++) {
+            for (int i = 0; i < 100; i++) {
+                File gz = new File(tmp.getRoot(), "a" + i + ".phar.gz");
+                if (round == 0) {
+                    write(gz, PharTestSupport.bytes(100, i), true);
+                }
+                assertArrayEquals(PharTestSupport.bytes(100, i),
+                        PharTestSupport.readAll(new FileInputStream(PharImage.of(gz))));
+            }
+        }
+    }
+
+    private static void write(File file, byte[] content, boolean gzip) throws IOException {
+        OutputStream os = new FileOutputStream(file);
+        if (gzip) {
+            os = new GZIPOutputStream(os);
+        }
+        try {
+            os.write(content);
+        } finally {
+            os.close();
+        }
+    }
+}
@@ -0,0 +1,245 @@
+package name.npetrovski.nbphar;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import name.npetrovski.jphar.PharCompression;
+import name.npetrovski.jphar.PharSignatureType;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Updates of native phars through the undo journal: every case re-parses the result with {@link PharIndex}.
+ */
+public class PharJournalTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private File phar;
+
+    private Map<String, byte[]> files;
+
+    @Before
+    public void setUp() throws IOException {
+        files = new LinkedHashMap<String, byte[]>();
+        files.put("index.php", "<?php require 'lib/a.php';\n".getBytes("UTF-8"));
+        files.put("lib/a.php", "<?php echo 'a';\n".getBytes("UTF-8"));
+        files.put("lib/sub/b.php", "<?php echo 'b';\n".getBytes("UTF-8"));
+        files.put("data.bin", PharTestSupport.bytes(20000, 1));
+        phar = PharTestSupport.build(new File(tmp.newFolder(), "app.phar"), files, PharCompression.NONE,
+                PharSignatureType.SHA1);
+    }
+
+    @Test
+    public void testFirstUpdateRewritesLaterOnesAppend() throws IOException {
+        PharJournal journal = new PharJournal(phar);
+        byte[] added = "<?php echo 'c';\n".getBytes("UTF-8");
+        journal.apply(new PharJournal.Changes().put("lib/c.php", added));
+
+        // a freshly built archive has no slack, so it was rewritten with some
+        PharIndex rewritten = PharIndex.read(phar);
+        assertTrue(hasInternalEntries(rewritten));
+        assertContent(rewritten);
+        assertArrayEquals(added, PharTestSupport.read(phar, "lib/c.php"));
+        Map<String, Long> offsets = offsets(rewritten);
+
+        byte[] changed = "<?php echo 'A';\n".getBytes("UTF-8");
+        journal.apply(new PharJournal.Changes().put("lib/a.php", changed).put("lib/d.php", added));
+        files.put("lib/a.php", changed);
+
+        // in place: the bodies stay where they were, the new ones are appended
+        PharIndex appended = PharIndex.read(phar);
+        assertEquals(rewritten.getManifestOffset(), appended.getManifestOffset());
+        assertEquals(rewritten.getDataOffset(), appended.getDataOffset());
+        for (String name : new String[]{"index.php", "lib/sub/b.php", "data.bin", "lib/c.php"}) {
+            assertEquals(name, offsets.get(name), offsets(appended).get(name));
+        }
+        assertTrue(appended.getEntry("lib/d.php").getOffset() >= dataEnd(rewritten));
+        assertTrue(journal.getDeadBytes() > 0);
+        assertContent(appended);
+        assertArrayEquals(added, PharTestSupport.read(phar, "lib/d.php"));
+        assertFalse(PharJournal.journalFile(phar).exists());
+    }
+
+    @Test
+    public void testSignatureIsRecomputed() throws IOException {
+        PharJournal journal = new PharJournal(phar);
+        journal.apply(new PharJournal.Changes().put("lib/c.php", new byte[]{'c'}));
+        assertEquals(PharSignatures.Status.VALID, PharSignatures.check(phar).getStatus());
+        journal.apply(new PharJournal.Changes().put("lib/d.php", new byte[]{'d'}).delete("data.bin"));
+        assertEquals(PharSignatures.Status.VALID, PharSignatures.check(phar).getStatus());
+        assertTrue(PharIndex.read(phar).isSigned());
+    }
+
+    @Test
+    public void testRenameSubtree() throws IOException {
+        PharJournal journal = new PharJournal(phar);
+        journal.apply(new PharJournal.Changes().rename("lib", "src"));
+
+        PharIndex index = PharIndex.read(phar);
+        assertNull(index.getEntry("lib/a.php"));
+        assertNull(index.getEntry("lib/sub/b.php"));
+        assertNotNull(index.getEntry("src/a.php"));
+        assertNotNull(index.getEntry("src/sub/b.php"));
+        assertArrayEquals(files.get("lib/a.php"), PharTestSupport.read(phar, "src/a.php"));
+        assertArrayEquals(files.get("lib/sub/b.php"), PharTestSupport.read(phar, "src/sub/b.php"));
+        assertArrayEquals(files.get("index.php"), PharTestSupport.read(phar, "index.php"));
+
+        // once more in place, renaming a nested folder
+        journal.apply(new PharJournal.Changes().rename("src/sub", "src/other"));
+        index = PharIndex.read(phar);
+        assertNull(index.getEntry("src/sub/b.php"));
+        assertArrayEquals(files.get("lib/sub/b.php"), PharTestSupport.read(phar, "src/other/b.php"));
+        assertEquals(PharSignatures.Status.VALID, PharSignatures.check(phar).getStatus());
+    }
+
+    @Test
+    public void testCompact() throws IOException {
+        PharJournal journal = new PharJournal(phar);
+        journal.apply(new PharJournal.Changes().put("data.bin", PharTestSupport.bytes(20000, 2)));
+        byte[] data = PharTestSupport.bytes(20000, 3);
+        journal.apply(new PharJournal.Changes().put("data.bin", data).delete("lib/sub"));
+        assertTrue(journal.getDeadBytes() >= 20000);
+        long length = phar.length();
+
+        journal.compact();
+        assertEquals(0, journal.getDeadBytes());
+        assertTrue(phar.length() < length);
+        PharIndex index = PharIndex.read(phar);
+        assertNull(index.getEntry("lib/sub/b.php"));
+        assertArrayEquals(data, PharTestSupport.read(phar, "data.bin"));
+        assertArrayEquals(files.get("lib/a.php"), PharTestSupport.read(phar, "lib/a.php"));
+        assertEquals(PharSignatures.Status.VALID, PharSignatures.check(phar).getStatus());
+    }
+
+    @Test
+    public void testRollbackOfInterruptedUpdate() throws IOException {
+        PharJournal journal = new PharJournal(phar);
+        // gives the archive slack, so that the next update is made in place
+        journal.apply(new PharJournal.Changes().put("lib/c.php", new byte[]{'c'}));
+        byte[] before = Files.readAllBytes(phar.toPath());
+        PharIndex index = PharIndex.read(phar);
+
+        File copy = new File(phar.getPath() + ".copy");
+        Files.copy(phar.toPath(), copy.toPath());
+        new PharJournal(copy).apply(new PharJournal.Changes().put("lib/a.php", PharTestSupport.bytes(3000, 4)));
+        byte[] after = Files.readAllBytes(copy.toPath());
+
+        // crash after the journal is synced: new bodies appended, manifest not written yet
+        writeJournal(index);
+        write(phar, after);
+        RandomAccessFile raf = new RandomAccessFile(phar, "rw");
+        try {
+            raf.seek(index.getManifestOffset());
+            raf.write(before, (int) index.getManifestOffset(), (int) (index.getDataOffset() - index.getManifestOffset()));
+        } finally {
+            raf.close();
+        }
+        PharJournal.recover(phar);
+        assertArrayEquals(before, Files.readAllBytes(phar.toPath()));
+        assertFalse(PharJournal.journalFile(phar).exists());
+
+        // crash before the final force: everything written but the journal is still there
+        writeJournal(index);
+        write(phar, after);
+        PharJournal.recover(phar);
+        assertArrayEquals(before, Files.readAllBytes(phar.toPath()));
+        assertContent(PharIndex.read(phar));
+        assertEquals(PharSignatures.Status.VALID, PharSignatures.check(phar).getStatus());
+
+        // the next update rolls back by itself
+        writeJournal(index);
+        write(phar, after);
+        journal.apply(new PharJournal.Changes().put("lib/e.php", new byte[]{'e'}));
+        assertArrayEquals(files.get("lib/a.php"), PharTestSupport.read(phar, "lib/a.php"));
+        assertArrayEquals(new byte[]{'e'}, PharTestSupport.read(phar, "lib/e.php"));
+    }
+
+    @Test
+    public void testIncompleteJournalIsIgnored() throws IOException {
+        new PharJournal(phar).apply(new PharJournal.Changes().put("lib/c.php", new byte[]{'c'}));
+        byte[] before = Files.readAllBytes(phar.toPath());
+        PharIndex index = PharIndex.read(phar);
+
+        // crash while the journal was written: the archive has not been touched
+        File journal = writeJournal(index);
+        byte[] partial = Files.readAllBytes(journal.toPath());
+        write(journal, Arrays.copyOf(partial, partial.length / 2));
+        PharJournal.recover(phar);
+        assertFalse(journal.exists());
+        assertArrayEquals(before, Files.readAllBytes(phar.toPath()));
+    }
+
+    /**
+     * Writes the undo journal an in-place update of the archive in its indexed state would write.
+     */
+    private File writeJournal(PharIndex index) throws IOException {
+        long dataEnd = dataEnd(index);
+        File journal = PharJournal.journalFile(phar);
+        PharJournal.writeJournal(journal, index.getLength(), index.getManifestOffset(),
+                index.readRange(index.getManifestOffset(), (int) (index.getDataOffset() - index.getManifestOffset())),
+                dataEnd, index.readRange(dataEnd, (int) (index.getLength() - dataEnd)));
+        return journal;
+    }
+
+    /**
+     * @return offset of the signature, right behind the last body
+     */
+    private static long dataEnd(PharIndex index) {
+        long dataEnd = index.getDataOffset();
+        for (PharIndex.Entry e : index.getEntries()) {
+            dataEnd += e.getCompressedSize();
+        }
+        return dataEnd;
+    }
+
+    private void assertContent(PharIndex index) throws IOException {
+        for (Map.Entry<String, byte[]> e : files.entrySet()) {
+            assertNotNull(e.getKey(), index.getEntry(e.getKey()));
+            assertArrayEquals(e.getKey(), e.getValue(), PharTestSupport.read(phar, e.getKey()));
+        }
+    }
+
+    private static boolean hasInternalEntries(PharIndex index) {
+        for (PharIndex.Entry e : index.getEntries()) {
+            if (PharJournal.isInternal(e.getName())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Map<String, Long> offsets(PharIndex index) {
+        Map<String, Long> offsets = new HashMap<String, Long>();
+        for (PharIndex.Entry e : index.getEntries()) {
+            offsets.put(e.getName(), e.getOffset());
+        }
+        return offsets;
+    }
+
+    private static void write(File file, byte[] content) throws IOException {
+        OutputStream os = new FileOutputStream(file);
+        try {
+            os.write(content);
+        } finally {
+            os.close();
+        }
+    }
+}
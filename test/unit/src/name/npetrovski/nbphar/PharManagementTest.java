@@ -0,0 +1,72 @@
+package name.npetrovski.nbphar;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+import name.npetrovski.jphar.PharCompression;
+import name.npetrovski.jphar.PharSignatureType;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Statistics reported by the archive beans.
+ */
+public class PharManagementTest {
+
+    private static final int LARGE = 150 * 1024;
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void testSpillCacheCountsOwnSpillFilesOnly() throws IOException {
+        byte[] content = PharTestSupport.bytes(LARGE, 7);
+        PharArchiveFileSystem fs = new PharArchiveFileSystem(gzipped(tmp.newFolder("one"), content));
+        // an equally named archive elsewhere, with spill files of its own
+        PharArchiveFileSystem other = new PharArchiveFileSystem(gzipped(tmp.newFolder("two"), content));
+        PharManagement.ArchiveBean bean = new PharManagement.ArchiveBean(fs);
+
+        assertEquals(0, bean.getSpillCacheFiles());
+        assertArrayEquals(content, PharTestSupport.readAll(fs.findResource("big.bin").getInputStream()));
+        assertArrayEquals(content, PharTestSupport.readAll(other.findResource("big.bin").getInputStream()));
+
+        // the decompressed image is not a spill file
+        assertEquals(1, bean.getSpillCacheFiles());
+        assertEquals(LARGE, bean.getSpillCacheBytes());
+    }
+
+    /**
+     * @return a phar compressed as a whole, mounted through its decompressed image
+     */
+    private static File gzipped(File dir, byte[] big) throws IOException {
+        Map<String, byte[]> files = new LinkedHashMap<String, byte[]>();
+        files.put("index.php", "<?php echo 1;\n".getBytes("UTF-8"));
+        files.put("big.bin", big);
+        File phar = PharTestSupport.build(new File(dir, "app.phar"), files, PharCompression.NONE,
+                PharSignatureType.SHA1);
+        File gz = new File(dir, "app.phar.gz");
+        InputStream is = new FileInputStream(phar);
+        try {
+            OutputStream os = new GZIPOutputStream(new FileOutputStream(gz));
+            try {
+                os.write(PharTestSupport.readAll(is));
+            } finally {
+                os.close();
+            }
+        } finally {
+            is.close();
+        }
+        phar.delete();
+        return gz;
+    }
+}
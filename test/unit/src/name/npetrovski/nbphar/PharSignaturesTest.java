@@ -0,0 +1,67 @@
+package name.npetrovski.nbphar;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import name.npetrovski.jphar.PharCompression;
+import name.npetrovski.jphar.PharSignatureType;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Background verification of phar signatures and the verdicts remembered per archive version.
+ */
+public class PharSignaturesTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void testVerdictFollowsTheArchiveVersion() throws IOException {
+        File phar = archive("app.phar");
+        assertEquals(PharSignatures.Status.VALID, PharSignatures.verdict(phar).getStatus());
+        PharSignatures.Verdict verdict = PharSignatures.peek(phar);
+        assertNotNull(verdict);
+        assertSame(PharSignatures.verify(phar), PharSignatures.verify(phar));
+
+        // flip a byte of the stub, keeping the length
+        RandomAccessFile raf = new RandomAccessFile(phar, "rw");
+        try {
+            raf.seek(2);
+            int b = raf.read();
+            raf.seek(2);
+            raf.write(b ^ 0x20);
+        } finally {
+            raf.close();
+        }
+        phar.setLastModified(phar.lastModified() + 2000);
+        assertEquals(PharSignatures.Status.INVALID, PharSignatures.verdict(phar).getStatus());
+    }
+
+    @Test
+    public void testManyArchives() throws IOException {
+        // more archives than checks remembered at once
+        File[] phars = new File[300];
+        for (int i = 0; i < phars.length; i++) {
+            phars[i] = archive("a" + i + ".phar");
+            PharSignatures.verify(phars[i]);
+        }
+        for (File phar : phars) {
+            assertEquals(PharSignatures.Status.VALID, PharSignatures.verdict(phar).getStatus());
+        }
+    }
+
+    private File archive(String name) throws IOException {
+        Map<String, byte[]> files = new LinkedHashMap<String, byte[]>();
+        files.put("index.php", ("<?php echo '" + name + "';\n").getBytes("UTF-8"));
+        return PharTestSupport.build(new File(tmp.newFolder(), name), files, PharCompression.NONE,
+                PharSignatureType.SHA1);
+    }
+}
@@ -0,0 +1,79 @@
+package name.npetrovski.nbphar;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.Random;
+import name.npetrovski.jphar.PharCompression;
+import name.npetrovski.jphar.PharSignatureType;
+
+/**
+ * Builds small native phars for the tests.
+ */
+final class PharTestSupport {
+
+    private PharTestSupport() {
+    }
+
+    /**
+     * Packs the files into <code>target</code>; the files are written to a sibling folder first.
+     *
+     * @param files entry paths and their content
+     * @param signature signature type or null for an unsigned archive
+     */
+    static File build(File target, Map<String, byte[]> files, PharCompression compression,
+            PharSignatureType signature) throws IOException {
+        File source = new File(target.getParentFile(), target.getName() + ".src"); //NOI18N
+        for (Map.Entry<String, byte[]> e : files.entrySet()) {
+            File f = new File(source, e.getKey());
+            f.getParentFile().mkdirs();
+            OutputStream os = new FileOutputStream(f);
+            try {
+                os.write(e.getValue());
+            } finally {
+                os.close();
+            }
+        }
+        new PharBuilder(source).compression(compression).signature(signature).build(target);
+        return target;
+    }
+
+    /**
+     * @return content of the entry, read through a fresh {@link PharArchiveFile}
+     */
+    static byte[] read(File phar, String name) throws IOException {
+        PharArchiveFile archive = new PharArchiveFile(phar);
+        try {
+            return readAll(archive.getInputStream(archive.getArchiveEntry(name)));
+        } finally {
+            archive.close();
+        }
+    }
+
+    /**
+     * @return random bytes, different for each seed
+     */
+    static byte[] bytes(int size, long seed) {
+        byte[] data = new byte[size];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    static byte[] readAll(InputStream is) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[8192];
+            int read;
+            while ((read = is.read(buf)) != -1) {
+                out.write(buf, 0, read);
+            }
+            return out.toByteArray();
+        } finally {
+            is.close();
+        }
+    }
+}